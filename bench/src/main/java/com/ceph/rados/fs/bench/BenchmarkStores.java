@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs.bench;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import com.ceph.rados.fs.RadosFileSystemStore;
+import com.ceph.rados.fs.SimulatedObjectStore;
+
+/**
+ * Opens stores on a {@link SimulatedObjectStore} for the benchmarks.
+ */
+final class BenchmarkStores {
+
+    private BenchmarkStores() {
+    }
+
+    /**
+     * Returns a simulated pool with the given latency distribution for
+     * every operation.
+     */
+    static SimulatedObjectStore simulate(Configuration conf, String latency)
+        throws IOException {
+        SimulatedObjectStore objects = new SimulatedObjectStore(conf);
+        objects.initialize(null, null, "bench");
+        objects.setLatency(latency);
+        return objects;
+    }
+
+    static RadosFileSystemStore open(SimulatedObjectStore objects,
+                                     Configuration conf) throws IOException {
+        RadosFileSystemStore store = new RadosFileSystemStore();
+        store.initialize(objects, conf);
+        return store;
+    }
+
+    static void close(RadosFileSystemStore store) throws IOException {
+        try {
+            store.tearDown();
+            store.getObjectStore().close();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("store shutdown failed", e);
+        }
+    }
+}
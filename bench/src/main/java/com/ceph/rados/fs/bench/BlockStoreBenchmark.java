@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ceph.rados.fs.Block;
+import com.ceph.rados.fs.RadosFileSystemConfigKeys;
+import com.ceph.rados.fs.RadosFileSystemStore;
+
+/**
+ * Stores blocks from many threads at once through
+ * {@link RadosFileSystemStore#createAndStoreBlock(byte[], int)}, which
+ * contend on block id allocation, the codec pool and, for small blocks,
+ * the open pack. Each block is deleted again right away so the memory
+ * held stays bounded; the delete is part of the measured time. Run with
+ * <code>-t</code> to change the number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@Threads(8)
+public class BlockStoreBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Store {
+
+        @Param({"65536", "4194304"})
+        public int blockSize;
+
+        @Param({"none", "lz4"})
+        public String codec;
+
+        @Param({"false", "true"})
+        public boolean pack;
+
+        /** The latency of every object operation, see LatencyDistribution. */
+        @Param({"none", "fixed:200", "lognormal:200,5000"})
+        public String latency;
+
+        RadosFileSystemStore store;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            Configuration conf = new Configuration();
+            conf.set(RadosFileSystemConfigKeys.RADOS_COMPRESSION_CODEC_KEY, codec);
+            conf.setBoolean(RadosFileSystemConfigKeys.RADOS_PACK_ENABLED_KEY, pack);
+            // room for the checksums
+            conf.setLong(RadosFileSystemConfigKeys.RADOS_PACK_MAX_BLOCK_SIZE_KEY,
+                         2L * blockSize);
+            store = BenchmarkStores.open(BenchmarkStores.simulate(conf, latency), conf);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            BenchmarkStores.close(store);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Data {
+
+        byte[] data;
+
+        /**
+         * Fills the block with words drawn from a small vocabulary, which
+         * compresses about as well as text.
+         */
+        @Setup(Level.Trial)
+        public void setUp(Store store) {
+            data = new byte[store.blockSize];
+            Random random = new Random(Thread.currentThread().getId());
+            int i = 0;
+            while (i < data.length) {
+                String word = Integer.toString(random.nextInt(4096), 36) + ' ';
+                for (int j = 0; j < word.length() && i < data.length; j++) {
+                    data[i++] = (byte) word.charAt(j);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Block createAndStoreBlock(Store store, Data data) throws IOException {
+        Block block = store.store.createAndStoreBlock(data.data, data.data.length);
+        store.store.deleteBlock(block);
+        return block;
+    }
+}
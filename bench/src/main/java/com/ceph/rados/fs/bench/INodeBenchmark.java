@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ceph.rados.fs.Block;
+import com.ceph.rados.fs.INode;
+
+/**
+ * Encodes and decodes file INodes of various sizes with the current
+ * (version 2) encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class INodeBenchmark {
+
+    private static final int INODE_VERSION = 2;
+    private static final long BLOCK_SIZE = 64L * 1024 * 1024;
+
+    @Param({"1", "16", "1024"})
+    public int blocks;
+
+    @Param({"false", "true"})
+    public boolean packed;
+
+    private INode inode;
+    private byte[] serialized;
+
+    @Setup
+    public void setUp() throws IOException {
+        Block[] list = new Block[blocks];
+        for (int i = 0; i < blocks; i++) {
+            // ids are random across the whole range, like allocated ones
+            long id = (i * 0x9E3779B97F4A7C15L) ^ 0x5DEECE66DL;
+            list[i] = packed ? new Block(id, 100 * 1024, id + 1, i * 100L * 1024)
+                             : new Block(id, BLOCK_SIZE);
+        }
+        inode = new INode(INode.FileType.FILE, list,
+                          packed ? blocks * 100L * 1024 : blocks * BLOCK_SIZE,
+                          System.currentTimeMillis(), BLOCK_SIZE);
+        serialized = inode.serialize(INODE_VERSION);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return inode.serialize(INODE_VERSION);
+    }
+
+    @Benchmark
+    public INode deserialize() throws IOException {
+        return INode.deserialize(serialized);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs.bench;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ceph.rados.fs.INode;
+import com.ceph.rados.fs.RadosFileSystemConfigKeys;
+import com.ceph.rados.fs.RadosFileSystemStore;
+import com.ceph.rados.fs.SimulatedObjectStore;
+
+/**
+ * Lists synthetic namespaces of up to ten million entries.
+ * <p>
+ * A <code>flat</code> namespace puts every entry in one directory; a
+ * <code>tree</code> namespace spreads them over directories of
+ * {@link #FANOUT} files each. Linking entries one at a time reads an
+ * index shard per entry, which would dominate the setup of the large
+ * namespaces, so the namespace is written in the path-keyed layout and
+ * converted by the store in one pass when it starts.
+ * <p>
+ * The largest namespaces need a heap of several gigabytes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g"})
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+
+    static final int FANOUT = 1000;
+    private static final Path ROOT = new Path("/bench");
+
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"flat", "tree"})
+    public String shape;
+
+    /** The latency of every object operation, see LatencyDistribution. */
+    @Param({"none", "fixed:200", "lognormal:200,5000"})
+    public String latency;
+
+    private RadosFileSystemStore store;
+    private Path leaf;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Configuration conf = new Configuration();
+        conf.setBoolean(RadosFileSystemConfigKeys.RADOS_NAMESPACE_MIGRATE_KEY, true);
+        SimulatedObjectStore objects = BenchmarkStores.simulate(conf, "none");
+        byte[] dir = INode.DIRECTORY_INODE.serialize(1);
+        byte[] file = new INode(INode.FileType.FILE, null).serialize(1);
+        put(objects, "/", dir);
+        put(objects, ROOT.toString(), dir);
+        if ("flat".equals(shape)) {
+            for (int i = 0; i < entries; i++) {
+                put(objects, new Path(ROOT, "f" + i).toString(), file);
+            }
+            leaf = ROOT;
+        } else {
+            for (int d = 0; d * FANOUT < entries; d++) {
+                Path parent = new Path(ROOT, "d" + d);
+                put(objects, parent.toString(), dir);
+                for (int i = d * FANOUT; i < Math.min(entries, (d + 1) * FANOUT); i++) {
+                    put(objects, new Path(parent, "f" + i).toString(), file);
+                }
+            }
+            leaf = new Path(ROOT, "d0");
+        }
+        store = BenchmarkStores.open(objects, conf);
+        objects.setLatency(latency);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkStores.close(store);
+    }
+
+    /**
+     * Lists the top directory: every entry of a flat namespace, or the
+     * directories of a tree.
+     */
+    @Benchmark
+    public Set<Path> listSubPaths() throws IOException {
+        return store.listSubPaths(ROOT);
+    }
+
+    /**
+     * Lists one directory of {@link #FANOUT} files, or every entry of a
+     * flat namespace.
+     */
+    @Benchmark
+    public Set<Path> listLeaf() throws IOException {
+        return store.listSubPaths(leaf);
+    }
+
+    /**
+     * Walks the whole namespace. Every file is looked up as if it were a
+     * directory, so this takes minutes from a hundred thousand entries up;
+     * restrict it with <code>-p entries=...</code>.
+     */
+    @Benchmark
+    public Set<Path> listDeepSubPaths() throws IOException {
+        return store.listDeepSubPaths(ROOT);
+    }
+
+    private static void put(SimulatedObjectStore objects, String key, byte[] data)
+        throws IOException {
+        objects.writeFull(key, data, 0, data.length);
+    }
+}
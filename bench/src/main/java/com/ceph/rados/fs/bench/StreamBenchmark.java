@@ -0,0 +1,126 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs.bench;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ceph.rados.fs.Block;
+import com.ceph.rados.fs.RadosFileSystemConfigKeys;
+import com.ceph.rados.fs.RadosFileSystemStore;
+import com.ceph.rados.fs.RadosOutputStream;
+
+/**
+ * Streams one object through {@link RadosFileSystemStore#openBlock} and
+ * {@link RadosOutputStream} with caller buffers of several sizes. Each
+ * invocation moves the whole object, so the time per operation divided
+ * into {@link #OBJECT_SIZE} gives the throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamBenchmark {
+
+    static final int OBJECT_SIZE = 16 * 1024 * 1024;
+    private static final String WRITE_OBJECT = "bench_object";
+
+    @Param({"4096", "65536", "1048576"})
+    public int bufferSize;
+
+    /** The latency of every object operation, see LatencyDistribution. */
+    @Param({"none", "fixed:200", "lognormal:200,5000"})
+    public String latency;
+
+    /** Whether reads verify checksums stored after the data. */
+    @Param({"false", "true"})
+    public boolean verify;
+
+    private RadosFileSystemStore store;
+    private byte[] buffer;
+    private byte[] data;
+    private Block block;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Configuration conf = new Configuration();
+        if (!verify) {
+            conf.setInt(RadosFileSystemConfigKeys.RADOS_BYTES_PER_CHECKSUM_KEY, 0);
+        }
+        store = BenchmarkStores.open(BenchmarkStores.simulate(conf, latency), conf);
+        data = new byte[OBJECT_SIZE];
+        new Random(0).nextBytes(data);
+        block = store.createAndStoreBlock(data, data.length);
+        buffer = new byte[bufferSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkStores.close(store);
+    }
+
+    @Benchmark
+    public long read() throws IOException {
+        FSInputStream in = store.openBlock(block, verify);
+        long total = 0;
+        try {
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+                total += n;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        RadosOutputStream out = new RadosOutputStream(store, WRITE_OBJECT);
+        try {
+            for (int off = 0; off < OBJECT_SIZE; off += bufferSize) {
+                out.write(data, off, Math.min(bufferSize, OBJECT_SIZE - off));
+            }
+        } finally {
+            out.close();
+        }
+        return OBJECT_SIZE;
+    }
+
+}
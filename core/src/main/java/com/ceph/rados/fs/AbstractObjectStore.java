@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configured;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Implements the asynchronous operations of an {@link ObjectStore} by
+ * running the blocking ones on a pool of
+ * {@link RadosFileSystemConfigKeys#RADOS_OBJECT_STORE_ASYNC_THREADS_KEY}
+ * threads, started on first use, and reads into buffers through the
+ * array of a heap buffer or a copy for a direct one.
+ */
+public abstract class AbstractObjectStore extends Configured
+    implements ObjectStore {
+
+    private ExecutorService executor;
+    private boolean closed = false;
+
+    public int read(String oid, long offset, ByteBuffer buf) throws IOException {
+        if (!buf.hasRemaining()) {
+            return 0;
+        }
+        int read;
+        if (buf.hasArray()) {
+            read = read(oid, offset, buf.array(),
+                        buf.arrayOffset() + buf.position(), buf.remaining());
+            buf.position(buf.position() + read);
+        } else {
+            byte[] copy = new byte[buf.remaining()];
+            read = read(oid, offset, copy, 0, copy.length);
+            buf.put(copy, 0, read);
+        }
+        return read;
+    }
+
+    public Future<Long> statAsync(final String oid) {
+        return submit(new Callable<Long>() {
+            public Long call() throws IOException {
+                return stat(oid);
+            }
+        });
+    }
+
+    public Future<Integer> readAsync(final String oid, final long offset,
+                                     final byte[] buf, final int off, final int len) {
+        return submit(new Callable<Integer>() {
+            public Integer call() throws IOException {
+                return read(oid, offset, buf, off, len);
+            }
+        });
+    }
+
+    public Future<Void> writeAsync(final String oid, final long offset,
+                                   final byte[] buf, final int off, final int len) {
+        return submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                write(oid, offset, buf, off, len);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> writeFullAsync(final String oid, final byte[] buf,
+                                       final int off, final int len) {
+        return submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                writeFull(oid, buf, off, len);
+                return null;
+            }
+        });
+    }
+
+    public Future<Void> removeAsync(final String oid) {
+        return submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                remove(oid);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Stops the threads running asynchronous operations.
+     */
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private <T> Future<T> submit(Callable<T> task) {
+        return getExecutor().submit(task);
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (closed) {
+            throw new IllegalStateException("Object store closed");
+        }
+        if (executor == null) {
+            int threads = getConf() == null
+                ? RadosFileSystemConfigKeys.RADOS_OBJECT_STORE_ASYNC_THREADS_DEFAULT
+                : getConf().getInt(
+                    RadosFileSystemConfigKeys.RADOS_OBJECT_STORE_ASYNC_THREADS_KEY,
+                    RadosFileSystemConfigKeys.RADOS_OBJECT_STORE_ASYNC_THREADS_DEFAULT);
+            executor = Executors.newFixedThreadPool(Math.max(1, threads),
+                new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("rados-aio-%d").build());
+        }
+        return executor;
+    }
+}
@@ -20,17 +20,51 @@ package com.ceph.rados.fs;
 
 /**
  * Holds metadata about a block of data being stored in a {@link RadosFileSystemStore}.
+ * <p>
+ * A block is either an object of its own, or a record inside a pack
+ * object, in which case it also knows the pack and its offset there.
+ * A compressed block records its codec and the length of the stored,
+ * compressed data; {@link #getLength()} is always the length of the data
+ * itself. A block with checksums has a CRC32C of every
+ * {@link #getBytesPerChecksum()} bytes of its data appended to what is
+ * stored.
  */
 public class Block {
+  /** Size of one CRC32C. */
+  static final int CHECKSUM_SIZE = 4;
+
   private long id;
 
   private long length;
 
+  private boolean packed;
+
+  private long packId;
+
+  private long packOffset;
+
+  private int codec = BlockCodec.NONE;
+
+  private long compressedLength;
+
+  private int bytesPerChecksum;
+
   public Block(long id, long length) {
     this.id = id;
     this.length = length;
   }
 
+  /**
+   * Creates a block stored in pack <code>packId</code> at
+   * <code>packOffset</code>.
+   */
+  public Block(long id, long length, long packId, long packOffset) {
+    this(id, length);
+    this.packed = true;
+    this.packId = packId;
+    this.packOffset = packOffset;
+  }
+
   public long getId() {
     return id;
   }
@@ -39,9 +73,76 @@ public class Block {
     return length;
   }
 
+  public boolean isPacked() {
+    return packed;
+  }
+
+  public long getPackId() {
+    return packId;
+  }
+
+  public long getPackOffset() {
+    return packOffset;
+  }
+
+  /**
+   * Returns the codec of the stored data, {@link BlockCodec#NONE} if it
+   * is not compressed.
+   */
+  public int getCodec() {
+    return codec;
+  }
+
+  public boolean isCompressed() {
+    return codec != BlockCodec.NONE;
+  }
+
+  /**
+   * Returns the length of the data as stored, compressed or not, without
+   * the checksums.
+   */
+  public long getDataLength() {
+    return isCompressed() ? compressedLength : length;
+  }
+
+  /**
+   * Returns the number of bytes the block takes in its object or pack.
+   */
+  public long getStoredLength() {
+    return getDataLength() + getChecksumLength();
+  }
+
+  /**
+   * Returns the number of data bytes covered by each checksum, 0 if the
+   * block has no checksums.
+   */
+  public int getBytesPerChecksum() {
+    return bytesPerChecksum;
+  }
+
+  public long getChecksumLength() {
+    return bytesPerChecksum == 0 ? 0
+      : BlockChecksums.length(length, bytesPerChecksum);
+  }
+
+  /**
+   * Records how the block is stored: compressed with <code>codec</code>
+   * into <code>compressedLength</code> bytes, and followed by checksums of
+   * every <code>bytesPerChecksum</code> bytes, or none if 0.
+   */
+  void setEncoding(int codec, long compressedLength, int bytesPerChecksum) {
+    this.codec = codec;
+    this.compressedLength = compressedLength;
+    this.bytesPerChecksum = bytesPerChecksum;
+  }
+
   @Override
   public String toString() {
-    return "Block[" + id + ", " + length + "]";
+    return "Block[" + id + ", " + length
+      + (packed ? ", pack " + packId + "@" + packOffset : "")
+      + (isCompressed() ? ", " + BlockCodec.getName(codec) + " " + compressedLength : "")
+      + (bytesPerChecksum > 0 ? ", crc/" + bytesPerChecksum : "")
+      + "]";
   }
 
 }
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Computes and verifies the CRC32C checksums of block data, one for every
+ * <code>bytesPerChecksum</code> bytes, with the last chunk of a block
+ * possibly shorter. The checksums are kept as big-endian ints, the layout
+ * HDFS uses for its block metadata, so file checksums are comparable.
+ */
+final class BlockChecksums {
+
+    private BlockChecksums() {
+    }
+
+    static long length(long dataLength, int bytesPerChecksum) {
+        return (dataLength + bytesPerChecksum - 1) / bytesPerChecksum
+            * Block.CHECKSUM_SIZE;
+    }
+
+    /**
+     * Returns the checksums of the first <code>length</code> bytes of
+     * <code>data</code>.
+     */
+    static byte[] calculate(byte[] data, int length, int bytesPerChecksum) {
+        byte[] sums = new byte[(int) length(length, bytesPerChecksum)];
+        newChecksum(bytesPerChecksum).calculateChunkedSums(
+            ByteBuffer.wrap(data, 0, length), ByteBuffer.wrap(sums));
+        return sums;
+    }
+
+    /**
+     * Verifies <code>length</code> bytes of <code>data</code>, found at
+     * <code>blockOffset</code> in block <code>name</code>, against the
+     * checksums of the whole block stored at <code>sumsOffset</code> in
+     * <code>sums</code>. The data must start on a chunk boundary and end on
+     * one or at the end of the block.
+     */
+    static void verify(byte[] data, int length, long blockOffset, byte[] sums,
+                       int sumsOffset, int bytesPerChecksum, String name)
+        throws ChecksumException {
+        int first = (int) (blockOffset / bytesPerChecksum) * Block.CHECKSUM_SIZE;
+        newChecksum(bytesPerChecksum).verifyChunkedSums(
+            ByteBuffer.wrap(data, 0, length),
+            ByteBuffer.wrap(sums, sumsOffset + first,
+                            (int) length(length, bytesPerChecksum)),
+            name, blockOffset);
+    }
+
+    private static DataChecksum newChecksum(int bytesPerChecksum) {
+        return DataChecksum.newDataChecksum(DataChecksum.Type.CRC32C,
+                                            bytesPerChecksum);
+    }
+}
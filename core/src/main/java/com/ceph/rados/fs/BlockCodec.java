@@ -0,0 +1,338 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses block data.
+ * <p>
+ * Two codecs are available: LZ4, in its block format, which is fast
+ * enough to keep up with the network, and Deflate, which compresses
+ * better at a higher CPU cost. Both are pure Java, so they need no
+ * native libraries on the client.
+ * <p>
+ * A block that does not shrink below the configured ratio is stored as
+ * it is. For large blocks a few slices are compressed first, so
+ * incompressible data such as media or already compressed files costs
+ * only a sample instead of a full pass.
+ */
+class BlockCodec {
+    static final int NONE = 0;
+    static final int LZ4 = 1;
+    static final int DEFLATE = 2;
+
+    private static final String[] NAMES = { "none", "lz4", "deflate" };
+
+    private static final int SAMPLE_SLICES = 8;
+    private static final int SAMPLE_SLICE_SIZE = 4 * 1024;
+
+    private final int codec;
+    private final int level;
+    private final double maxRatio;
+
+    /**
+     * @param level the Deflate compression level
+     * @param maxRatio the largest compressed to original size ratio at
+     *        which a block is still stored compressed
+     */
+    BlockCodec(int codec, int level, double maxRatio) {
+        if (codec != LZ4 && codec != DEFLATE) {
+            throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+        this.codec = codec;
+        this.level = level;
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * Returns the codec called <code>name</code>.
+     */
+    static int forName(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name.trim())) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown compression codec " + name);
+    }
+
+    static String getName(int codec) {
+        return codec >= 0 && codec < NAMES.length ? NAMES[codec] : "codec" + codec;
+    }
+
+    int getCodec() {
+        return codec;
+    }
+
+    /**
+     * Compresses the first <code>length</code> bytes of <code>data</code>,
+     * or returns null if they are not worth storing compressed.
+     */
+    byte[] compress(byte[] data, int length) {
+        int sampleSize = SAMPLE_SLICES * SAMPLE_SLICE_SIZE;
+        if (length >= 4 * sampleSize) {
+            byte[] sample = new byte[sampleSize];
+            long stride = (length - SAMPLE_SLICE_SIZE) / (SAMPLE_SLICES - 1);
+            for (int i = 0; i < SAMPLE_SLICES; i++) {
+                System.arraycopy(data, (int) (i * stride), sample,
+                                 i * SAMPLE_SLICE_SIZE, SAMPLE_SLICE_SIZE);
+            }
+            if (encode(sample, sampleSize) == null) {
+                return null;
+            }
+        }
+        return encode(data, length);
+    }
+
+    private byte[] encode(byte[] data, int length) {
+        int limit = (int) (length * maxRatio);
+        if (codec == LZ4) {
+            byte[] out = new byte[lz4MaxCompressedLength(length)];
+            int n = lz4Compress(data, length, out);
+            return n <= limit ? Arrays.copyOf(out, n) : null;
+        }
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            // one byte of room tells a result at the limit from a cut-off one
+            byte[] out = new byte[limit + 1];
+            int n = 0;
+            while (!deflater.finished() && n < out.length) {
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return deflater.finished() && n <= limit ? Arrays.copyOf(out, n) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses the first <code>dataLength</code> bytes of
+     * <code>data</code>, written by <code>codec</code>, into
+     * <code>length</code> bytes.
+     */
+    static byte[] decompress(int codec, byte[] data, int dataLength, int length)
+        throws IOException {
+        if (codec == NONE) {
+            return data;
+        }
+        byte[] out = new byte[length];
+        switch (codec) {
+        case LZ4:
+            lz4Decompress(data, dataLength, out);
+            return out;
+        case DEFLATE:
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(data, 0, dataLength);
+                int n = 0;
+                while (n < length && !inflater.finished()) {
+                    int read = inflater.inflate(out, n, length - n);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += read;
+                }
+                // the end of the stream may follow the last byte of output
+                if (n == length && !inflater.finished()
+                    && inflater.inflate(new byte[1]) > 0) {
+                    throw new IOException("Compressed block is corrupt");
+                }
+                if (n != length || !inflater.finished()) {
+                    throw new IOException("Compressed block is truncated");
+                }
+                return out;
+            } catch (DataFormatException e) {
+                throw new IOException("Compressed block is corrupt", e);
+            } finally {
+                inflater.end();
+            }
+        default:
+            throw new IOException("Unknown compression codec " + codec);
+        }
+    }
+
+    // LZ4 block format: sequences of a token, literals, a two byte offset
+    // and a match length, the last sequence holding literals only.
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+    private static final int HASH_LOG = 14;
+    private static final int SKIP_TRIGGER = 6;
+
+    static int lz4MaxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8
+            | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int value) {
+        return (value * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    static int lz4Compress(byte[] src, int length, byte[] dst) {
+        int[] table = new int[1 << HASH_LOG];
+        Arrays.fill(table, -1);
+        int anchor = 0;
+        int op = 0;
+        int limit = length - MF_LIMIT;
+        int matchEnd = length - LAST_LITERALS;
+        int ip = 0;
+        int misses = 0;
+        while (ip < limit) {
+            int h = hash(readInt(src, ip));
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_DISTANCE
+                || readInt(src, ref) != readInt(src, ip)) {
+                // step faster through data that does not match
+                ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchEnd
+                   && src[ip + matchLength] == src[ref + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+            if (ip - 2 < limit) {
+                table[hash(readInt(src, ip - 2))] = ip - 2;
+            }
+        }
+        return writeSequence(dst, op, src, anchor, length - anchor, 0, 0);
+    }
+
+    /**
+     * Writes a sequence; a <code>matchLength</code> of 0 ends the block.
+     */
+    private static int writeSequence(byte[] dst, int op, byte[] src, int literals,
+                                     int literalLength, int offset, int matchLength) {
+        int token = op++;
+        int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        dst[token] = (byte) (Math.min(literalLength, 15) << 4 | Math.min(matchCode, 15));
+        op = writeLength(dst, op, literalLength);
+        System.arraycopy(src, literals, dst, op, literalLength);
+        op += literalLength;
+        if (matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            op = writeLength(dst, op, matchCode);
+        }
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[op++] = (byte) 255;
+                length -= 255;
+            }
+            dst[op++] = (byte) length;
+        }
+        return op;
+    }
+
+    static void lz4Decompress(byte[] src, int srcLength, byte[] dst)
+        throws IOException {
+        int ip = 0;
+        int op = 0;
+        try {
+            while (true) {
+                if (ip >= srcLength) {
+                    throw new IOException("Compressed block is truncated");
+                }
+                int token = src[ip++] & 0xff;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        if (ip >= srcLength) {
+                            throw new IOException("Compressed block is truncated");
+                        }
+                        b = src[ip++] & 0xff;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                if (literalLength > srcLength - ip) {
+                    throw new IOException("Compressed block is truncated");
+                }
+                System.arraycopy(src, ip, dst, op, literalLength);
+                ip += literalLength;
+                op += literalLength;
+                if (ip == srcLength) {
+                    break;
+                }
+                if (srcLength - ip < 2) {
+                    throw new IOException("Compressed block is truncated");
+                }
+                int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+                ip += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        if (ip >= srcLength) {
+                            throw new IOException("Compressed block is truncated");
+                        }
+                        b = src[ip++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (offset == 0 || offset > op || matchLength > dst.length - op) {
+                    throw new IOException("Compressed block is corrupt");
+                }
+                int ref = op - offset;
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                    op += matchLength;
+                } else {
+                    // the match overlaps the bytes it produces
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[op++] = dst[ref++];
+                    }
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Compressed block is corrupt");
+        }
+        if (op != dst.length) {
+            throw new IOException("Compressed block is truncated");
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out block ids without a lock and without asking the cluster
+ * whether an id is taken.
+ * <p>
+ * An id is a 40-bit client prefix followed by a 24-bit counter. The first
+ * prefix is the librados instance id, which is unique among the clients
+ * connected to a cluster, followed by a sequence number that is unique
+ * among the allocators of this process, so that stores sharing one
+ * connection do not hand out the same ids. When the counter runs out, or
+ * the instance id or sequence number does not fit, the allocator moves to
+ * a random prefix with the top bit set, so it can never meet a prefix
+ * derived from an instance id.
+ */
+public class BlockIdAllocator {
+    private static final int COUNTER_BITS = 24;
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+    private static final int PREFIX_BITS = 64 - COUNTER_BITS;
+    private static final long PREFIX_MASK = (1L << PREFIX_BITS) - 1;
+    private static final long RANDOM_PREFIX = 1L << (PREFIX_BITS - 1);
+    private static final int SEQUENCE_BITS = 8;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicLong next;
+
+    /**
+     * @param instanceId the librados instance id of this client, or a
+     *        negative value to start with a random prefix
+     */
+    public BlockIdAllocator(long instanceId) {
+        long sequence = SEQUENCE.getAndIncrement();
+        long prefix = instanceId >= 0 && instanceId < RANDOM_PREFIX >>> SEQUENCE_BITS
+            && sequence < 1L << SEQUENCE_BITS ?
+            instanceId << SEQUENCE_BITS | sequence : randomPrefix();
+        next = new AtomicLong(prefix << COUNTER_BITS);
+    }
+
+    public long nextId() {
+        while (true) {
+            long id = next.get();
+            long following = ((id + 1) & COUNTER_MASK) == 0 ?
+                randomPrefix() << COUNTER_BITS : id + 1;
+            if (next.compareAndSet(id, following)) {
+                return id;
+            }
+        }
+    }
+
+    private long randomPrefix() {
+        return (random.nextLong() & PREFIX_MASK) | RANDOM_PREFIX;
+    }
+}
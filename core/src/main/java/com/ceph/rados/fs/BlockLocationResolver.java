@@ -0,0 +1,45 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+
+/**
+ * Maps the objects holding block data to the hosts that store them, so
+ * that block locations can be reported for locality-aware scheduling.
+ * <p>
+ * An implementation is named by
+ * {@link RadosFileSystemConfigKeys#RADOS_BLOCK_LOCATION_RESOLVER_KEY} and
+ * created with {@link org.apache.hadoop.util.ReflectionUtils}, so it may be
+ * {@link org.apache.hadoop.conf.Configurable}. It is called from several
+ * threads at once.
+ */
+public interface BlockLocationResolver {
+
+    /**
+     * Called once, after the store is connected.
+     */
+    void initialize(RadosFileSystemStore store) throws IOException;
+
+    /**
+     * Returns the hosts storing <code>object</code>, the primary first, or
+     * an empty array if they are not known.
+     */
+    String[] getHosts(String object) throws IOException;
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps byte arrays that are no longer used, up to a total size, and
+ * hands out the smallest one that is large enough. It is shared by the
+ * streams and uploads of a store, so reading one block after another
+ * reuses the arrays of the blocks already read, and uploads reuse their
+ * chunks.
+ */
+class BufferPool {
+
+    private final long capacity;
+    private final List<byte[]> free = new ArrayList<byte[]>();
+    private long held = 0;
+
+    /**
+     * @param capacity most bytes kept at a time
+     */
+    BufferPool(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns an array of at least <code>length</code> bytes.
+     */
+    byte[] take(int length) {
+        synchronized (this) {
+            int best = -1;
+            for (int i = 0; i < free.size(); i++) {
+                int size = free.get(i).length;
+                if (size >= length && (best < 0 || size < free.get(best).length)) {
+                    best = i;
+                }
+            }
+            if (best >= 0) {
+                byte[] buf = free.remove(best);
+                held -= buf.length;
+                return buf;
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Gives back an array that nothing refers to any more.
+     */
+    synchronized void put(byte[] buf) {
+        if (held + buf.length <= capacity) {
+            free.add(buf);
+            held += buf.length;
+        }
+    }
+
+    synchronized void clear() {
+        free.clear();
+        held = 0;
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSInputStream;
+
+/**
+ * Reads a block whose data is fetched whole, such as a packed or a
+ * compressed block. The data is read, and decompressed, in the background;
+ * the first read waits for it.
+ */
+class BufferedBlockInputStream extends FSInputStream implements ByteBufferReadable {
+
+    private final Block block;
+    private Future<byte[]> fetch;
+    private byte[] data;
+    private long pos = 0;
+    private boolean closed = false;
+
+    BufferedBlockInputStream(Block block, Future<byte[]> fetch) {
+        this.block = block;
+        this.fetch = fetch;
+    }
+
+    @Override
+    public synchronized long getPos() throws IOException {
+        return pos;
+    }
+
+    @Override
+    public synchronized void seek(long targetPos) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (targetPos < 0) {
+            throw new EOFException("Cannot seek to negative offset " + targetPos);
+        }
+        pos = targetPos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return (int) Math.max(0, block.getLength() - pos);
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return data[(int) pos++] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte buf[], int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = (int) Math.min(len, block.getLength() - pos);
+        System.arraycopy(data, (int) pos, buf, off, n);
+        pos += n;
+        return n;
+    }
+
+    public synchronized int read(ByteBuffer buf) throws IOException {
+        if (!buf.hasRemaining()) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = (int) Math.min(buf.remaining(), block.getLength() - pos);
+        buf.put(data, (int) pos, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * @return false at the end of the block
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (pos >= block.getLength()) {
+            return false;
+        }
+        if (data == null) {
+            try {
+                data = fetch.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted reading " + block);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("block read failed", e.getCause());
+            }
+            fetch = null;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        if (fetch != null) {
+            fetch.cancel(true);
+            fetch = null;
+        }
+        data = null;
+        super.close();
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.util.Time;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.ceph.rados.Rados;
+import com.google.common.base.Charsets;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.LongByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Asks the monitors where objects are stored.
+ * <p>
+ * The placement group of an object is computed here, as the OSDs do, from
+ * the pool's <code>pg_num</code> given by <code>osd dump</code>.
+ * <code>pg map</code> gives the acting OSDs of a placement group, primary
+ * first, and <code>osd find</code> the CRUSH host of an OSD. Both are
+ * cached, so resolving the blocks of a file costs at most one monitor
+ * command per placement group, and the cache is dropped after
+ * {@link #REFRESH_INTERVAL} to follow changes of the OSD map. A pool that
+ * does not hash object names with rjenkins costs an <code>osd map</code>
+ * per object instead. The Java binding does not wrap
+ * <code>rados_mon_command</code>, so it is called through JNA on the
+ * store's cluster handle.
+ */
+public class CephBlockLocationResolver implements BlockLocationResolver {
+
+    private static final String[] NO_HOSTS = new String[0];
+    // the object_hash of a pool hashing names with rjenkins
+    private static final int HASH_RJENKINS = 2;
+
+    /**
+     * Milliseconds for which placements and hosts are cached.
+     */
+    static final long REFRESH_INTERVAL = 60 * 1000;
+
+    interface MonCommand extends Library {
+        MonCommand INSTANCE = (MonCommand) Native.loadLibrary("rados", MonCommand.class);
+
+        int rados_mon_command(Pointer cluster, String[] cmd, long cmdlen,
+                              byte[] inbuf, long inbuflen,
+                              PointerByReference outbuf, LongByReference outbuflen,
+                              PointerByReference outs, LongByReference outslen);
+
+        void rados_buffer_free(Pointer buf);
+    }
+
+    /**
+     * The placement of the pool's objects as of one OSD map.
+     */
+    private static class Placement {
+        final long loaded = Time.monotonicNow();
+        long poolId;
+        int pgNum;
+        int pgNumMask;
+        boolean rjenkins;
+        final ConcurrentHashMap<Integer, String[]> pgHosts =
+            new ConcurrentHashMap<Integer, String[]>();
+        final ConcurrentHashMap<Integer, String> osdHosts =
+            new ConcurrentHashMap<Integer, String>();
+    }
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private Pointer cluster;
+    private String pool;
+    private Placement placement;
+
+    public void initialize(RadosFileSystemStore store) throws IOException {
+        ObjectStore backing = store.getObjectStore();
+        if (backing instanceof InstrumentedObjectStore) {
+            backing = ((InstrumentedObjectStore) backing).getWrapped();
+        }
+        if (!(backing instanceof LibradosObjectStore)) {
+            throw new IOException("Block locations need a store backed by librados");
+        }
+        LibradosObjectStore objects = (LibradosObjectStore) backing;
+        try {
+            Field field = Rados.class.getDeclaredField("clusterPtr");
+            field.setAccessible(true);
+            cluster = (Pointer) field.get(objects.getRados());
+            pool = objects.getPoolName();
+        } catch (Exception e) {
+            throw new IOException("Cannot use the cluster handle for monitor commands", e);
+        }
+    }
+
+    public String[] getHosts(String object) throws IOException {
+        Placement placement = getPlacement();
+        if (!placement.rjenkins) {
+            return hosts(placement, command("{\"prefix\": \"osd map\", \"pool\": "
+                + quote(pool) + ", \"object\": " + quote(object)
+                + ", \"format\": \"json\"}"));
+        }
+        int pg = stableMod(hash(object.getBytes(Charsets.UTF_8)),
+                           placement.pgNum, placement.pgNumMask);
+        String[] hosts = placement.pgHosts.get(pg);
+        if (hosts == null) {
+            hosts = hosts(placement, command("{\"prefix\": \"pg map\", \"pgid\": \""
+                + placement.poolId + "." + Integer.toHexString(pg)
+                + "\", \"format\": \"json\"}"));
+            placement.pgHosts.put(pg, hosts);
+        }
+        return hosts;
+    }
+
+    /**
+     * Returns the placement of the pool, reading it again once it is
+     * older than the refresh interval.
+     */
+    private synchronized Placement getPlacement() throws IOException {
+        if (placement != null
+            && Time.monotonicNow() - placement.loaded < REFRESH_INTERVAL) {
+            return placement;
+        }
+        JsonNode dump = command("{\"prefix\": \"osd dump\", \"format\": \"json\"}");
+        for (JsonNode entry : dump.path("pools")) {
+            if (pool.equals(entry.path("pool_name").getTextValue())) {
+                Placement loaded = new Placement();
+                loaded.poolId = entry.path("pool").getLongValue();
+                loaded.pgNum = entry.path("pg_num").getIntValue();
+                loaded.pgNumMask = (1 << (32 - Integer.numberOfLeadingZeros(loaded.pgNum - 1))) - 1;
+                loaded.rjenkins = loaded.pgNum > 0
+                    && entry.path("object_hash").getIntValue() == HASH_RJENKINS;
+                placement = loaded;
+                return placement;
+            }
+        }
+        throw new IOException("Pool " + pool + " is not in the OSD map");
+    }
+
+    /**
+     * Returns the distinct hosts of the acting OSDs in the result of an
+     * <code>osd map</code> or <code>pg map</code>, primary first.
+     */
+    private String[] hosts(Placement placement, JsonNode map) throws IOException {
+        JsonNode acting = map.get("acting");
+        if (acting == null || !acting.isArray()) {
+            return NO_HOSTS;
+        }
+        Set<String> hosts = new LinkedHashSet<String>();
+        for (JsonNode osd : acting) {
+            hosts.add(host(placement, osd.getIntValue()));
+        }
+        return hosts.toArray(new String[hosts.size()]);
+    }
+
+    private String host(Placement placement, int osd) throws IOException {
+        ConcurrentHashMap<Integer, String> osdHosts = placement.osdHosts;
+        String host = osdHosts.get(osd);
+        if (host == null) {
+            JsonNode found = command("{\"prefix\": \"osd find\", \"id\": " + osd
+                                     + ", \"format\": \"json\"}");
+            JsonNode crushHost = found.path("crush_location").get("host");
+            if (crushHost != null) {
+                host = crushHost.getTextValue();
+            } else {
+                // no CRUSH host: fall back to the address, "ip:port/nonce"
+                String ip = found.path("ip").getTextValue();
+                host = ip == null ? "osd." + osd : ip.substring(0, ip.lastIndexOf(':'));
+            }
+            osdHosts.put(osd, host);
+        }
+        return host;
+    }
+
+    private JsonNode command(String cmd) throws IOException {
+        PointerByReference outbuf = new PointerByReference();
+        LongByReference outbuflen = new LongByReference();
+        PointerByReference outs = new PointerByReference();
+        LongByReference outslen = new LongByReference();
+        int ret = MonCommand.INSTANCE.rados_mon_command(cluster, new String[] { cmd }, 1,
+            null, 0, outbuf, outbuflen, outs, outslen);
+        try {
+            if (ret < 0) {
+                String status = outs.getValue() == null ? ""
+                    : new String(outs.getValue().getByteArray(0, (int) outslen.getValue()), "UTF-8");
+                throw new IOException("Monitor command failed (" + ret + "): " + status);
+            }
+            if (outbuf.getValue() == null) {
+                throw new IOException("Monitor command returned nothing: " + cmd);
+            }
+            byte[] out = outbuf.getValue().getByteArray(0, (int) outbuflen.getValue());
+            return mapper.readTree(new String(out, "UTF-8"));
+        } finally {
+            if (outbuf.getValue() != null) {
+                MonCommand.INSTANCE.rados_buffer_free(outbuf.getValue());
+            }
+            if (outs.getValue() != null) {
+                MonCommand.INSTANCE.rados_buffer_free(outs.getValue());
+            }
+        }
+    }
+
+    /**
+     * Folds a hash onto the <code>pgNum</code> placement groups of a pool
+     * so that only a few objects move when it grows, as
+     * <code>ceph_stable_mod</code> does.
+     */
+    static int stableMod(int x, int pgNum, int pgNumMask) {
+        return (x & pgNumMask) < pgNum ? x & pgNumMask : x & (pgNumMask >>> 1);
+    }
+
+    /**
+     * Robert Jenkins' hash of <code>key</code>, as
+     * <code>ceph_str_hash_rjenkins</code> computes it.
+     */
+    static int hash(byte[] key) {
+        int a = 0x9e3779b9;
+        int b = a;
+        int c = 0;
+        int k = 0;
+        int len = key.length;
+        while (len >= 12) {
+            a += word(key, k);
+            b += word(key, k + 4);
+            c += word(key, k + 8);
+            int[] abc = mix(a, b, c);
+            a = abc[0];
+            b = abc[1];
+            c = abc[2];
+            k += 12;
+            len -= 12;
+        }
+        c += key.length;
+        // the tail fills a, then b, then c above its low byte, which
+        // holds the length
+        for (int i = 0; i < len; i++) {
+            int v = key[k + i] & 0xff;
+            if (i < 4) {
+                a += v << (8 * i);
+            } else if (i < 8) {
+                b += v << (8 * (i - 4));
+            } else {
+                c += v << (8 * (i - 7));
+            }
+        }
+        return mix(a, b, c)[2];
+    }
+
+    private static int word(byte[] key, int k) {
+        return (key[k] & 0xff) | (key[k + 1] & 0xff) << 8
+            | (key[k + 2] & 0xff) << 16 | (key[k + 3] & 0xff) << 24;
+    }
+
+    private static int[] mix(int a, int b, int c) {
+        a -= b; a -= c; a ^= c >>> 13;
+        b -= c; b -= a; b ^= a << 8;
+        c -= a; c -= b; c ^= b >>> 13;
+        a -= b; a -= c; a ^= c >>> 12;
+        b -= c; b -= a; b ^= a << 16;
+        c -= a; c -= b; c ^= b >>> 5;
+        a -= b; a -= c; a ^= c >>> 3;
+        b -= c; b -= a; b ^= a << 10;
+        c -= a; c -= b; c ^= b >>> 15;
+        return new int[] { a, b, c };
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the entries of every directory, each mapping a child name to the
+ * child's inode id, in index objects keyed by the directory's own inode id.
+ * Listing a directory costs O(children), and looking up one name reads a
+ * shard per generation, usually one.
+ * <p>
+ * A directory index is a set of append-only logs of add/remove records,
+ * the shards, and the shard of a name is chosen by its hash. Shards never
+ * trade entries: once a shard of the newest generation holds more than the
+ * configured number of entries, a new generation with twice as many shards
+ * is added, and new names go there while older generations keep theirs.
+ * A remove is appended in every generation, including any added while
+ * it is being appended. The shard counts of the
+ * generations live in an xattr of shard 0, changed only by compare and
+ * swap, so a client that appends with an outdated list of generations
+ * still writes a record that is found.
+ * <p>
+ * A shard is compacted, by whichever client finds it holding about twice
+ * as many records as that, under an {@link ObjectSeals} seal, so that
+ * records appended meanwhile by other clients are not lost. Reads never
+ * rewrite the index.
+ */
+class DirectoryIndex {
+    static final String INDEX_PREFIX = "index_";
+
+    private static final String SHARDS_XATTR = "shards";
+    // 1 was the id-less add record of the path-keyed layout
+    private static final byte OP_ADD = 3;
+    private static final byte OP_REMOVE = 2;
+    // appends between looks at the size of a shard, on average
+    private static final int SIZE_CHECKS_PER_LIMIT = 16;
+
+    private static final Log LOG =
+        LogFactory.getLog(DirectoryIndex.class.getName());
+
+    private final ObjectStore objects;
+    private final ObjectSeals seals;
+    private final int maxShardEntries;
+    private final int sizeCheckInterval;
+    private final Random random = new Random();
+
+    /**
+     * The generations of the index of one directory.
+     */
+    private static class Layout {
+        /** the shards xattr as read, "" if it is not set */
+        final String raw;
+        final int[] counts;
+        final int[] firsts;
+        final int total;
+
+        Layout(String raw) throws IOException {
+            this.raw = raw == null ? "" : raw;
+            String[] fields = this.raw.isEmpty() ? new String[] { "1" } : this.raw.split(",");
+            counts = new int[fields.length];
+            firsts = new int[fields.length];
+            int shards = 0;
+            try {
+                for (int g = 0; g < fields.length; g++) {
+                    counts[g] = Integer.parseInt(fields[g]);
+                    firsts[g] = shards;
+                    shards += counts[g];
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("corrupt index shard counts " + raw);
+            }
+            total = shards;
+        }
+
+        int newest() {
+            return counts.length - 1;
+        }
+
+        int shardOf(String name, int generation) {
+            return firsts[generation]
+                + (name.hashCode() & Integer.MAX_VALUE) % counts[generation];
+        }
+    }
+
+    /**
+     * @param sealTimeout milliseconds after which a compaction that has not
+     *        finished is taken to have failed
+     */
+    DirectoryIndex(ObjectStore objects, int maxShardEntries, long sealTimeout) {
+        this.objects = objects;
+        this.seals = new ObjectSeals(objects, sealTimeout);
+        this.maxShardEntries = maxShardEntries;
+        this.sizeCheckInterval = Math.max(1, maxShardEntries / SIZE_CHECKS_PER_LIMIT);
+    }
+
+    /**
+     * Records <code>name</code>, with inode id <code>id</code>, as a child
+     * of directory <code>dirKey</code>.
+     */
+    void add(String dirKey, String name, long id) throws IOException {
+        Layout layout = layout(dirKey);
+        String key = shardKey(dirKey, layout.shardOf(name, layout.newest()));
+        byte[] record = record(OP_ADD, name, id);
+        append(key, record);
+        maintain(dirKey, layout, key, record.length, true);
+    }
+
+    /**
+     * Removes <code>name</code> from the children of <code>dirKey</code>.
+     */
+    void remove(String dirKey, String name) throws IOException {
+        byte[] record = record(OP_REMOVE, name, -1);
+        Layout layout = layout(dirKey);
+        int done = 0;
+        while (true) {
+            for (int g = layout.newest(); g >= done; g--) {
+                String key = shardKey(dirKey, layout.shardOf(name, g));
+                append(key, record);
+                maintain(dirKey, layout, key, record.length, g == layout.newest());
+            }
+            // an add made with a newer layout than ours is in a generation
+            // we have not seen; the layout read after our appends has it
+            done = layout.counts.length;
+            layout = layout(dirKey);
+            if (layout.counts.length == done) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the inode id of child <code>name</code> of
+     * <code>dirKey</code>, or -1, which is never an inode id, if there is
+     * no such child.
+     */
+    long lookup(String dirKey, String name) throws IOException {
+        Layout layout = layout(dirKey);
+        for (int g = layout.newest(); g >= 0; g--) {
+            Long id = replay(RadosFileSystemStore.readObject(
+                objects, shardKey(dirKey, layout.shardOf(name, g)))).get(name);
+            if (id != null) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the children of <code>dirKey</code> by name with their inode
+     * ids, or an empty map if the directory has no index.
+     */
+    SortedMap<String, Long> list(String dirKey) throws IOException {
+        int shards = getShardCount(dirKey);
+        SortedMap<String, Long> entries = new TreeMap<String, Long>();
+        for (int i = 0; i < shards; i++) {
+            entries.putAll(replay(RadosFileSystemStore.readObject(objects, shardKey(dirKey, i))));
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the live entries of one shard of the index of
+     * <code>dirKey</code>, by name.
+     */
+    SortedMap<String, Long> listShard(String dirKey, int shard)
+        throws IOException {
+        return new TreeMap<String, Long>(replay(
+            RadosFileSystemStore.readObject(objects, shardKey(dirKey, shard))));
+    }
+
+    /**
+     * Removes every shard of the index of <code>dirKey</code>.
+     */
+    void destroy(String dirKey) throws IOException {
+        int shards = getShardCount(dirKey);
+        for (int i = shards - 1; i >= 0; i--) {
+            String key = shardKey(dirKey, i);
+            try {
+                objects.remove(key);
+            } catch (Exception e) {
+                // no such shard
+            }
+        }
+    }
+
+    static boolean isIndexKey(String key) {
+        return key.startsWith(INDEX_PREFIX);
+    }
+
+    int getShardCount(String dirKey) throws IOException {
+        return layout(dirKey).total;
+    }
+
+    private Layout layout(String dirKey) throws IOException {
+        try {
+            return new Layout(objects.getXAttr(shardKey(dirKey, 0), SHARDS_XATTR));
+        } catch (FileNotFoundException e) {
+            return new Layout(null);
+        }
+    }
+
+    private void append(String key, byte[] record) throws IOException {
+        try {
+            seals.append(key, record, 0, record.length);
+        } catch (InterruptedIOException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("index update failed", e);
+        }
+    }
+
+    /**
+     * Compacts the shard <code>key</code>, just appended a record of
+     * <code>recordLength</code> bytes, once its size says it holds twice
+     * the configured number of records, and adds a generation if it is a
+     * full shard of the newest one. The size is looked at once every so
+     * many appends, whichever clients make them.
+     */
+    private void maintain(String dirKey, Layout layout, String key, int recordLength,
+                          boolean newest) throws IOException {
+        if (random.nextInt(sizeCheckInterval) != 0) {
+            return;
+        }
+        try {
+            if (objects.stat(key) / recordLength < 2L * maxShardEntries) {
+                return;
+            }
+        } catch (FileNotFoundException e) {
+            // the directory went away
+            return;
+        }
+        int live = compact(key);
+        if (newest && live > maxShardEntries) {
+            String grown = (layout.raw.isEmpty() ? "1" : layout.raw) + ","
+                + 2 * layout.counts[layout.newest()];
+            try {
+                if (objects.setXAttrIf(shardKey(dirKey, 0), SHARDS_XATTR,
+                                       layout.raw, grown)
+                    && LOG.isDebugEnabled()) {
+                    LOG.debug("Index of " + dirKey + " now has generations " + grown);
+                }
+            } catch (FileNotFoundException e) {
+                // the directory went away
+            }
+        }
+    }
+
+    /**
+     * Rewrites the shard <code>key</code> with its live entries only, and
+     * returns their number, or -1 if another client is compacting it.
+     */
+    private int compact(String key) throws IOException {
+        String token = seals.seal(key);
+        if (token == null) {
+            return -1;
+        }
+        try {
+            Map<String, Long> live = replay(RadosFileSystemStore.readObject(objects, key));
+            seals.replace(key, token, encode(live));
+            return live.size();
+        } catch (IOException e) {
+            seals.unseal(key, token);
+            throw new IOException("index compaction failed", e);
+        }
+    }
+
+    private static byte[] record(byte op, String name, long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(op);
+        out.writeUTF(name);
+        if (op == OP_ADD) {
+            out.writeLong(id);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Map<String, Long> replay(byte[] data) throws IOException {
+        Map<String, Long> entries = new HashMap<String, Long>();
+        if (data == null) {
+            return entries;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            while (true) {
+                byte op = in.readByte();
+                String name = in.readUTF();
+                if (op == OP_ADD) {
+                    entries.put(name, in.readLong());
+                } else if (op == OP_REMOVE) {
+                    entries.remove(name);
+                } else {
+                    throw new IOException("corrupt index record");
+                }
+            }
+        } catch (EOFException e) {
+            // end of log
+        }
+        return entries;
+    }
+
+    private static byte[] encode(Map<String, Long> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Map.Entry<String, Long> entry : entries.entrySet()) {
+            out.writeByte(OP_ADD);
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static String shardKey(String dirKey, int shard) {
+        return INDEX_PREFIX + shard + "_" + dirKey;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+
+/**
+ * Iterates over the children of a directory together with their
+ * {@link INode}s.
+ * <p>
+ * The directory index is read one shard at a time, and the INodes of the
+ * entries are fetched on the store's I/O executor, up to the configured
+ * number ahead of the caller. The first entries are therefore returned
+ * before the rest of the directory has been read, and memory stays bounded
+ * by one shard. Entries come out in name order within a shard; children
+ * deleted while the listing runs are skipped.
+ */
+class DirectoryLister implements RemoteIterator<Map.Entry<Path, INode>> {
+
+    private final RadosFileSystemStore store;
+    private final DirectoryIndex index;
+    private final Path dir;
+    private final String dirKey;
+    private int shards = -1;
+    private final int parallelism;
+
+    private int shard = 0;
+    private Iterator<Map.Entry<String, Long>> entries;
+    private final LinkedList<Future<Child>> inFlight = new LinkedList<Future<Child>>();
+    private Child next;
+
+    /**
+     * A child with its INode and inode id.
+     */
+    static class Child extends AbstractMap.SimpleImmutableEntry<Path, INode> {
+        private static final long serialVersionUID = 1L;
+
+        final long id;
+
+        Child(Path path, long id, INode inode) {
+            super(path, inode);
+            this.id = id;
+        }
+    }
+
+    DirectoryLister(RadosFileSystemStore store, DirectoryIndex index,
+                    Path dir, String dirKey, int parallelism) {
+        this.store = store;
+        this.index = index;
+        this.dir = dir;
+        this.dirKey = dirKey;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public boolean hasNext() throws IOException {
+        while (next == null) {
+            fill();
+            if (inFlight.isEmpty()) {
+                return false;
+            }
+            next = await(inFlight.removeFirst());
+        }
+        return true;
+    }
+
+    public Map.Entry<Path, INode> next() throws IOException {
+        return nextChild();
+    }
+
+    /**
+     * Returns the next child, with its inode id.
+     */
+    Child nextChild() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more entries in " + dir);
+        }
+        Child entry = next;
+        next = null;
+        return entry;
+    }
+
+    /**
+     * Keeps up to <code>parallelism</code> INode reads in flight.
+     */
+    private void fill() throws IOException {
+        if (shards < 0) {
+            shards = dirKey == null ? 0 : index.getShardCount(dirKey);
+        }
+        while (inFlight.size() < parallelism) {
+            while (entries == null || !entries.hasNext()) {
+                if (shard >= shards) {
+                    return;
+                }
+                entries = index.listShard(dirKey, shard++).entrySet().iterator();
+            }
+            Map.Entry<String, Long> entry = entries.next();
+            final Path child = new Path(dir, entry.getKey());
+            final long id = entry.getValue();
+            try {
+                inFlight.addLast(store.getIOExecutor().submit(new Callable<Child>() {
+                    public Child call() throws IOException {
+                        INode inode = store.retrieveINode(child, id);
+                        return inode == null ? null : new Child(child, id, inode);
+                    }
+                }));
+            } catch (RuntimeException e) {
+                throw new IOException("listing rejected", e);
+            }
+        }
+    }
+
+    private Child await(Future<Child> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            for (Future<Child> pending : inFlight) {
+                pending.cancel(false);
+            }
+            inFlight.clear();
+            throw new InterruptedIOException("listing interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("listing failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import org.apache.hadoop.conf.Configured;
+
+/**
+ * Places every object on a fixed list of hosts by hashing its name. The
+ * placement is deterministic, which makes it a stand-in for tests and for
+ * single-host setups; it does not ask the cluster.
+ */
+public class HashBlockLocationResolver extends Configured
+    implements BlockLocationResolver {
+
+    private String[] hosts;
+    private int replicas;
+
+    public void initialize(RadosFileSystemStore store) {
+        hosts = getConf().getTrimmedStrings(
+            RadosFileSystemConfigKeys.RADOS_BLOCK_LOCATION_HOSTS_KEY,
+            RadosFileSystemConfigKeys.RADOS_BLOCK_LOCATION_HOSTS_DEFAULT);
+        replicas = Math.min(hosts.length, Math.max(1, getConf().getInt(
+            RadosFileSystemConfigKeys.RADOS_BLOCK_LOCATION_REPLICAS_KEY,
+            RadosFileSystemConfigKeys.RADOS_BLOCK_LOCATION_REPLICAS_DEFAULT)));
+    }
+
+    public String[] getHosts(String object) {
+        String[] result = new String[replicas];
+        int first = (object.hashCode() & Integer.MAX_VALUE) % hosts.length;
+        for (int i = 0; i < replicas; i++) {
+            result[i] = hosts[(first + i) % hosts.length];
+        }
+        return result;
+    }
+}
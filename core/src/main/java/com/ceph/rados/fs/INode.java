@@ -26,14 +26,27 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.WritableUtils;
 
 /**
  * Holds file metadata including type (regular file, or directory),
  * and the list of blocks that are pointers to the data.
+ * <p>
+ * Two encodings exist. Version 1 is a type byte followed by fixed-width
+ * block ids and lengths. Version 2 starts with a tag byte carrying the
+ * version, and stores the file length, modification time and block size
+ * followed by varint block lengths and delta-encoded block ids.
+ * <p>
+ * A small file may keep its data inline instead of in blocks; version 2
+ * then sets a flag and appends the data after the (empty) block list.
+ * When any block lives in a pack object, another flag adds the pack
+ * reference after each block's length, when any block is compressed
+ * a third flag adds its codec and compressed length after that, and when
+ * any block has checksums a fourth adds its bytes per checksum last.
  */
 public class INode {
 	
-  enum FileType {
+  public enum FileType {
     DIRECTORY, FILE
   }
   
@@ -43,26 +56,91 @@ public class INode {
   };
 
   public static final INode DIRECTORY_INODE = new INode(FileType.DIRECTORY, null);
+
+  /** Set on the first byte of every encoding newer than version 1. */
+  private static final int VERSION_TAG = 0x80;
+
+  /** Version 2 flag: the file data follows the block list. */
+  private static final long FLAG_INLINE_DATA = 1;
+  /** Version 2 flag: every block records whether, and where, it is packed. */
+  private static final long FLAG_PACKED_BLOCKS = 2;
+  /** Version 2 flag: every block records its codec and stored length. */
+  private static final long FLAG_COMPRESSED_BLOCKS = 4;
+  /** Version 2 flag: every block records its bytes per checksum. */
+  private static final long FLAG_CHECKSUMS = 8;
+  private static final long KNOWN_FLAGS = FLAG_INLINE_DATA | FLAG_PACKED_BLOCKS
+    | FLAG_COMPRESSED_BLOCKS | FLAG_CHECKSUMS;
   
+  private static final Block[] NO_BLOCKS = new Block[0];
+
   private FileType fileType;
   private Block[] blocks;
+  private long length;
+  private long modificationTime;
+  private long blockSize;
+  private byte[] inlineData;
 
   public INode(FileType fileType, Block[] blocks) {
+    this(fileType, blocks, sumLengths(blocks), 0,
+         blocks == null || blocks.length == 0 ? 0 : blocks[0].getLength());
+  }
+
+  public INode(FileType fileType, Block[] blocks, long length,
+               long modificationTime, long blockSize) {
     this.fileType = fileType;
     if (isDirectory() && blocks != null) {
       throw new IllegalArgumentException("A directory cannot contain blocks.");
     }
     this.blocks = blocks;
+    this.length = length;
+    this.modificationTime = modificationTime;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Creates a file INode that holds <code>data</code> itself instead of
+   * pointing to blocks.
+   */
+  public INode(byte[] data, long modificationTime, long blockSize) {
+    this(FileType.FILE, NO_BLOCKS, data.length, modificationTime, blockSize);
+    this.inlineData = data;
   }
 
   public Block[] getBlocks() {
     return blocks;
   }
+
+  /**
+   * Returns the data of a file stored inline, or null if the file data is
+   * in blocks.
+   */
+  public byte[] getInlineData() {
+    return inlineData;
+  }
   
   public FileType getFileType() {
     return fileType;
   }
 
+  /**
+   * Returns the file length, 0 for a directory.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Returns the modification time in milliseconds since the epoch, or 0 if
+   * it is unknown.
+   */
+  public long getModificationTime() {
+    return modificationTime;
+  }
+
+  public long getBlockSize() {
+    return blockSize;
+  }
+
   public boolean isDirectory() {
     return fileType == FileType.DIRECTORY;
   }  
@@ -99,19 +177,109 @@ public class INode {
     }
     return new ByteArrayInputStream(bytes.toByteArray());
   }
+
+  /**
+   * Serializes this INode with the given encoding version.
+   */
+  public byte[] serialize(int version) throws IOException {
+    if (version == 1) {
+      if (inlineData != null || hasPackedBlocks() || hasCompressedBlocks()
+          || hasChecksums()) {
+        throw new IOException("Inode version 1 cannot hold inline data, "
+          + "packed or compressed blocks, or checksums");
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      IOUtils.copyBytes(serialize(), bytes, 4096, true);
+      return bytes.toByteArray();
+    }
+    if (version != 2) {
+      throw new IllegalArgumentException("Unknown inode version " + version);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        32 + (blocks == null ? 0 : blocks.length * 8)
+        + (inlineData == null ? 0 : inlineData.length));
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(VERSION_TAG | version);
+    out.writeByte(fileType.ordinal());
+    // flags for optional sections
+    long flags = inlineData == null ? 0 : FLAG_INLINE_DATA;
+    if (hasPackedBlocks()) {
+      flags |= FLAG_PACKED_BLOCKS;
+    }
+    if (hasCompressedBlocks()) {
+      flags |= FLAG_COMPRESSED_BLOCKS;
+    }
+    if (hasChecksums()) {
+      flags |= FLAG_CHECKSUMS;
+    }
+    WritableUtils.writeVLong(out, flags);
+    WritableUtils.writeVLong(out, modificationTime);
+    if (isFile()) {
+      WritableUtils.writeVLong(out, length);
+      WritableUtils.writeVLong(out, blockSize);
+      int numBlocks = blocks == null ? 0 : blocks.length;
+      WritableUtils.writeVInt(out, numBlocks);
+      long previousId = 0;
+      for (int i = 0; i < numBlocks; i++) {
+        WritableUtils.writeVLong(out, blocks[i].getId() - previousId);
+        WritableUtils.writeVLong(out, blocks[i].getLength());
+        if ((flags & FLAG_PACKED_BLOCKS) != 0) {
+          WritableUtils.writeVInt(out, blocks[i].isPacked() ? 1 : 0);
+          if (blocks[i].isPacked()) {
+            WritableUtils.writeVLong(out, blocks[i].getPackId());
+            WritableUtils.writeVLong(out, blocks[i].getPackOffset());
+          }
+        }
+        if ((flags & FLAG_COMPRESSED_BLOCKS) != 0) {
+          WritableUtils.writeVInt(out, blocks[i].getCodec());
+          if (blocks[i].isCompressed()) {
+            WritableUtils.writeVLong(out, blocks[i].getDataLength());
+          }
+        }
+        if ((flags & FLAG_CHECKSUMS) != 0) {
+          WritableUtils.writeVInt(out, blocks[i].getBytesPerChecksum());
+        }
+        previousId = blocks[i].getId();
+      }
+      if (inlineData != null) {
+        WritableUtils.writeVInt(out, inlineData.length);
+        out.write(inlineData);
+      }
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Deserializes an INode of any encoding version from a whole object.
+   */
+  public static INode deserialize(byte[] data) throws IOException {
+    if (data == null) {
+      return null;
+    }
+    return deserialize(new ByteArrayInputStream(data));
+  }
   
   public static INode deserialize(InputStream in) throws IOException {
     if (in == null) {
       return null;
     }
     DataInputStream dataIn = new DataInputStream(in);
-    FileType fileType = INode.FILE_TYPES[dataIn.readByte()];
+    int tag = dataIn.readUnsignedByte();
+    if ((tag & VERSION_TAG) != 0) {
+      try {
+        return deserializeV2(dataIn, tag & ~VERSION_TAG);
+      } finally {
+        in.close();
+      }
+    }
+    FileType fileType = fileType(tag);
     switch (fileType) {
     case DIRECTORY:
       in.close();
       return INode.DIRECTORY_INODE;
     case FILE:
-      int numBlocks = dataIn.readInt();
+      int numBlocks = count(dataIn.readInt());
       Block[] blocks = new Block[numBlocks];
       for (int i = 0; i < numBlocks; i++) {
         long id = dataIn.readLong();
@@ -121,8 +289,117 @@ public class INode {
       in.close();
       return new INode(fileType, blocks);
     default:
-      throw new IllegalArgumentException("Cannot deserialize inode.");
+      throw new IOException("Cannot deserialize inode.");
     }    
   }  
+
+  private static INode deserializeV2(DataInputStream in, int version)
+    throws IOException {
+    if (version != 2) {
+      throw new IOException("Unknown inode version " + version);
+    }
+    FileType fileType = fileType(in.readByte());
+    long flags = WritableUtils.readVLong(in);
+    if ((flags & ~KNOWN_FLAGS) != 0) {
+      throw new IOException("Unknown inode flags " + flags);
+    }
+    long modificationTime = WritableUtils.readVLong(in);
+    if (fileType == FileType.DIRECTORY) {
+      return new INode(fileType, null, 0, modificationTime, 0);
+    }
+    long length = WritableUtils.readVLong(in);
+    long blockSize = WritableUtils.readVLong(in);
+    int numBlocks = count(WritableUtils.readVInt(in));
+    Block[] blocks = new Block[numBlocks];
+    long id = 0;
+    for (int i = 0; i < numBlocks; i++) {
+      id += WritableUtils.readVLong(in);
+      long blockLength = WritableUtils.readVLong(in);
+      long packId = 0;
+      long packOffset = -1;
+      if ((flags & FLAG_PACKED_BLOCKS) != 0 && WritableUtils.readVInt(in) != 0) {
+        packId = WritableUtils.readVLong(in);
+        packOffset = WritableUtils.readVLong(in);
+      }
+      int codec = BlockCodec.NONE;
+      long compressedLength = 0;
+      if ((flags & FLAG_COMPRESSED_BLOCKS) != 0) {
+        codec = WritableUtils.readVInt(in);
+        if (codec != BlockCodec.NONE) {
+          compressedLength = WritableUtils.readVLong(in);
+        }
+      }
+      int bytesPerChecksum = 0;
+      if ((flags & FLAG_CHECKSUMS) != 0) {
+        bytesPerChecksum = WritableUtils.readVInt(in);
+      }
+      blocks[i] = packOffset < 0 ? new Block(id, blockLength)
+                                 : new Block(id, blockLength, packId, packOffset);
+      blocks[i].setEncoding(codec, compressedLength, bytesPerChecksum);
+    }
+    if ((flags & FLAG_INLINE_DATA) != 0) {
+      byte[] data = new byte[count(WritableUtils.readVInt(in))];
+      in.readFully(data);
+      return new INode(data, modificationTime, blockSize);
+    }
+    return new INode(fileType, blocks, length, modificationTime, blockSize);
+  }
+
+  private static FileType fileType(int tag) throws IOException {
+    if (tag < 0 || tag >= FILE_TYPES.length) {
+      throw new IOException("Unknown inode type " + tag);
+    }
+    return FILE_TYPES[tag];
+  }
+
+  private static int count(int n) throws IOException {
+    if (n < 0) {
+      throw new IOException("Corrupt inode: negative count " + n);
+    }
+    return n;
+  }
+
+  private boolean hasPackedBlocks() {
+    if (blocks != null) {
+      for (Block block : blocks) {
+        if (block.isPacked()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean hasCompressedBlocks() {
+    if (blocks != null) {
+      for (Block block : blocks) {
+        if (block.isCompressed()) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean hasChecksums() {
+    if (blocks != null) {
+      for (Block block : blocks) {
+        if (block.getBytesPerChecksum() > 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static long sumLengths(Block[] blocks) {
+    long length = 0;
+    if (blocks != null) {
+      for (Block block : blocks) {
+        length += block.getLength();
+      }
+    }
+    return length;
+  }
   
 }
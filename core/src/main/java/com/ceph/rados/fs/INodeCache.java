@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Time;
+
+/**
+ * A bounded LRU cache of {@link INode}s and their ids keyed by path, with a
+ * time to live on every entry. Paths known not to exist are cached as
+ * negative entries, with their own (usually shorter) time to live. The
+ * paths are also kept in order, so that a subtree is dropped without
+ * looking at the rest of the cache.
+ */
+public class INodeCache {
+
+    /**
+     * Returned by {@link #get(String)} for a path cached as missing.
+     */
+    public static final INode MISSING = new INode(INode.FileType.FILE, null);
+
+    private static class CachedINode {
+        final long id;
+        final INode inode;
+        final long expires;
+
+        CachedINode(long id, INode inode, long expires) {
+            this.id = id;
+            this.inode = inode;
+            this.expires = expires;
+        }
+    }
+
+    private final int maxEntries;
+    private final long ttl;
+    private final long negativeTtl;
+    private final LinkedHashMap<String, CachedINode> entries;
+    private final TreeSet<String> keys = new TreeSet<String>();
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxEntries maximum number of cached paths, 0 disables the cache
+     * @param ttl milliseconds an INode stays cached
+     * @param negativeTtl milliseconds a missing path stays cached
+     */
+    public INodeCache(int maxEntries, long ttl, long negativeTtl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.entries = new LinkedHashMap<String, CachedINode>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedINode> eldest) {
+                if (size() > INodeCache.this.maxEntries) {
+                    keys.remove(eldest.getKey());
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached INode for <code>key</code>, {@link #MISSING} if the
+     * path is cached as not existing, or null if nothing is cached.
+     */
+    public synchronized INode get(String key) {
+        CachedINode entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expires < Time.monotonicNow()) {
+            remove(key);
+            evictions++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.inode;
+    }
+
+    /**
+     * Returns the inode id cached for <code>key</code>, or -1, which is
+     * never an inode id, if the path is not cached with a known id. Does
+     * not count as a hit or a miss.
+     */
+    public synchronized long getId(String key) {
+        CachedINode entry = entries.get(key);
+        if (entry == null || entry.inode == MISSING
+            || entry.expires < Time.monotonicNow()) {
+            return -1;
+        }
+        return entry.id;
+    }
+
+    /**
+     * Caches <code>inode</code> for <code>key</code> without an id; a null
+     * INode records the path as missing.
+     */
+    public void put(String key, INode inode) {
+        put(key, -1, inode);
+    }
+
+    /**
+     * Caches <code>inode</code> with id <code>id</code> for
+     * <code>key</code>; a null INode records the path as missing.
+     */
+    public synchronized void put(String key, long id, INode inode) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        keys.add(key);
+        if (inode == null) {
+            entries.put(key, new CachedINode(-1, MISSING, Time.monotonicNow() + negativeTtl));
+        } else {
+            entries.put(key, new CachedINode(id, inode, Time.monotonicNow() + ttl));
+        }
+    }
+
+    public synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    /**
+     * Drops <code>key</code> and every path below it, e.g. after the
+     * directory was renamed or deleted.
+     */
+    public synchronized void invalidateTree(String key) {
+        if (key.isEmpty() || key.equals(Path.SEPARATOR)) {
+            clear();
+            return;
+        }
+        remove(key);
+        String prefix = key + Path.SEPARATOR;
+        for (Iterator<String> it = keys.tailSet(prefix).iterator(); it.hasNext();) {
+            String cached = it.next();
+            if (!cached.startsWith(prefix)) {
+                break;
+            }
+            entries.remove(cached);
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        keys.clear();
+    }
+
+    private void remove(String key) {
+        entries.remove(key);
+        keys.remove(key);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "INodeCache[size=" + entries.size() + ", hits=" + hits
+            + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+}
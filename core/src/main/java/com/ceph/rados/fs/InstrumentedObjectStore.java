@@ -0,0 +1,311 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+import com.ceph.rados.fs.RadosFileSystemInstrumentation.Op;
+
+/**
+ * Times the operations of another {@link ObjectStore} and counts the bytes
+ * they move. Extended attributes count as stats and writes, and each
+ * object returned by a listing as a list. Asynchronous operations are
+ * passed through untimed.
+ */
+class InstrumentedObjectStore implements ObjectStore {
+
+    private final ObjectStore objects;
+    private final RadosFileSystemInstrumentation metrics;
+
+    InstrumentedObjectStore(ObjectStore objects,
+                            RadosFileSystemInstrumentation metrics) {
+        this.objects = objects;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the store whose operations are timed.
+     */
+    ObjectStore getWrapped() {
+        return objects;
+    }
+
+    public void initialize(String configFile, String id, String pool)
+        throws IOException {
+        objects.initialize(configFile, id, pool);
+    }
+
+    public String getPoolName() {
+        return objects.getPoolName();
+    }
+
+    public long getInstanceId() throws IOException {
+        return objects.getInstanceId();
+    }
+
+    public long stat(String oid) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return objects.stat(oid);
+        } catch (IOException e) {
+            metrics.failed(Op.STAT, e);
+            throw e;
+        } finally {
+            metrics.record(Op.STAT, start);
+        }
+    }
+
+    public long getModificationTime(String oid) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return objects.getModificationTime(oid);
+        } catch (IOException e) {
+            metrics.failed(Op.STAT, e);
+            throw e;
+        } finally {
+            metrics.record(Op.STAT, start);
+        }
+    }
+
+    public int read(String oid, long offset, byte[] buf, int off, int len)
+        throws IOException {
+        long start = System.nanoTime();
+        try {
+            int read = objects.read(oid, offset, buf, off, len);
+            metrics.bytesRead(read);
+            return read;
+        } catch (IOException e) {
+            metrics.failed(Op.READ, e);
+            throw e;
+        } finally {
+            metrics.record(Op.READ, start);
+        }
+    }
+
+    public int read(String oid, long offset, ByteBuffer buf) throws IOException {
+        long start = System.nanoTime();
+        try {
+            int read = objects.read(oid, offset, buf);
+            metrics.bytesRead(read);
+            return read;
+        } catch (IOException e) {
+            metrics.failed(Op.READ, e);
+            throw e;
+        } finally {
+            metrics.record(Op.READ, start);
+        }
+    }
+
+    public void write(String oid, long offset, byte[] buf, int off, int len)
+        throws IOException {
+        long start = System.nanoTime();
+        try {
+            objects.write(oid, offset, buf, off, len);
+            metrics.bytesWritten(len);
+        } catch (IOException e) {
+            metrics.failed(Op.WRITE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.WRITE, start);
+        }
+    }
+
+    public void writeFull(String oid, byte[] buf, int off, int len)
+        throws IOException {
+        long start = System.nanoTime();
+        try {
+            objects.writeFull(oid, buf, off, len);
+            metrics.bytesWritten(len);
+        } catch (IOException e) {
+            metrics.failed(Op.WRITE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.WRITE, start);
+        }
+    }
+
+    public void append(String oid, byte[] buf, int off, int len)
+        throws IOException {
+        long start = System.nanoTime();
+        try {
+            objects.append(oid, buf, off, len);
+            metrics.bytesWritten(len);
+        } catch (IOException e) {
+            metrics.failed(Op.WRITE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.WRITE, start);
+        }
+    }
+
+    public void remove(String oid) throws IOException {
+        long start = System.nanoTime();
+        try {
+            objects.remove(oid);
+        } catch (IOException e) {
+            metrics.failed(Op.REMOVE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.REMOVE, start);
+        }
+    }
+
+    public String getXAttr(String oid, String name) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return objects.getXAttr(oid, name);
+        } catch (IOException e) {
+            metrics.failed(Op.STAT, e);
+            throw e;
+        } finally {
+            metrics.record(Op.STAT, start);
+        }
+    }
+
+    public void setXAttr(String oid, String name, String value)
+        throws IOException {
+        long start = System.nanoTime();
+        try {
+            objects.setXAttr(oid, name, value);
+        } catch (IOException e) {
+            metrics.failed(Op.WRITE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.WRITE, start);
+        }
+    }
+
+    public boolean appendIf(String oid, String name, String expected,
+                            byte[] buf, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        try {
+            boolean done = objects.appendIf(oid, name, expected, buf, off, len);
+            if (done) {
+                metrics.bytesWritten(len);
+            }
+            return done;
+        } catch (IOException e) {
+            metrics.failed(Op.WRITE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.WRITE, start);
+        }
+    }
+
+    public boolean writeIf(String oid, long offset, String name, String expected,
+                           byte[] buf, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        try {
+            boolean done = objects.writeIf(oid, offset, name, expected, buf, off, len);
+            if (done) {
+                metrics.bytesWritten(len);
+            }
+            return done;
+        } catch (IOException e) {
+            metrics.failed(Op.WRITE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.WRITE, start);
+        }
+    }
+
+    public boolean writeFullIf(String oid, String name, String expected,
+                               String value, byte[] buf, int off, int len)
+        throws IOException {
+        long start = System.nanoTime();
+        try {
+            boolean done = objects.writeFullIf(oid, name, expected, value, buf, off, len);
+            if (done) {
+                metrics.bytesWritten(len);
+            }
+            return done;
+        } catch (IOException e) {
+            metrics.failed(Op.WRITE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.WRITE, start);
+        }
+    }
+
+    public boolean setXAttrIf(String oid, String name, String expected,
+                              String value) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return objects.setXAttrIf(oid, name, expected, value);
+        } catch (IOException e) {
+            metrics.failed(Op.WRITE, e);
+            throw e;
+        } finally {
+            metrics.record(Op.WRITE, start);
+        }
+    }
+
+    public Listing list() throws IOException {
+        final Listing listing = objects.list();
+        return new Listing() {
+            public void skip(long count) throws IOException {
+                listing.skip(count);
+            }
+
+            public String next() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    return listing.next();
+                } catch (IOException e) {
+                    metrics.failed(Op.LIST, e);
+                    throw e;
+                } finally {
+                    metrics.record(Op.LIST, start);
+                }
+            }
+
+            public void close() {
+                listing.close();
+            }
+        };
+    }
+
+    public Future<Long> statAsync(String oid) {
+        return objects.statAsync(oid);
+    }
+
+    public Future<Integer> readAsync(String oid, long offset, byte[] buf,
+                                     int off, int len) {
+        return objects.readAsync(oid, offset, buf, off, len);
+    }
+
+    public Future<Void> writeAsync(String oid, long offset, byte[] buf,
+                                   int off, int len) {
+        return objects.writeAsync(oid, offset, buf, off, len);
+    }
+
+    public Future<Void> writeFullAsync(String oid, byte[] buf, int off, int len) {
+        return objects.writeFullAsync(oid, buf, off, len);
+    }
+
+    public Future<Void> removeAsync(String oid) {
+        return objects.removeAsync(oid);
+    }
+
+    public void close() throws IOException {
+        objects.close();
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A distribution of operation latencies, in microseconds, parsed from a
+ * specification such as:
+ * <ul>
+ * <li><code>none</code>: no latency</li>
+ * <li><code>fixed:500</code></li>
+ * <li><code>uniform:200,2000</code>: between the two bounds</li>
+ * <li><code>exponential:800</code>: with the given mean</li>
+ * <li><code>lognormal:800,20000</code>: with the given median and 99th
+ *     percentile, a common shape for storage latencies with a long tail</li>
+ * <li><code>percentiles:50=800,99=5000,99.9=40000,100=120000</code>:
+ *     interpolated between measured percentiles, so that a production
+ *     latency profile can be replayed</li>
+ * </ul>
+ */
+class LatencyDistribution {
+
+    static final LatencyDistribution NONE = new LatencyDistribution(Kind.FIXED, 0, 0);
+
+    // z-score of the 99th percentile of the standard normal distribution
+    private static final double Z_99 = 2.326348;
+
+    private enum Kind { FIXED, UNIFORM, EXPONENTIAL, LOGNORMAL, PERCENTILES }
+
+    private final Kind kind;
+    private final double a;
+    private final double b;
+    private double[] quantiles;
+    private double[] values;
+
+    private LatencyDistribution(Kind kind, double a, double b) {
+        this.kind = kind;
+        this.a = a;
+        this.b = b;
+    }
+
+    static LatencyDistribution parse(String spec) {
+        spec = spec.trim();
+        if (spec.isEmpty() || spec.equals("none")) {
+            return NONE;
+        }
+        int colon = spec.indexOf(':');
+        String name = colon < 0 ? "fixed" : spec.substring(0, colon).trim();
+        String[] args = (colon < 0 ? spec : spec.substring(colon + 1)).split(",");
+        try {
+            if (name.equals("fixed")) {
+                return new LatencyDistribution(Kind.FIXED, arg(args, 0, 1), 0);
+            } else if (name.equals("uniform")) {
+                return new LatencyDistribution(Kind.UNIFORM, arg(args, 0, 2), arg(args, 1, 2));
+            } else if (name.equals("exponential")) {
+                return new LatencyDistribution(Kind.EXPONENTIAL, arg(args, 0, 1), 0);
+            } else if (name.equals("lognormal")) {
+                double median = arg(args, 0, 2);
+                double p99 = arg(args, 1, 2);
+                if (median <= 0 || p99 < median) {
+                    throw new IllegalArgumentException("need 0 < median <= p99");
+                }
+                return new LatencyDistribution(Kind.LOGNORMAL, Math.log(median),
+                                               Math.log(p99 / median) / Z_99);
+            } else if (name.equals("percentiles")) {
+                return percentiles(args);
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad latency distribution '" + spec
+                                               + "': " + e.getMessage());
+        }
+        throw new IllegalArgumentException("Bad latency distribution '" + spec + "'");
+    }
+
+    private static LatencyDistribution percentiles(String[] args) {
+        double[] quantiles = new double[args.length];
+        double[] values = new double[args.length];
+        for (int i = 0; i < args.length; i++) {
+            String[] point = args[i].split("=");
+            if (point.length != 2) {
+                throw new IllegalArgumentException("expected percentile=latency");
+            }
+            quantiles[i] = Double.parseDouble(point[0].trim()) / 100;
+            values[i] = Double.parseDouble(point[1].trim());
+            if (quantiles[i] < 0 || quantiles[i] > 1
+                || (i > 0 && (quantiles[i] <= quantiles[i - 1] || values[i] < values[i - 1]))) {
+                throw new IllegalArgumentException("percentiles must be increasing");
+            }
+        }
+        LatencyDistribution d = new LatencyDistribution(Kind.PERCENTILES, 0, 0);
+        d.quantiles = quantiles;
+        d.values = values;
+        return d;
+    }
+
+    private static double arg(String[] args, int i, int count) {
+        if (args.length != count) {
+            throw new IllegalArgumentException("expected " + count + " values");
+        }
+        double value = Double.parseDouble(args[i].trim());
+        if (value < 0) {
+            throw new IllegalArgumentException("negative latency");
+        }
+        return value;
+    }
+
+    boolean isNone() {
+        return kind == Kind.FIXED && a == 0;
+    }
+
+    /**
+     * Draws a latency, in nanoseconds.
+     */
+    long sample(Random random) {
+        double micros;
+        switch (kind) {
+        case UNIFORM:
+            micros = a + random.nextDouble() * (b - a);
+            break;
+        case EXPONENTIAL:
+            micros = -a * Math.log(1 - random.nextDouble());
+            break;
+        case LOGNORMAL:
+            micros = Math.exp(a + b * random.nextGaussian());
+            break;
+        case PERCENTILES:
+            micros = quantile(random.nextDouble());
+            break;
+        default:
+            micros = a;
+        }
+        return (long) (micros * 1000);
+    }
+
+    /**
+     * Interpolates linearly between the given percentiles; below the first
+     * one its latency is used, and above the last one the last latency.
+     */
+    private double quantile(double q) {
+        int i = Arrays.binarySearch(quantiles, q);
+        if (i >= 0) {
+            return values[i];
+        }
+        i = -i - 1;
+        if (i == 0) {
+            return values[0];
+        }
+        if (i == quantiles.length) {
+            return values[values.length - 1];
+        }
+        double f = (q - quantiles[i - 1]) / (quantiles[i] - quantiles[i - 1]);
+        return values[i - 1] + f * (values[i] - values[i - 1]);
+    }
+}
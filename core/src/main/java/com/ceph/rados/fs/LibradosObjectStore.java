@@ -0,0 +1,486 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.ceph.rados.IoCTX;
+import com.ceph.rados.ListCtx;
+import com.ceph.rados.Rados;
+import com.ceph.rados.exceptions.RadosException;
+import com.ceph.rados.exceptions.RadosNotFoundException;
+import com.google.common.base.Charsets;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * Stores objects in a pool of a Ceph cluster through the librados Java
+ * binding.
+ * <p>
+ * Operations are spread over
+ * {@link RadosFileSystemConfigKeys#RADOS_OBJECT_STORE_CONNECTIONS_KEY}
+ * cluster handles, each with its own I/O context, so that threads do not
+ * all queue on one connection. With the <code>thread</code> assignment
+ * each thread keeps to the handle it was first given, in turn; with
+ * <code>hash</code> every object keeps to one handle.
+ * <p>
+ * The binding reads into, and writes from, whole arrays only, so a range
+ * of an array that does not start at 0 or end at its end is copied. Direct
+ * buffers are read into in place through librados itself, as are the
+ * conditional writes, which are librados write operations guarded by an
+ * attribute comparison.
+ */
+public class LibradosObjectStore extends AbstractObjectStore {
+
+    private static final int ENOENT = 2;
+    private static final int EEXIST = 17;
+    private static final int ECANCELED = 125;
+    private static final byte CMPXATTR_OP_EQ = 1;
+    private static final int CREATE_EXCLUSIVE = 1;
+
+    interface DirectRead extends Library {
+        DirectRead INSTANCE = (DirectRead) Native.loadLibrary("rados", DirectRead.class);
+
+        int rados_read(Pointer io, String oid, Pointer buf, long len, long off);
+    }
+
+    interface WriteOp extends Library {
+        WriteOp INSTANCE = (WriteOp) Native.loadLibrary("rados", WriteOp.class);
+
+        Pointer rados_create_write_op();
+
+        void rados_release_write_op(Pointer op);
+
+        void rados_write_op_create(Pointer op, int exclusive, String category);
+
+        void rados_write_op_cmpxattr(Pointer op, String name, byte comparison,
+                                     byte[] value, long len);
+
+        void rados_write_op_setxattr(Pointer op, String name, byte[] value, long len);
+
+        void rados_write_op_append(Pointer op, byte[] buf, long len);
+
+        void rados_write_op_write(Pointer op, byte[] buf, long len, long offset);
+
+        void rados_write_op_write_full(Pointer op, byte[] buf, long len);
+
+        int rados_write_op_operate(Pointer op, Pointer io, String oid,
+                                   Pointer mtime, int flags);
+    }
+
+    private Rados[] handles;
+    private IoCTX[] ioctxs;
+    private String pool;
+    private boolean hashed;
+
+    private final AtomicInteger nextHandle = new AtomicInteger();
+    private final ThreadLocal<Integer> threadHandle = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return (nextHandle.getAndIncrement() & Integer.MAX_VALUE) % ioctxs.length;
+        }
+    };
+
+    public void initialize(String configFile, String id, String pool)
+        throws IOException {
+        this.pool = pool;
+        int connections = RadosFileSystemConfigKeys.RADOS_OBJECT_STORE_CONNECTIONS_DEFAULT;
+        String assignment = RadosFileSystemConfigKeys.RADOS_OBJECT_STORE_ASSIGNMENT_DEFAULT;
+        if (getConf() != null) {
+            connections = getConf().getInt(
+                RadosFileSystemConfigKeys.RADOS_OBJECT_STORE_CONNECTIONS_KEY, connections);
+            assignment = getConf().get(
+                RadosFileSystemConfigKeys.RADOS_OBJECT_STORE_ASSIGNMENT_KEY, assignment);
+        }
+        if ("hash".equals(assignment)) {
+            hashed = true;
+        } else if (!"thread".equals(assignment)) {
+            throw new IOException("Unknown connection assignment " + assignment);
+        }
+        handles = new Rados[Math.max(1, connections)];
+        ioctxs = new IoCTX[handles.length];
+        try {
+            for (int i = 0; i < handles.length; i++) {
+                handles[i] = new Rados(id);
+                handles[i].confReadFile(new File(configFile));
+                handles[i].connect();
+                ioctxs[i] = handles[i].ioCtxCreate(pool);
+            }
+        } catch (Exception e) {
+            close();
+            throw new IOException("rados init failed", e);
+        }
+    }
+
+    /**
+     * Returns the first cluster handle.
+     */
+    public Rados getRados() {
+        return handles[0];
+    }
+
+    /**
+     * Returns the I/O context of the first cluster handle.
+     */
+    public IoCTX getIoCTX() {
+        return ioctxs[0];
+    }
+
+    /**
+     * Returns the number of cluster handles.
+     */
+    public int getConnectionCount() {
+        return handles.length;
+    }
+
+    private IoCTX ioctx(String oid) {
+        if (ioctxs.length == 1) {
+            return ioctxs[0];
+        }
+        if (hashed) {
+            return ioctxs[(oid.hashCode() & Integer.MAX_VALUE) % ioctxs.length];
+        }
+        return ioctxs[threadHandle.get()];
+    }
+
+    public String getPoolName() {
+        return pool;
+    }
+
+    public long getInstanceId() throws IOException {
+        try {
+            return handles[0].getInstanceId();
+        } catch (RadosException e) {
+            throw new IOException("get instance id failed", e);
+        }
+    }
+
+    public long stat(String oid) throws IOException {
+        try {
+            return ioctx(oid).stat(oid).getSize();
+        } catch (RadosException e) {
+            throw translate(e, "stat", oid);
+        }
+    }
+
+    /**
+     * librados keeps the time to the second.
+     */
+    public long getModificationTime(String oid) throws IOException {
+        try {
+            return ioctx(oid).stat(oid).getMtime() * 1000;
+        } catch (RadosException e) {
+            throw translate(e, "stat", oid);
+        }
+    }
+
+    public int read(String oid, long offset, byte[] buf, int off, int len)
+        throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        byte[] b = off == 0 ? buf : new byte[len];
+        int read;
+        try {
+            read = Math.max(0, ioctx(oid).read(oid, len, offset, b));
+        } catch (RadosException e) {
+            throw translate(e, "read", oid);
+        }
+        if (b != buf) {
+            System.arraycopy(b, 0, buf, off, read);
+        }
+        return read;
+    }
+
+    @Override
+    public int read(String oid, long offset, ByteBuffer buf) throws IOException {
+        if (!buf.isDirect()) {
+            return super.read(oid, offset, buf);
+        }
+        if (!buf.hasRemaining()) {
+            return 0;
+        }
+        Pointer target = Native.getDirectBufferPointer(buf).share(buf.position());
+        int read = DirectRead.INSTANCE.rados_read(ioctx(oid).getPointer(), oid,
+                                                  target, buf.remaining(), offset);
+        if (read < 0) {
+            throw translate(read == -ENOENT
+                            ? new RadosNotFoundException("rados_read", read)
+                            : new RadosException("rados_read", read), "read", oid);
+        }
+        buf.position(buf.position() + read);
+        return read;
+    }
+
+    public void write(String oid, long offset, byte[] buf, int off, int len)
+        throws IOException {
+        try {
+            ioctx(oid).write(oid, range(buf, off, len), offset);
+        } catch (RadosException e) {
+            throw translate(e, "write", oid);
+        }
+    }
+
+    public void writeFull(String oid, byte[] buf, int off, int len)
+        throws IOException {
+        try {
+            ioctx(oid).writeFull(oid, off == 0 ? buf : range(buf, off, len), len);
+        } catch (RadosException e) {
+            throw translate(e, "write", oid);
+        }
+    }
+
+    public void append(String oid, byte[] buf, int off, int len)
+        throws IOException {
+        try {
+            ioctx(oid).append(oid, off == 0 ? buf : range(buf, off, len), len);
+        } catch (RadosException e) {
+            throw translate(e, "append", oid);
+        }
+    }
+
+    public void remove(String oid) throws IOException {
+        try {
+            ioctx(oid).remove(oid);
+        } catch (RadosException e) {
+            throw translate(e, "remove", oid);
+        }
+    }
+
+    public String getXAttr(String oid, String name) throws IOException {
+        // the binding does not tell a missing attribute from other errors
+        stat(oid);
+        try {
+            return ioctx(oid).getXAttr(oid, name);
+        } catch (RadosException e) {
+            return null;
+        }
+    }
+
+    public void setXAttr(String oid, String name, String value)
+        throws IOException {
+        try {
+            ioctx(oid).setXAttr(oid, name, value);
+        } catch (RadosException e) {
+            throw translate(e, "setxattr", oid);
+        }
+    }
+
+    public boolean appendIf(String oid, String name, String expected,
+                            byte[] buf, int off, int len) throws IOException {
+        return writeIf(oid, -1, name, expected, range(buf, off, len), len);
+    }
+
+    public boolean writeIf(String oid, long offset, String name, String expected,
+                           byte[] buf, int off, int len) throws IOException {
+        return writeIf(oid, offset, name, expected, range(buf, off, len), len);
+    }
+
+    /**
+     * An object that does not exist has no attribute for the comparison to
+     * see, so it is created, exclusively, by a second operation without
+     * one. A negative <code>offset</code> appends.
+     */
+    private boolean writeIf(String oid, long offset, String name, String expected,
+                            byte[] data, int len) throws IOException {
+        String what = offset < 0 ? "append" : "write";
+        while (true) {
+            Pointer op = WriteOp.INSTANCE.rados_create_write_op();
+            try {
+                compare(op, name, expected);
+                write(op, offset, data, len);
+                int result = operate(op, oid);
+                if (result != -ENOENT) {
+                    return check(result, what, oid);
+                }
+            } finally {
+                WriteOp.INSTANCE.rados_release_write_op(op);
+            }
+            if (!expected.isEmpty()) {
+                return false;
+            }
+            op = WriteOp.INSTANCE.rados_create_write_op();
+            try {
+                WriteOp.INSTANCE.rados_write_op_create(op, CREATE_EXCLUSIVE, null);
+                write(op, offset, data, len);
+                int result = operate(op, oid);
+                if (result != -EEXIST) {
+                    return check(result, what, oid);
+                }
+            } finally {
+                WriteOp.INSTANCE.rados_release_write_op(op);
+            }
+        }
+    }
+
+    private static void write(Pointer op, long offset, byte[] data, int len) {
+        if (offset < 0) {
+            WriteOp.INSTANCE.rados_write_op_append(op, data, len);
+        } else {
+            WriteOp.INSTANCE.rados_write_op_write(op, data, len, offset);
+        }
+    }
+
+    public boolean writeFullIf(String oid, String name, String expected,
+                               String value, byte[] buf, int off, int len)
+        throws IOException {
+        Pointer op = WriteOp.INSTANCE.rados_create_write_op();
+        try {
+            compare(op, name, expected);
+            WriteOp.INSTANCE.rados_write_op_write_full(op, range(buf, off, len), len);
+            setXAttr(op, name, value);
+            return check(operate(op, oid), "write", oid);
+        } finally {
+            WriteOp.INSTANCE.rados_release_write_op(op);
+        }
+    }
+
+    public boolean setXAttrIf(String oid, String name, String expected,
+                              String value) throws IOException {
+        Pointer op = WriteOp.INSTANCE.rados_create_write_op();
+        try {
+            compare(op, name, expected);
+            setXAttr(op, name, value);
+            return check(operate(op, oid), "setxattr", oid);
+        } finally {
+            WriteOp.INSTANCE.rados_release_write_op(op);
+        }
+    }
+
+    private static void compare(Pointer op, String name, String expected) {
+        byte[] value = expected.getBytes(Charsets.UTF_8);
+        WriteOp.INSTANCE.rados_write_op_cmpxattr(op, name, CMPXATTR_OP_EQ,
+                                                 value, value.length);
+    }
+
+    private static void setXAttr(Pointer op, String name, String value) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        WriteOp.INSTANCE.rados_write_op_setxattr(op, name, bytes, bytes.length);
+    }
+
+    private int operate(Pointer op, String oid) {
+        return WriteOp.INSTANCE.rados_write_op_operate(op, ioctx(oid).getPointer(),
+                                                       oid, null, 0);
+    }
+
+    /**
+     * Returns whether a conditional operation took effect.
+     */
+    private static boolean check(int result, String op, String oid)
+        throws IOException {
+        if (result == -ECANCELED) {
+            return false;
+        }
+        if (result < 0) {
+            throw translate(result == -ENOENT
+                            ? new RadosNotFoundException("rados_write_op_operate", result)
+                            : new RadosException("rados_write_op_operate", result), op, oid);
+        }
+        return true;
+    }
+
+    /**
+     * {@link ListCtx#getObjects()} returns null once the listing has
+     * reached its end, which would lose the last, partial page, so the
+     * context is advanced one object at a time.
+     */
+    public Listing list() throws IOException {
+        final ListCtx ctx;
+        try {
+            ctx = ioctxs[0].listObjectsPartial(1);
+        } catch (RadosException e) {
+            throw new IOException("list objects failed", e);
+        }
+        return new Listing() {
+            private long skip = 0;
+            private boolean done = false;
+
+            public void skip(long count) {
+                skip += count;
+            }
+
+            public String next() throws IOException {
+                if (done) {
+                    return null;
+                }
+                try {
+                    int read = skip > 0 ? ctx.nextObjects(skip) : ctx.nextObjects();
+                    skip = 0;
+                    if (read == 0) {
+                        close();
+                        return null;
+                    }
+                    return ctx.getObjects()[0];
+                } catch (RadosException e) {
+                    close();
+                    throw new IOException("list objects failed", e);
+                }
+            }
+
+            public void close() {
+                if (!done) {
+                    done = true;
+                    ctx.close();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (handles == null) {
+            return;
+        }
+        for (int i = 0; i < handles.length; i++) {
+            if (handles[i] != null) {
+                if (ioctxs[i] != null) {
+                    handles[i].ioCtxDestroy(ioctxs[i]);
+                }
+                handles[i].shutDown();
+            }
+        }
+        handles = null;
+        ioctxs = null;
+    }
+
+    private static byte[] range(byte[] buf, int off, int len) {
+        if (off == 0 && len == buf.length) {
+            return buf;
+        }
+        byte[] copy = new byte[len];
+        System.arraycopy(buf, off, copy, 0, len);
+        return copy;
+    }
+
+    private static IOException translate(RadosException e, String op, String oid) {
+        if (e instanceof RadosNotFoundException) {
+            FileNotFoundException notFound = new FileNotFoundException("No such object " + oid);
+            notFound.initCause(e);
+            return notFound;
+        }
+        return new IOException(op + " failed", e);
+    }
+}
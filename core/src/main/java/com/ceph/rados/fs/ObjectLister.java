@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.fs.RemoteIterator;
+
+/**
+ * Lists the objects of a pool a page at a time, so memory is bounded by
+ * the page size instead of the size of the pool.
+ * <p>
+ * {@link #getPosition()} is only a count of the objects listed: a lister
+ * created with it lists the pool again from the start and skips that many
+ * objects, which lands where this one stopped only if the pool has not
+ * changed in between.
+ */
+public class ObjectLister implements RemoteIterator<String>, Closeable {
+
+    private final ObjectStore objects;
+    private final int pageSize;
+    private ObjectStore.Listing listing;
+    private boolean opened = false;
+    private final long skip;
+    private long position;
+
+    private final List<String> page;
+    private int next = 0;
+
+    public ObjectLister(ObjectStore objects, int pageSize) {
+        this(objects, pageSize, 0);
+    }
+
+    /**
+     * @param position the number of objects to skip, as returned by
+     *        {@link #getPosition()}
+     */
+    public ObjectLister(ObjectStore objects, int pageSize, long position) {
+        this.objects = objects;
+        this.pageSize = Math.max(1, pageSize);
+        this.page = new ArrayList<String>(this.pageSize);
+        this.skip = position;
+        this.position = position;
+    }
+
+    public boolean hasNext() throws IOException {
+        if (next >= page.size()) {
+            fill();
+        }
+        return next < page.size();
+    }
+
+    public String next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more objects");
+        }
+        position++;
+        return page.get(next++);
+    }
+
+    /**
+     * Returns the number of objects listed so far, including the ones
+     * skipped at the start.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void close() {
+        if (listing != null) {
+            listing.close();
+            listing = null;
+        }
+    }
+
+    private void fill() throws IOException {
+        page.clear();
+        next = 0;
+        try {
+            if (!opened) {
+                listing = objects.list();
+                opened = true;
+                listing.skip(skip);
+            }
+            while (listing != null && page.size() < pageSize) {
+                String name = listing.next();
+                if (name == null) {
+                    close();
+                    break;
+                }
+                page.add(name);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.UUID;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.util.Time;
+
+/**
+ * Lets append-only logs be compacted by any client while others keep
+ * appending to them.
+ * <p>
+ * Appends are made with {@link ObjectStore#appendIf} only while the log
+ * is not sealed. A compaction seals the log with a token of its own, reads
+ * it, which it can then do without missing an append, and replaces it with
+ * {@link ObjectStore#writeFullIf} only if it still holds the seal, which
+ * unseals the log in the same step. Appenders wait for a seal to go away,
+ * backing off, for as long as the timeout; a seal still there then is
+ * taken to belong to a client that died, and is broken, and an appender
+ * that still cannot append gives up. Breaking a seal loses nothing: the
+ * compaction holding it can no longer replace the log.
+ */
+class ObjectSeals {
+
+    static final String SEALED_XATTR = "sealed";
+
+    private static final long MAX_BACKOFF = 100;
+
+    private static final Log LOG =
+        LogFactory.getLog(ObjectSeals.class.getName());
+
+    private final ObjectStore objects;
+    private final long timeout;
+
+    /**
+     * @param timeout milliseconds after which a seal is broken
+     */
+    ObjectSeals(ObjectStore objects, long timeout) {
+        this.objects = objects;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Appends to <code>oid</code>, creating it if needed, once it is not
+     * sealed.
+     */
+    void append(String oid, byte[] buf, int off, int len) throws IOException {
+        if (objects.appendIf(oid, SEALED_XATTR, "", buf, off, len)) {
+            return;
+        }
+        long deadline = Time.monotonicNow() + timeout;
+        long backoff = 1;
+        for (long now = Time.monotonicNow(); now < deadline; now = Time.monotonicNow()) {
+            try {
+                Thread.sleep(Math.min(backoff, deadline - now));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("append interrupted");
+            }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+            if (objects.appendIf(oid, SEALED_XATTR, "", buf, off, len)) {
+                return;
+            }
+        }
+        String seal = objects.getXAttr(oid, SEALED_XATTR);
+        if (seal != null && !seal.isEmpty()
+            && objects.setXAttrIf(oid, SEALED_XATTR, seal, "")) {
+            LOG.warn("Broke seal " + seal + " of " + oid + " after waiting " + timeout + " ms");
+        }
+        if (!objects.appendIf(oid, SEALED_XATTR, "", buf, off, len)) {
+            throw new IOException("append to " + oid + " failed: still sealed after "
+                                  + timeout + " ms");
+        }
+    }
+
+    /**
+     * Seals <code>oid</code> and returns the token of the seal, or null if
+     * the object is already sealed or does not exist.
+     */
+    String seal(String oid) throws IOException {
+        String token = UUID.randomUUID().toString();
+        try {
+            return objects.setXAttrIf(oid, SEALED_XATTR, "", token) ? token : null;
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the data of <code>oid</code>, sealed with
+     * <code>token</code>, and unseals it.
+     *
+     * @return false, having changed nothing, if the seal was broken
+     */
+    boolean replace(String oid, String token, byte[] data) throws IOException {
+        boolean replaced = objects.writeFullIf(oid, SEALED_XATTR, token, "",
+                                               data, 0, data.length);
+        if (!replaced) {
+            LOG.warn("Lost seal " + token + " of " + oid + "; not rewritten");
+        }
+        return replaced;
+    }
+
+    /**
+     * Lifts the seal <code>token</code> from <code>oid</code>, if it still
+     * holds, leaving the data as it is.
+     */
+    void unseal(String oid, String token) {
+        try {
+            objects.setXAttrIf(oid, SEALED_XATTR, token, "");
+        } catch (IOException e) {
+            LOG.warn("Could not unseal " + oid + "; appenders will break the seal", e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+/**
+ * The operations the file system needs from the objects of one pool.
+ * <p>
+ * {@link LibradosObjectStore} implements them on a pool of a Ceph cluster
+ * and {@link SimulatedObjectStore} in memory, with injected latency,
+ * bandwidth limits and failures. An implementation is named by
+ * {@link RadosFileSystemConfigKeys#RADOS_OBJECT_STORE_IMPL_KEY} and created
+ * with {@link org.apache.hadoop.util.ReflectionUtils}, so it may be
+ * {@link org.apache.hadoop.conf.Configurable}. It is called from several
+ * threads at once.
+ * <p>
+ * Operations on an object that does not exist throw
+ * {@link java.io.FileNotFoundException}; other failures throw
+ * {@link IOException}. The asynchronous variants report the same failures
+ * through their future.
+ */
+public interface ObjectStore extends Closeable {
+
+    /**
+     * Iterates over the names of the objects of the pool, in no particular
+     * order.
+     */
+    interface Listing extends Closeable {
+
+        /**
+         * Skips the next <code>count</code> objects.
+         */
+        void skip(long count) throws IOException;
+
+        /**
+         * Returns the name of the next object, or null at the end.
+         */
+        String next() throws IOException;
+
+        void close();
+    }
+
+    /**
+     * Called once, before any other method, to connect to
+     * <code>pool</code> as client <code>id</code> with the Ceph
+     * configuration file <code>configFile</code>.
+     */
+    void initialize(String configFile, String id, String pool) throws IOException;
+
+    /**
+     * Returns the name of the pool.
+     */
+    String getPoolName();
+
+    /**
+     * Returns an id that no other client of the cluster has at the same
+     * time, or -1 if there is none.
+     */
+    long getInstanceId() throws IOException;
+
+    /**
+     * Returns the size of <code>oid</code>.
+     */
+    long stat(String oid) throws IOException;
+
+    /**
+     * Returns when <code>oid</code> was last changed, in milliseconds
+     * since the epoch by the store's clock, to the second at least.
+     */
+    long getModificationTime(String oid) throws IOException;
+
+    /**
+     * Reads up to <code>len</code> bytes of <code>oid</code> from
+     * <code>offset</code> into <code>buf</code> at <code>off</code>.
+     *
+     * @return the number of bytes read, 0 at or past the end of the object
+     */
+    int read(String oid, long offset, byte[] buf, int off, int len)
+        throws IOException;
+
+    /**
+     * Reads up to <code>buf.remaining()</code> bytes of <code>oid</code>
+     * from <code>offset</code> into <code>buf</code>, advancing its
+     * position. A direct buffer is filled in place where the store
+     * allows it.
+     *
+     * @return the number of bytes read, 0 at or past the end of the object
+     */
+    int read(String oid, long offset, ByteBuffer buf) throws IOException;
+
+    /**
+     * Writes <code>len</code> bytes of <code>buf</code> from
+     * <code>off</code> to <code>oid</code> at <code>offset</code>, creating
+     * the object if needed.
+     */
+    void write(String oid, long offset, byte[] buf, int off, int len)
+        throws IOException;
+
+    /**
+     * Replaces the data of <code>oid</code>, creating it if needed.
+     */
+    void writeFull(String oid, byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Appends to <code>oid</code>, creating it if needed.
+     */
+    void append(String oid, byte[] buf, int off, int len) throws IOException;
+
+    void remove(String oid) throws IOException;
+
+    /**
+     * Returns the value of the extended attribute <code>name</code> of
+     * <code>oid</code>, or null if it is not set.
+     */
+    String getXAttr(String oid, String name) throws IOException;
+
+    /**
+     * Sets an extended attribute, creating the object if needed.
+     */
+    void setXAttr(String oid, String name, String value) throws IOException;
+
+    /**
+     * Appends to <code>oid</code>, creating it if needed, provided its
+     * extended attribute <code>name</code> equals <code>expected</code>,
+     * all in one atomic step. An attribute that is not set, like any of an
+     * object that does not exist, equals "".
+     *
+     * @return false, having changed nothing, if the attribute differs
+     */
+    boolean appendIf(String oid, String name, String expected,
+                     byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Writes to <code>oid</code> at <code>offset</code>, creating it if
+     * needed, provided its extended attribute <code>name</code> equals
+     * <code>expected</code>, all in one atomic step.
+     *
+     * @return false, having changed nothing, if the attribute differs
+     */
+    boolean writeIf(String oid, long offset, String name, String expected,
+                    byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Replaces the data of <code>oid</code> and sets its extended attribute
+     * <code>name</code> to <code>value</code>, provided the attribute
+     * equals <code>expected</code>, all in one atomic step.
+     *
+     * @return false, having changed nothing, if the attribute differs
+     */
+    boolean writeFullIf(String oid, String name, String expected, String value,
+                        byte[] buf, int off, int len) throws IOException;
+
+    /**
+     * Sets the extended attribute <code>name</code> of <code>oid</code> to
+     * <code>value</code>, provided it equals <code>expected</code>.
+     *
+     * @return false, having changed nothing, if the attribute differs
+     */
+    boolean setXAttrIf(String oid, String name, String expected, String value)
+        throws IOException;
+
+    /**
+     * Starts a listing of the pool.
+     */
+    Listing list() throws IOException;
+
+    Future<Long> statAsync(String oid);
+
+    Future<Integer> readAsync(String oid, long offset, byte[] buf, int off, int len);
+
+    Future<Void> writeAsync(String oid, long offset, byte[] buf, int off, int len);
+
+    Future<Void> writeFullAsync(String oid, byte[] buf, int off, int len);
+
+    Future<Void> removeAsync(String oid);
+}
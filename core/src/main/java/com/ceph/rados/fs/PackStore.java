@@ -0,0 +1,586 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.RemoteIterator;
+
+/**
+ * Stores small blocks as records appended to large pack objects, so that
+ * millions of small blocks do not each cost an object.
+ * <p>
+ * Every record is a header with the block id and length, followed by the
+ * data, and a {@link Block} remembers the pack and offset of its record.
+ * Each client fills packs of its own, one write at a time per pack, so
+ * the records of a pack always lie end to end; concurrent writes go to
+ * different packs. Once a pack reaches the target size it is sealed by
+ * appending an index of its records and a trailer pointing to the index.
+ * <p>
+ * Deleting a packed block appends its id to the pack's tombstone object.
+ * {@link #compact(RemoteIterator)} rewrites sealed packs whose deleted
+ * fraction passed the threshold, keeping only live records, and removes
+ * packs with nothing left. Rewriting moves records, so a reader checks the
+ * header at the offset it was given and, if the block moved, finds the
+ * new offset in the pack's index.
+ * <p>
+ * A compaction holds the pack by sealing its tombstone object with
+ * {@link ObjectSeals}: a second compaction of the same pack skips it, and
+ * deletes wait for the seal to go, so no tombstone is appended between
+ * the compaction's read of the object and its rewrite.
+ * <p>
+ * A pack left unsealed, and unchanged for longer than the seal timeout,
+ * is taken to belong to a writer that died: compaction fences it, so that
+ * any late write to it fails, and seals it with an index rebuilt from its
+ * record headers. A writer whose write was fenced off, having been idle
+ * for that long, carries on in a new pack.
+ */
+class PackStore {
+    static final String PACK_PREFIX = "pack_";
+    static final String DEAD_SUFFIX = ".dead";
+    static final String FENCE_XATTR = "fenced";
+
+    // "RADOSPAK"
+    private static final long MAGIC = 0x5241444f5350414bL;
+    private static final int HEADER_SIZE = 16;
+    private static final int TRAILER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 24;
+    private static final int MAX_CACHED_INDEXES = 64;
+
+    private static final Log LOG =
+        LogFactory.getLog(PackStore.class.getName());
+
+    private final ObjectStore objects;
+    private final ObjectSeals seals;
+    private final BlockIdAllocator ids;
+    private final long targetSize;
+    private final double compactThreshold;
+    private final long sealTimeout;
+
+    // packs with room left and no write in flight, most recent first
+    private final LinkedList<Pack> idle = new LinkedList<Pack>();
+    private boolean closed = false;
+    private final Map<Long, Map<Long, long[]>> indexes =
+        new LinkedHashMap<Long, Map<Long, long[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Map<Long, long[]>> eldest) {
+                return size() > MAX_CACHED_INDEXES;
+            }
+        };
+
+    /**
+     * A pack this client is writing.
+     */
+    private static class Pack {
+        final long id;
+        long size = 0;
+        final List<long[]> entries = new ArrayList<long[]>();
+
+        Pack(long id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * @param targetSize size at which a pack is sealed and a new one begun
+     * @param compactThreshold deleted fraction at which a pack is rewritten
+     * @param sealTimeout milliseconds after which a compaction's seal is broken
+     */
+    PackStore(ObjectStore objects, BlockIdAllocator ids, long targetSize,
+              double compactThreshold, long sealTimeout) {
+        this.objects = objects;
+        this.seals = new ObjectSeals(objects, sealTimeout);
+        this.ids = ids;
+        this.targetSize = targetSize;
+        this.compactThreshold = compactThreshold;
+        this.sealTimeout = sealTimeout;
+    }
+
+    static boolean isPackKey(String key) {
+        return key.startsWith(PACK_PREFIX) && !key.endsWith(DEAD_SUFFIX);
+    }
+
+    /**
+     * Appends the first <code>length</code> bytes of <code>data</code> to
+     * one of this client's packs as block <code>blockId</code>.
+     */
+    Block write(long blockId, byte[] data, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+        record.putLong(blockId).putLong(length).put(data, 0, length);
+        while (true) {
+            Pack pack = checkOut();
+            long offset = pack.size;
+            pack.size += record.capacity();
+            pack.entries.add(new long[] { blockId, offset, length });
+            boolean written;
+            try {
+                written = objects.writeIf(packKey(pack.id), offset, FENCE_XATTR, "",
+                                          record.array(), 0, record.capacity());
+            } catch (IOException e) {
+                // the record may be there; make sure it counts as dead, and
+                // write no more to the pack, which might have a gap now
+                try {
+                    tombstone(pack.id, blockId);
+                    seal(pack);
+                } catch (IOException f) {
+                    LOG.warn("Could not retire pack " + pack.id, f);
+                }
+                throw new IOException("pack write failed", e);
+            }
+            if (written) {
+                checkIn(pack);
+                return new Block(blockId, length, pack.id, offset);
+            }
+            LOG.info("Pack " + pack.id + " was taken over while idle; starting another");
+        }
+    }
+
+    /**
+     * Reads the stored data of the packed block <code>block</code>.
+     */
+    byte[] read(Block block) throws IOException {
+        byte[] data = readRecord(block, block.getPackOffset());
+        if (data != null) {
+            return data;
+        }
+        // the pack was compacted since the block was written
+        for (boolean reload : new boolean[] { false, true }) {
+            long[] entry = index(block.getPackId(), reload).get(block.getId());
+            if (entry != null) {
+                data = readRecord(block, entry[1]);
+                if (data != null) {
+                    return data;
+                }
+            }
+        }
+        throw new IOException(block + " is missing from its pack");
+    }
+
+    /**
+     * Marks the packed block <code>block</code> as deleted.
+     */
+    void delete(Block block) throws IOException {
+        tombstone(block.getPackId(), block.getId());
+    }
+
+    /**
+     * Seals the packs this client is writing; those with a write in flight
+     * are sealed once it finishes.
+     */
+    void close() throws IOException {
+        List<Pack> open;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<Pack>(idle);
+            idle.clear();
+        }
+        for (Pack pack : open) {
+            seal(pack);
+        }
+    }
+
+    /**
+     * Rewrites, or removes, the packs among <code>objects</code> whose
+     * deleted fraction reached the threshold, sealing any abandoned ones
+     * first.
+     *
+     * @return the number of packs rewritten or removed
+     */
+    int compact(RemoteIterator<String> objects) throws IOException {
+        int compacted = 0;
+        while (objects.hasNext()) {
+            String key = objects.next();
+            if (!isPackKey(key)) {
+                continue;
+            }
+            long packId;
+            try {
+                packId = Long.parseLong(key.substring(PACK_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            try {
+                if (compact(packId)) {
+                    compacted++;
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not compact pack " + packId, e);
+            }
+        }
+        if (compacted > 0) {
+            LOG.info("Compacted " + compacted + " packs");
+        }
+        return compacted;
+    }
+
+    private boolean compact(long packId) throws IOException {
+        String token = seals.seal(deadKey(packId));
+        if (token == null) {
+            // nothing deleted, or another client is compacting it
+            return false;
+        }
+        boolean compacted = false;
+        try {
+            compacted = compact(packId, token);
+        } finally {
+            if (!compacted) {
+                seals.unseal(deadKey(packId), token);
+            }
+        }
+        if (compacted) {
+            synchronized (indexes) {
+                indexes.remove(packId);
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * Compacts pack <code>packId</code>, whose tombstone object is sealed
+     * with <code>token</code>.
+     *
+     * @return true if the pack was rewritten or removed, which also lifts
+     *         the seal
+     */
+    private boolean compact(long packId, String token) throws IOException {
+        byte[] tombstones = RadosFileSystemStore.readObject(objects, deadKey(packId));
+        if (tombstones == null) {
+            return false;
+        }
+        byte[] data = RadosFileSystemStore.readObject(objects, packKey(packId));
+        if (data == null) {
+            // a delete waiting on an earlier compaction that removed the
+            // pack recreated its tombstone object
+            try {
+                objects.remove(deadKey(packId));
+            } catch (IOException e) {
+                throw new IOException("pack tombstone remove failed", e);
+            }
+            return true;
+        }
+        Map<Long, long[]> index = sealedIndex(data);
+        if (index == null) {
+            data = adopt(packId);
+            if (data == null) {
+                return false;
+            }
+            index = sealedIndex(data);
+        }
+        Set<Long> dead = new HashSet<Long>();
+        ByteBuffer buf = ByteBuffer.wrap(tombstones);
+        while (buf.remaining() >= 8) {
+            dead.add(buf.getLong());
+        }
+        long total = 0;
+        long deleted = 0;
+        for (long[] entry : index.values()) {
+            total += entry[2];
+            if (dead.contains(entry[0])) {
+                deleted += entry[2];
+            }
+        }
+        if (total > 0 && (double) deleted / total < compactThreshold) {
+            return false;
+        }
+        try {
+            if (deleted == total) {
+                objects.remove(packKey(packId));
+                objects.remove(deadKey(packId));
+            } else {
+                List<long[]> live = new ArrayList<long[]>();
+                ByteBuffer out = ByteBuffer.allocate(
+                    (int) (total - deleted) + index.size() * (HEADER_SIZE + INDEX_ENTRY_SIZE)
+                    + TRAILER_SIZE);
+                for (long[] entry : index.values()) {
+                    if (!dead.contains(entry[0])) {
+                        live.add(new long[] { entry[0], out.position(), entry[2] });
+                        out.put(data, (int) entry[1], HEADER_SIZE + (int) entry[2]);
+                    }
+                }
+                appendIndex(out, live);
+                objects.writeFull(packKey(packId), out.array(), 0, out.position());
+                // the tombstones of the records dropped are not needed
+                // any more; if the seal was broken they are kept
+                seals.replace(deadKey(packId), token, new byte[0]);
+            }
+        } catch (IOException e) {
+            throw new IOException("pack rewrite failed", e);
+        }
+        return true;
+    }
+
+    /**
+     * Takes over pack <code>packId</code>, found unsealed, if it has not
+     * changed for longer than the seal timeout: fences it against late
+     * writes and seals it with an index of the records it holds.
+     *
+     * @return the sealed pack, or null if it is still being written or its
+     *         records cannot all be told apart
+     */
+    private byte[] adopt(long packId) throws IOException {
+        String key = packKey(packId);
+        byte[] data;
+        try {
+            if (System.currentTimeMillis() - objects.getModificationTime(key) < sealTimeout) {
+                return null;
+            }
+            // whoever set it, the fence stands from now on
+            objects.setXAttrIf(key, FENCE_XATTR, "", "1");
+            data = RadosFileSystemStore.readObject(objects, key);
+        } catch (IOException e) {
+            throw new IOException("pack fence failed", e);
+        }
+        if (data == null || sealedIndex(data) != null) {
+            return data;
+        }
+        List<long[]> entries = new ArrayList<long[]>();
+        if (!scanRecords(data, entries)) {
+            LOG.warn("Pack " + packId + " was abandoned with a gap in its records;"
+                     + " leaving it unsealed");
+            return null;
+        }
+        ByteBuffer out = ByteBuffer.allocate(
+            data.length + entries.size() * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        out.put(data);
+        appendIndex(out, entries, data.length);
+        try {
+            objects.write(key, data.length, out.array(), data.length,
+                          out.capacity() - data.length);
+        } catch (IOException e) {
+            throw new IOException("pack seal failed", e);
+        }
+        LOG.info("Sealed pack " + packId + ", abandoned by its writer");
+        return out.array();
+    }
+
+    /**
+     * Returns a pack with room left for this client to write to, and that
+     * no other write of this client is writing to.
+     */
+    private synchronized Pack checkOut() {
+        return idle.isEmpty() ? new Pack(ids.nextId()) : idle.removeFirst();
+    }
+
+    /**
+     * Takes back a pack after a write, sealing it if it is full or the
+     * store was closed meanwhile.
+     */
+    private void checkIn(Pack pack) throws IOException {
+        synchronized (this) {
+            if (pack.size < targetSize && !closed) {
+                idle.addFirst(pack);
+                return;
+            }
+        }
+        seal(pack);
+    }
+
+    /**
+     * Appends the index and trailer to a pack with no writes in flight,
+     * unless compaction has taken it over.
+     */
+    private void seal(Pack pack) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(
+            pack.entries.size() * INDEX_ENTRY_SIZE + TRAILER_SIZE);
+        long indexOffset = pack.size;
+        appendIndex(out, pack.entries, indexOffset);
+        try {
+            objects.writeIf(packKey(pack.id), pack.size, FENCE_XATTR, "",
+                            out.array(), 0, out.capacity());
+        } catch (IOException e) {
+            throw new IOException("pack seal failed", e);
+        }
+    }
+
+    private static void appendIndex(ByteBuffer out, List<long[]> entries) {
+        appendIndex(out, entries, out.position());
+    }
+
+    private static void appendIndex(ByteBuffer out, List<long[]> entries,
+                                    long indexOffset) {
+        for (long[] entry : entries) {
+            out.putLong(entry[0]).putLong(entry[1]).putLong(entry[2]);
+        }
+        out.putLong(indexOffset).putLong(MAGIC);
+    }
+
+    /**
+     * Returns the data of <code>block</code> from the record at
+     * <code>offset</code>, or null if that record is not the block.
+     */
+    private byte[] readRecord(Block block, long offset) throws IOException {
+        int length = (int) block.getStoredLength();
+        byte[] record = new byte[HEADER_SIZE + length];
+        int done = 0;
+        try {
+            while (done < record.length) {
+                int read = objects.read(packKey(block.getPackId()), offset + done,
+                                        record, done, record.length - done);
+                if (read <= 0) {
+                    return null;
+                }
+                done += read;
+            }
+        } catch (IOException e) {
+            throw new IOException("pack read failed", e);
+        }
+        ByteBuffer header = ByteBuffer.wrap(record, 0, HEADER_SIZE);
+        if (header.getLong() != block.getId() || header.getLong() != length) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(record, HEADER_SIZE, data, 0, length);
+        return data;
+    }
+
+    /**
+     * Returns the index of pack <code>packId</code> by block id, reading
+     * it from the pack if it is not cached or <code>reload</code> is set.
+     */
+    private Map<Long, long[]> index(long packId, boolean reload)
+        throws IOException {
+        synchronized (indexes) {
+            Map<Long, long[]> index = indexes.get(packId);
+            if (index != null && !reload) {
+                return index;
+            }
+        }
+        Map<Long, long[]> index = readIndex(packId);
+        synchronized (indexes) {
+            indexes.put(packId, index);
+        }
+        return index;
+    }
+
+    /**
+     * Reads the index from the trailer of a sealed pack, or rebuilds it
+     * from the record headers of a pack that was never sealed.
+     */
+    private Map<Long, long[]> readIndex(long packId) throws IOException {
+        String key = packKey(packId);
+        try {
+            long size = objects.stat(key);
+            if (size >= TRAILER_SIZE) {
+                byte[] trailer = new byte[TRAILER_SIZE];
+                objects.read(key, size - TRAILER_SIZE, trailer, 0, TRAILER_SIZE);
+                ByteBuffer t = ByteBuffer.wrap(trailer);
+                long indexOffset = t.getLong();
+                if (t.getLong() == MAGIC && indexOffset >= 0
+                    && indexOffset <= size - TRAILER_SIZE) {
+                    int length = (int) (size - TRAILER_SIZE - indexOffset);
+                    byte[] entries = new byte[length];
+                    if (length > 0) {
+                        objects.read(key, indexOffset, entries, 0, length);
+                    }
+                    return parseIndex(ByteBuffer.wrap(entries));
+                }
+            }
+        } catch (IOException e) {
+            throw new IOException("pack index read failed", e);
+        }
+        byte[] data = RadosFileSystemStore.readObject(objects, key);
+        Map<Long, long[]> index = new HashMap<Long, long[]>();
+        if (data == null) {
+            return index;
+        }
+        List<long[]> entries = new ArrayList<long[]>();
+        scanRecords(data, entries);
+        for (long[] entry : entries) {
+            index.put(entry[0], entry);
+        }
+        return index;
+    }
+
+    /**
+     * Adds an index entry for each record of an unsealed pack, from the
+     * first, to <code>entries</code>.
+     *
+     * @return whether the records fill the pack exactly
+     */
+    private static boolean scanRecords(byte[] data, List<long[]> entries) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.remaining() >= HEADER_SIZE) {
+            long offset = buf.position();
+            long blockId = buf.getLong();
+            long length = buf.getLong();
+            if (length < 0 || length > buf.remaining()) {
+                return false;
+            }
+            entries.add(new long[] { blockId, offset, length });
+            buf.position(buf.position() + (int) length);
+        }
+        return !buf.hasRemaining();
+    }
+
+    /**
+     * Returns the index of a whole sealed pack, in record order, or null if
+     * the pack has no trailer.
+     */
+    private static Map<Long, long[]> sealedIndex(byte[] data) {
+        if (data.length < TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        buf.position(data.length - TRAILER_SIZE);
+        long indexOffset = buf.getLong();
+        if (buf.getLong() != MAGIC || indexOffset < 0
+            || indexOffset > data.length - TRAILER_SIZE) {
+            return null;
+        }
+        buf.position((int) indexOffset);
+        buf.limit(data.length - TRAILER_SIZE);
+        return parseIndex(buf.slice());
+    }
+
+    private static Map<Long, long[]> parseIndex(ByteBuffer buf) {
+        Map<Long, long[]> index = new LinkedHashMap<Long, long[]>();
+        while (buf.remaining() >= INDEX_ENTRY_SIZE) {
+            long[] entry = new long[] { buf.getLong(), buf.getLong(), buf.getLong() };
+            index.put(entry[0], entry);
+        }
+        return index;
+    }
+
+    private void tombstone(long packId, long blockId) throws IOException {
+        try {
+            seals.append(deadKey(packId), ByteBuffer.allocate(8).putLong(blockId).array(), 0, 8);
+        } catch (IOException e) {
+            throw new IOException("pack tombstone failed", e);
+        }
+    }
+
+    private static String packKey(long packId) {
+        return PACK_PREFIX + packId;
+    }
+
+    private static String deadKey(long packId) {
+        return PACK_PREFIX + packId + DEAD_SUFFIX;
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.hadoop.fs.FSInputStream;
+
+/**
+ * Reads the blocks of a file ahead of a sequential reader, several at a
+ * time, on the store's I/O executor.
+ * <p>
+ * The file is fetched in segments: ranges of up to a chunk of a plain
+ * block, or the whole of a packed or compressed block, which can only be
+ * read whole. Up to <code>parallelism</code> segments holding at most
+ * <code>memory</code> bytes together are in flight past the reader, and
+ * are handed out in file order as it reaches them. A read anywhere else
+ * drops them and starts over from there. The arrays of plain segments come
+ * from, and go back to, the store's {@link BufferPool}.
+ */
+class ParallelBlockReader {
+
+    private final RadosFileSystemStore store;
+    private final Block[] blocks;
+    private final long[] blockStarts;
+    private final long length;
+    private final boolean verifyChecksum;
+    private final int parallelism;
+    private final long memory;
+    private final int chunkSize;
+
+    private static class Segment {
+        final long offset;
+        final byte[] data;
+        final int length;
+        final boolean pooled;
+
+        Segment(long offset, byte[] data, int length, boolean pooled) {
+            this.offset = offset;
+            this.data = data;
+            this.length = length;
+            this.pooled = pooled;
+        }
+    }
+
+    private final LinkedList<Future<Segment>> inFlight =
+        new LinkedList<Future<Segment>>();
+    private final LinkedList<Long> inFlightBytes = new LinkedList<Long>();
+    private long bytesInFlight = 0;
+    private long nextFetch = 0;
+    private Segment current;
+
+    ParallelBlockReader(RadosFileSystemStore store, Block[] blocks,
+                        long[] blockStarts, long length, boolean verifyChecksum,
+                        int parallelism, long memory, int chunkSize) {
+        this.store = store;
+        this.blocks = blocks;
+        this.blockStarts = blockStarts;
+        this.length = length;
+        this.verifyChecksum = verifyChecksum;
+        this.parallelism = Math.max(1, parallelism);
+        this.memory = memory;
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Reads the byte at <code>pos</code>, which must be before the end of
+     * the file.
+     */
+    int read(long pos) throws IOException {
+        Segment segment = segmentFor(pos);
+        return segment.data[(int) (pos - segment.offset)] & 0xff;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes of the file at <code>pos</code>,
+     * which must be before its end.
+     */
+    int read(long pos, byte[] buf, int off, int len) throws IOException {
+        Segment segment = segmentFor(pos);
+        int n = (int) Math.min(len, segment.offset + segment.length - pos);
+        System.arraycopy(segment.data, (int) (pos - segment.offset), buf, off, n);
+        return n;
+    }
+
+    /**
+     * Reads into <code>buf</code> from <code>pos</code>, which must be
+     * before the end of the file.
+     */
+    int read(long pos, ByteBuffer buf) throws IOException {
+        Segment segment = segmentFor(pos);
+        int n = (int) Math.min(buf.remaining(), segment.offset + segment.length - pos);
+        buf.put(segment.data, (int) (pos - segment.offset), n);
+        return n;
+    }
+
+    void close() {
+        cancel();
+        release(current);
+        current = null;
+    }
+
+    /**
+     * Returns the segment holding <code>pos</code>, keeping the ones after
+     * it in flight.
+     */
+    private Segment segmentFor(long pos) throws IOException {
+        if (current != null && pos >= current.offset
+            && pos < current.offset + current.length) {
+            return current;
+        }
+        release(current);
+        current = null;
+        while (current == null) {
+            if (inFlight.isEmpty() || !scheduled(pos)) {
+                cancel();
+                nextFetch = pos;
+            }
+            fill();
+            Segment segment = await(inFlight.removeFirst());
+            bytesInFlight -= inFlightBytes.removeFirst();
+            if (pos >= segment.offset && pos < segment.offset + segment.length) {
+                current = segment;
+            } else if (segment.length == 0 || segment.offset > pos) {
+                release(segment);
+                throw new EOFException("No data for offset " + pos);
+            } else {
+                release(segment);
+            }
+        }
+        fill();
+        return current;
+    }
+
+    /**
+     * Whether <code>pos</code> is in the range being fetched.
+     */
+    private boolean scheduled(long pos) {
+        return pos < nextFetch && pos >= nextFetch - bytesInFlight;
+    }
+
+    /**
+     * Keeps up to <code>parallelism</code> segments, and at most
+     * <code>memory</code> bytes, in flight; at least one while any of the
+     * file is left.
+     */
+    private void fill() throws IOException {
+        while (inFlight.size() < parallelism && nextFetch < length) {
+            int i = RadosFileInputStream.blockIndex(blocks, blockStarts, nextFetch);
+            if (i < 0) {
+                throw new EOFException("No block holds offset " + nextFetch);
+            }
+            final Block block = blocks[i];
+            final long blockStart = blockStarts[i];
+            final long start;
+            final int size;
+            final boolean whole = block.isPacked() || block.isCompressed();
+            if (whole) {
+                start = blockStart;
+                size = (int) block.getLength();
+            } else {
+                start = nextFetch;
+                size = (int) Math.min(chunkSize, blockStart + block.getLength() - start);
+            }
+            if (!inFlight.isEmpty() && bytesInFlight + size > memory) {
+                return;
+            }
+            try {
+                inFlight.addLast(store.getIOExecutor().submit(new Callable<Segment>() {
+                    public Segment call() throws IOException {
+                        if (whole) {
+                            return new Segment(start, store.readBlock(block, verifyChecksum),
+                                               size, false);
+                        }
+                        byte[] data = store.getBufferPool().take(size);
+                        FSInputStream in = store.openBlock(block, verifyChecksum);
+                        try {
+                            in.readFully(start - blockStart, data, 0, size);
+                        } finally {
+                            in.close();
+                        }
+                        return new Segment(start, data, size, true);
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                throw new IOException("read rejected", e);
+            }
+            inFlightBytes.addLast((long) size);
+            bytesInFlight += size;
+            nextFetch = start + size;
+        }
+    }
+
+    private void cancel() {
+        for (Future<Segment> future : inFlight) {
+            future.cancel(false);
+        }
+        inFlight.clear();
+        inFlightBytes.clear();
+        bytesInFlight = 0;
+    }
+
+    private void release(Segment segment) {
+        if (segment != null && segment.pooled) {
+            store.getBufferPool().put(segment.data);
+        }
+    }
+
+    private Segment await(Future<Segment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            cancel();
+            throw new InterruptedIOException("read interrupted");
+        } catch (ExecutionException e) {
+            cancel();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("read failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.Time;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Deletes a directory tree, or a list of objects, with a pool of workers.
+ * <p>
+ * A tree is walked once, level by level, to collect every file and
+ * directory with its {@link INode} and inode id. Files are then removed by
+ * id in batches, each file's INode before its blocks, and directories are
+ * removed deepest level first, so no path is looked up again. Children
+ * skip the update of their parent's index, since the parent goes away too.
+ * The first failure stops the delete: nothing more is scheduled, no
+ * directory above the failure is removed, and the surviving directories
+ * have their indexes fixed up before the error is rethrown.
+ */
+public class ParallelDeleter {
+
+    private static final long PROGRESS_INTERVAL = 10 * 1000;
+
+    private static final Log LOG =
+        LogFactory.getLog(ParallelDeleter.class.getName());
+
+    private final RadosFileSystemStore store;
+    private final int workers;
+    private final int batchSize;
+    private final Progressable progress;
+
+    private final AtomicLong removed = new AtomicLong();
+    private final ConcurrentLinkedQueue<Path> deletedPaths =
+        new ConcurrentLinkedQueue<Path>();
+    private long total;
+    private long lastReport;
+
+    private static class Entry {
+        final Path path;
+        final long id;
+        final INode inode;
+
+        Entry(Path path, long id, INode inode) {
+            this.path = path;
+            this.id = id;
+            this.inode = inode;
+        }
+    }
+
+    public ParallelDeleter(RadosFileSystemStore store, int workers,
+                           int batchSize, Progressable progress) {
+        this.store = store;
+        this.workers = Math.max(1, workers);
+        this.batchSize = Math.max(1, batchSize);
+        this.progress = progress;
+    }
+
+    /**
+     * Deletes the directory <code>dir</code> and everything under it.
+     */
+    public void deleteTree(Path dir) throws IOException {
+        ExecutorService executor = newExecutor();
+        try {
+            List<List<Entry>> levels = new ArrayList<List<Entry>>();
+            List<Entry> files = new ArrayList<Entry>();
+            collect(executor, dir, levels, files);
+            total = files.size();
+            for (List<Entry> level : levels) {
+                total += level.size();
+            }
+            lastReport = Time.monotonicNow();
+
+            try {
+                run(executor, files, new Task() {
+                    public void delete(Entry file) throws IOException {
+                        store.deleteINode(file.path, file.id, file.inode);
+                        deletedPaths.add(file.path);
+                        Block[] blocks = file.inode.getBlocks();
+                        if (blocks != null) {
+                            for (Block block : blocks) {
+                                store.deleteBlock(block);
+                            }
+                        }
+                    }
+                });
+                for (int i = levels.size() - 1; i >= 0; i--) {
+                    run(executor, levels.get(i), new Task() {
+                        public void delete(Entry dir) throws IOException {
+                            store.deleteINode(dir.path, dir.id, dir.inode);
+                            deletedPaths.add(dir.path);
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                // cancelled batches may still be removing entries
+                executor.shutdownNow();
+                awaitTermination(executor);
+                repairIndexes();
+                throw e;
+            }
+            store.deleteINode(dir);
+            LOG.info("Deleted " + dir + ": " + (removed.get() + 1) + " entries");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Removes the given objects.
+     */
+    public void removeObjects(final List<String> objects) throws IOException {
+        removeObjects(new RemoteIterator<String>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < objects.size();
+            }
+
+            public String next() {
+                return objects.get(next++);
+            }
+        });
+    }
+
+    /**
+     * Removes the objects named by <code>objects</code> as they are listed.
+     * Only a bounded number of batches are held at a time, so the names
+     * can come from a listing of a whole pool. Objects that are already
+     * gone are skipped.
+     */
+    public void removeObjects(RemoteIterator<String> objects) throws IOException {
+        ExecutorService executor = newExecutor();
+        LinkedList<Future<?>> inFlight = new LinkedList<Future<?>>();
+        try {
+            total = -1;
+            lastReport = Time.monotonicNow();
+            while (objects.hasNext()) {
+                final List<String> batch = new ArrayList<String>(batchSize);
+                while (batch.size() < batchSize && objects.hasNext()) {
+                    batch.add(objects.next());
+                }
+                if (inFlight.size() >= 2 * workers) {
+                    await(inFlight.removeFirst());
+                }
+                inFlight.addLast(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        for (String object : batch) {
+                            store.removeObject(object);
+                        }
+                        batchDone(batch.size());
+                        return null;
+                    }
+                }));
+            }
+            awaitAll(inFlight);
+        } catch (IOException e) {
+            cancelAll(inFlight);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface Task {
+        void delete(Entry entry) throws IOException;
+    }
+
+    /**
+     * Walks the tree under <code>root</code> one level at a time, listing
+     * the directories of a level in parallel.
+     */
+    private void collect(ExecutorService executor, Path root,
+                         List<List<Entry>> levels, List<Entry> files)
+        throws IOException {
+        List<Entry> current = Collections.singletonList(
+            new Entry(root, store.getId(root), null));
+        while (!current.isEmpty()) {
+            List<Future<List<Entry>>> listings = new ArrayList<Future<List<Entry>>>();
+            for (final Entry dir : current) {
+                listings.add(executor.submit(new Callable<List<Entry>>() {
+                    public List<Entry> call() throws IOException {
+                        DirectoryLister children = store.listChildren(dir.path, dir.id);
+                        List<Entry> entries = new ArrayList<Entry>();
+                        while (children.hasNext()) {
+                            DirectoryLister.Child child = children.nextChild();
+                            entries.add(new Entry(child.getKey(), child.id, child.getValue()));
+                        }
+                        return entries;
+                    }
+                }));
+            }
+            List<Entry> dirs = new ArrayList<Entry>();
+            for (Future<List<Entry>> listing : listings) {
+                for (Entry entry : await(listing)) {
+                    if (entry.inode.isDirectory()) {
+                        dirs.add(entry);
+                    } else {
+                        files.add(entry);
+                    }
+                }
+            }
+            if (!dirs.isEmpty()) {
+                levels.add(dirs);
+            }
+            current = dirs;
+        }
+    }
+
+    /**
+     * Runs <code>task</code> over <code>entries</code> in batches and waits
+     * for all of them.
+     */
+    private void run(ExecutorService executor, final List<Entry> entries,
+                     final Task task) throws IOException {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int start = 0; start < entries.size(); start += batchSize) {
+            final int from = start;
+            final int to = Math.min(entries.size(), start + batchSize);
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    for (int i = from; i < to; i++) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            throw new InterruptedIOException("delete cancelled");
+                        }
+                        task.delete(entries.get(i));
+                    }
+                    batchDone(to - from);
+                    return null;
+                }
+            }));
+        }
+        awaitAll(futures);
+    }
+
+    /**
+     * Waits for every future; on the first failure cancels the rest and
+     * rethrows it.
+     */
+    private void awaitAll(List<? extends Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> future : futures) {
+                await(future);
+            }
+        } catch (IOException e) {
+            cancelAll(futures);
+            throw e;
+        }
+    }
+
+    private void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception ignored) {
+                // already failed or cancelled
+            }
+        }
+    }
+
+    private void awaitTermination(ExecutorService executor) throws IOException {
+        try {
+            while (!executor.awaitTermination(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS)) {
+                LOG.info("Waiting for cancelled deletes to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("delete interrupted");
+        }
+    }
+
+    private <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("delete interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("delete failed", e.getCause());
+        }
+    }
+
+    /**
+     * Drops the entries of deleted paths from the indexes of directories
+     * that survive a failed delete.
+     */
+    private void repairIndexes() {
+        Set<Path> deleted = new HashSet<Path>(deletedPaths);
+        for (Path path : deleted) {
+            if (!deleted.contains(path.getParent())) {
+                try {
+                    store.removeFromParentIndex(path);
+                } catch (IOException e) {
+                    LOG.warn("Could not update the index of " + path.getParent(), e);
+                }
+            }
+        }
+    }
+
+    private void batchDone(int count) {
+        long done = removed.addAndGet(count);
+        if (progress != null) {
+            progress.progress();
+        }
+        synchronized (this) {
+            long now = Time.monotonicNow();
+            if (now - lastReport >= PROGRESS_INTERVAL) {
+                lastReport = now;
+                LOG.info("Deleted " + done + (total < 0 ? "" : " of " + total)
+                         + " entries");
+            }
+        }
+    }
+
+    private ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(workers,
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("rados-delete-%d").build());
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * Reads a file written as a sequence of {@link Block}s, or stored inline
+ * in its {@link INode}. The block holding an offset is found by a binary
+ * search of the block offsets, summed once when the stream is opened.
+ * <p>
+ * While a block is read, the next block, if compressed, is already being
+ * fetched and decompressed in the background. With
+ * {@link RadosFileSystemConfigKeys#RADOS_READ_PARALLELISM_KEY} set, the
+ * following blocks are instead fetched several at a time by a
+ * {@link ParallelBlockReader}.
+ * <p>
+ * Positional reads neither move the position nor take the stream lock:
+ * each reads the blocks holding its range through streams of its own, so
+ * many threads can read one open file at once.
+ */
+public class RadosFileInputStream extends FSInputStream
+    implements ByteBufferReadable {
+
+    private final RadosFileSystemStore store;
+    private final Block[] blocks;
+    // blockStarts[i] is the offset of block i in the file
+    private final long[] blockStarts;
+    private final byte[] inlineData;
+    private final long length;
+    private final boolean verifyChecksum;
+    private final FileSystem.Statistics stats;
+
+    private volatile boolean closed;
+    private long pos = 0;
+
+    private FSInputStream blockStream;
+    private long blockStart = 0;
+    private long blockEnd = -1;
+
+    private Future<byte[]> nextBlock;
+    private int nextBlockIndex = -1;
+
+    private final ParallelBlockReader parallel;
+
+    public RadosFileInputStream(RadosFileSystemStore store, INode inode) {
+        this(store, inode, true);
+    }
+
+    /**
+     * @param verifyChecksum whether to check the data read against the
+     *        checksums of its blocks
+     */
+    public RadosFileInputStream(RadosFileSystemStore store, INode inode,
+                                boolean verifyChecksum) {
+        this(store, inode, verifyChecksum, null);
+    }
+
+    /**
+     * @param stats where to count the bytes read, or null
+     */
+    public RadosFileInputStream(RadosFileSystemStore store, INode inode,
+                                boolean verifyChecksum,
+                                FileSystem.Statistics stats) {
+        this.store = store;
+        this.verifyChecksum = verifyChecksum;
+        this.stats = stats;
+        this.blocks = inode.getBlocks() == null ? new Block[0] : inode.getBlocks();
+        this.blockStarts = new long[blocks.length];
+        long start = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            blockStarts[i] = start;
+            start += blocks[i].getLength();
+        }
+        this.inlineData = inode.getInlineData();
+        this.length = inode.getLength();
+        this.closed = false;
+        Configuration conf = store.getConf();
+        int parallelism = conf == null ? 0 : conf.getInt(
+            RadosFileSystemConfigKeys.RADOS_READ_PARALLELISM_KEY,
+            RadosFileSystemConfigKeys.RADOS_READ_PARALLELISM_DEFAULT);
+        if (parallelism > 0 && inlineData == null && blocks.length > 0) {
+            parallel = new ParallelBlockReader(store, blocks, blockStarts, length,
+                verifyChecksum, parallelism,
+                conf.getLong(RadosFileSystemConfigKeys.RADOS_READ_PARALLEL_MEMORY_KEY,
+                             RadosFileSystemConfigKeys.RADOS_READ_PARALLEL_MEMORY_DEFAULT),
+                conf.getInt(RadosFileSystemConfigKeys.RADOS_READ_PARALLEL_CHUNK_SIZE_KEY,
+                            RadosFileSystemConfigKeys.RADOS_READ_PARALLEL_CHUNK_SIZE_DEFAULT));
+        } else {
+            parallel = null;
+        }
+    }
+
+    @Override
+    public synchronized long getPos() throws IOException {
+        return pos;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, length - pos);
+    }
+
+    @Override
+    public synchronized void seek(long targetPos) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (targetPos < 0) {
+            throw new EOFException("Cannot seek to negative offset " + targetPos);
+        }
+        if (targetPos > length) {
+            throw new EOFException("Cannot seek past end of file " + targetPos);
+        }
+        pos = targetPos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (pos >= length) {
+            return -1;
+        }
+        int b;
+        if (inlineData != null) {
+            b = inlineData[(int) pos] & 0xff;
+        } else if (parallel != null) {
+            b = parallel.read(pos);
+        } else {
+            b = blockFor(pos).read();
+            if (b < 0) {
+                throw new EOFException("Block ended early at offset " + pos);
+            }
+        }
+        pos++;
+        if (stats != null) {
+            stats.incrementBytesRead(1);
+        }
+        return b;
+    }
+
+    @Override
+    public synchronized int read(byte buf[], int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (pos >= length) {
+            return -1;
+        }
+        if (inlineData != null) {
+            int n = (int) Math.min(len, length - pos);
+            System.arraycopy(inlineData, (int) pos, buf, off, n);
+            pos += n;
+            if (stats != null) {
+                stats.incrementBytesRead(n);
+            }
+            return n;
+        }
+        int read;
+        if (parallel != null) {
+            read = parallel.read(pos, buf, off, (int) Math.min(len, length - pos));
+        } else {
+            FSInputStream in = blockFor(pos);
+            read = in.read(buf, off, (int) Math.min(len, blockEnd - pos));
+            if (read < 0) {
+                throw new EOFException("Block ended early at offset " + pos);
+            }
+        }
+        pos += read;
+        if (stats != null) {
+            stats.incrementBytesRead(read);
+        }
+        return read;
+    }
+
+    /**
+     * Reads from <code>position</code>, within one block, without moving
+     * the stream position or taking the stream lock.
+     */
+    @Override
+    public int read(long position, byte[] buf, int off, int len)
+        throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (position < 0) {
+            throw new EOFException("Cannot read at negative offset " + position);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (position >= length) {
+            return -1;
+        }
+        int n = (int) Math.min(len, length - position);
+        if (inlineData != null) {
+            System.arraycopy(inlineData, (int) position, buf, off, n);
+        } else {
+            int i = blockIndex(blocks, blockStarts, position);
+            if (i < 0) {
+                throw new EOFException("No block holds offset " + position);
+            }
+            long within = position - blockStarts[i];
+            n = (int) Math.min(n, blocks[i].getLength() - within);
+            FSInputStream in = store.openBlock(blocks[i], verifyChecksum);
+            try {
+                in.readFully(within, buf, off, n);
+            } finally {
+                in.close();
+            }
+        }
+        if (stats != null) {
+            stats.incrementBytesRead(n);
+        }
+        return n;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buf, int off, int len)
+        throws IOException {
+        int done = 0;
+        while (done < len) {
+            int read = read(position + done, buf, off + done, len - done);
+            if (read < 0) {
+                throw new EOFException("End of file reached before reading fully.");
+            }
+            done += read;
+        }
+    }
+
+    @Override
+    public void readFully(long position, byte[] buf) throws IOException {
+        readFully(position, buf, 0, buf.length);
+    }
+
+    /**
+     * Reads into <code>buf</code> from the current position, within one
+     * block at a time.
+     */
+    public synchronized int read(ByteBuffer buf) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (!buf.hasRemaining()) {
+            return 0;
+        }
+        if (pos >= length) {
+            return -1;
+        }
+        int read;
+        if (inlineData != null) {
+            read = (int) Math.min(buf.remaining(), length - pos);
+            buf.put(inlineData, (int) pos, read);
+        } else if (parallel != null) {
+            read = parallel.read(pos, buf);
+        } else {
+            ByteBufferReadable in = (ByteBufferReadable) blockFor(pos);
+            int limit = buf.limit();
+            if (blockEnd - pos < buf.remaining()) {
+                buf.limit(buf.position() + (int) (blockEnd - pos));
+            }
+            try {
+                read = in.read(buf);
+            } finally {
+                buf.limit(limit);
+            }
+            if (read < 0) {
+                throw new EOFException("Block ended early at offset " + pos);
+            }
+        }
+        pos += read;
+        if (stats != null) {
+            stats.incrementBytesRead(read);
+        }
+        return read;
+    }
+
+    /**
+     * Returns a stream over the block holding <code>target</code>,
+     * positioned at that offset.
+     */
+    private FSInputStream blockFor(long target) throws IOException {
+        if (blockStream == null || target < blockStart || target >= blockEnd) {
+            closeBlock();
+            int i = blockIndex(blocks, blockStarts, target);
+            if (i < 0) {
+                throw new EOFException("No block holds offset " + target);
+            }
+            blockStream = openBlock(i);
+            blockStart = blockStarts[i];
+            blockEnd = blockStarts[i] + blocks[i].getLength();
+        }
+        if (blockStream.getPos() != target - blockStart) {
+            blockStream.seek(target - blockStart);
+        }
+        return blockStream;
+    }
+
+    /**
+     * Returns the index of the block holding <code>target</code>, or -1 if
+     * none does.
+     *
+     * @param blockStarts the offset of each of <code>blocks</code>
+     */
+    static int blockIndex(Block[] blocks, long[] blockStarts, long target) {
+        int i = Arrays.binarySearch(blockStarts, target);
+        if (i < 0) {
+            // the last block starting before target
+            i = -i - 2;
+        }
+        // skip empty blocks starting at target
+        while (i >= 0 && i < blocks.length && blocks[i].getLength() == 0) {
+            i++;
+        }
+        if (i < 0 || i >= blocks.length
+            || target >= blockStarts[i] + blocks[i].getLength()) {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Opens block <code>i</code>, and starts fetching the block after it
+     * if that one is compressed.
+     */
+    private FSInputStream openBlock(int i) {
+        FSInputStream in;
+        if (i == nextBlockIndex) {
+            in = new BufferedBlockInputStream(blocks[i], nextBlock);
+            nextBlock = null;
+            nextBlockIndex = -1;
+        } else {
+            in = store.openBlock(blocks[i], verifyChecksum);
+        }
+        if (nextBlockIndex != i + 1) {
+            cancelNextBlock();
+            if (i + 1 < blocks.length && blocks[i + 1].isCompressed()) {
+                nextBlock = store.fetchBlock(blocks[i + 1], verifyChecksum);
+                nextBlockIndex = i + 1;
+            }
+        }
+        return in;
+    }
+
+    private void cancelNextBlock() {
+        if (nextBlock != null) {
+            nextBlock.cancel(true);
+            nextBlock = null;
+            nextBlockIndex = -1;
+        }
+    }
+
+    private void closeBlock() throws IOException {
+        if (blockStream != null) {
+            blockStream.close();
+            blockStream = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closeBlock();
+        cancelNextBlock();
+        if (parallel != null) {
+            parallel.close();
+        }
+        super.close();
+        closed = true;
+    }
+
+    /**
+     * We don't support marks.
+     */
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        // Do nothing
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark not supported");
+    }
+}
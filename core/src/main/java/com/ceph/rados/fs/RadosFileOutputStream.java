@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Path;
+
+import com.ceph.rados.fs.INode.FileType;
+
+/**
+ * Writes a file as a sequence of {@link Block}s.
+ * <p>
+ * Data is collected in a block-sized buffer, and every full buffer is
+ * uploaded in the background on the store's I/O executor. At most the
+ * configured number of blocks are in flight per stream; a writer that gets
+ * further ahead waits for an upload to finish, so memory stays bounded.
+ * The {@link INode} listing the blocks is written by {@link #close()} once
+ * every upload has completed. A file that ends up no larger than the
+ * configured inline threshold is stored inside its INode instead, with a
+ * single write.
+ */
+public class RadosFileOutputStream extends OutputStream {
+
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BLOCK_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final Log LOG =
+        LogFactory.getLog(RadosFileOutputStream.class.getName());
+
+    private final RadosFileSystemStore store;
+    private final Path path;
+    private final int blockSize;
+    private final int inlineThreshold;
+    private final Semaphore inFlight;
+    private final List<Future<Block>> uploads = new ArrayList<Future<Block>>();
+    private final LinkedBlockingQueue<byte[]> freeBuffers =
+        new LinkedBlockingQueue<byte[]>();
+    private int checkedUploads = 0;
+
+    private byte[] buffer;
+    private int count = 0;
+    private long length = 0;
+    private boolean closed = false;
+
+    public RadosFileOutputStream(RadosFileSystemStore store, Path path,
+                                 long blockSize) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Invalid block size " + blockSize);
+        }
+        this.store = store;
+        this.path = path;
+        this.blockSize = (int) blockSize;
+        this.inlineThreshold = store.getConf().getInt(
+            RadosFileSystemConfigKeys.RADOS_INLINE_THRESHOLD_KEY,
+            RadosFileSystemConfigKeys.RADOS_INLINE_THRESHOLD_DEFAULT);
+        this.inFlight = new Semaphore(Math.max(1, store.getConf().getInt(
+            RadosFileSystemConfigKeys.RADOS_WRITE_MAX_INFLIGHT_BLOCKS_KEY,
+            RadosFileSystemConfigKeys.RADOS_WRITE_MAX_INFLIGHT_BLOCKS_DEFAULT)));
+        this.buffer = new byte[Math.min(INITIAL_BUFFER_SIZE, this.blockSize)];
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        ensureCapacity(count + 1);
+        buffer[count++] = (byte) b;
+        length++;
+        if (count == blockSize) {
+            upload();
+        }
+    }
+
+    @Override
+    public synchronized void write(byte buf[], int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            ensureCapacity(count + n);
+            System.arraycopy(buf, off, buffer, count, n);
+            count += n;
+            length += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                upload();
+            }
+        }
+    }
+
+    /**
+     * Data only becomes visible once the stream is closed.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (uploads.isEmpty() && count > 0 && count <= inlineThreshold) {
+                store.storeINode(path, new INode(Arrays.copyOf(buffer, count),
+                                                 System.currentTimeMillis(), blockSize));
+                return;
+            }
+            if (count > 0) {
+                upload();
+            }
+            Block[] blocks = new Block[uploads.size()];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = await(uploads.get(i));
+            }
+            store.storeINode(path, new INode(FileType.FILE, blocks, length,
+                                             System.currentTimeMillis(), blockSize));
+        } catch (IOException e) {
+            abort();
+            throw e;
+        } finally {
+            buffer = null;
+            freeBuffers.clear();
+            super.close();
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer,
+                Math.min(blockSize, Math.max(capacity, 2 * buffer.length)));
+        }
+    }
+
+    /**
+     * Hands the current buffer to the uploader, waiting while the maximum
+     * number of blocks are in flight.
+     */
+    private void upload() throws IOException {
+        checkUploads();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for block upload");
+        }
+        final byte[] data = buffer;
+        final int len = count;
+        try {
+            uploads.add(store.getIOExecutor().submit(new Callable<Block>() {
+                public Block call() throws IOException {
+                    try {
+                        return store.createAndStoreBlock(data, len);
+                    } finally {
+                        if (data.length == blockSize) {
+                            freeBuffers.offer(data);
+                        }
+                        inFlight.release();
+                    }
+                }
+            }));
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw new IOException("block upload rejected", e);
+        }
+        count = 0;
+        if (!closed) {
+            // the file spans several blocks, so reuse full-size buffers
+            buffer = freeBuffers.poll();
+            if (buffer == null) {
+                buffer = new byte[blockSize];
+            }
+        }
+    }
+
+    /**
+     * Fails fast if an upload that already finished has failed.
+     */
+    private void checkUploads() throws IOException {
+        while (checkedUploads < uploads.size()
+               && uploads.get(checkedUploads).isDone()) {
+            await(uploads.get(checkedUploads++));
+        }
+    }
+
+    private Block await(Future<Block> upload) throws IOException {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for block upload");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("block upload failed", e.getCause());
+        }
+    }
+
+    /**
+     * Removes the blocks that were uploaded for a file that could not be
+     * committed.
+     */
+    private void abort() {
+        for (Future<Block> upload : uploads) {
+            try {
+                store.deleteBlock(upload.get());
+            } catch (Exception e) {
+                // upload failed, or the block cannot be removed
+                LOG.debug("Could not clean up a block of " + path, e);
+            }
+        }
+    }
+}
@@ -39,5 +39,121 @@ public class RadosFileSystemConfigKeys extends CommonConfigurationKeys {
   public static final String  S3_CLIENT_WRITE_PACKET_SIZE_KEY =
                                                     "s3.client-write-packet-size";
   public static final int     S3_CLIENT_WRITE_PACKET_SIZE_DEFAULT = 64*1024;
+  public static final String  RADOS_DIR_INDEX_SHARD_ENTRIES_KEY =
+                                                    "rados.dir-index.shard-entries";
+  public static final int     RADOS_DIR_INDEX_SHARD_ENTRIES_DEFAULT = 8192;
+  public static final String  RADOS_SEAL_TIMEOUT_KEY = "rados.seal.timeout";
+  public static final long    RADOS_SEAL_TIMEOUT_DEFAULT = 60*1000;
+  public static final String  RADOS_INODE_CACHE_ENTRIES_KEY =
+                                                    "rados.inode-cache.entries";
+  public static final int     RADOS_INODE_CACHE_ENTRIES_DEFAULT = 16384;
+  public static final String  RADOS_INODE_CACHE_TTL_KEY =
+                                                    "rados.inode-cache.ttl";
+  public static final long    RADOS_INODE_CACHE_TTL_DEFAULT = 30*1000;
+  public static final String  RADOS_INODE_CACHE_NEGATIVE_TTL_KEY =
+                                                    "rados.inode-cache.negative-ttl";
+  public static final long    RADOS_INODE_CACHE_NEGATIVE_TTL_DEFAULT = 5*1000;
+  public static final String  RADOS_IO_THREADS_KEY = "rados.io.threads";
+  public static final int     RADOS_IO_THREADS_DEFAULT = 16;
+  public static final String  RADOS_READAHEAD_MIN_KEY = "rados.readahead.min";
+  public static final int     RADOS_READAHEAD_MIN_DEFAULT = 64*1024;
+  public static final String  RADOS_READAHEAD_MAX_KEY = "rados.readahead.max";
+  public static final int     RADOS_READAHEAD_MAX_DEFAULT = 4*1024*1024;
+  public static final String  RADOS_READAHEAD_PREFETCH_DEPTH_KEY =
+                                                    "rados.readahead.prefetch-depth";
+  public static final int     RADOS_READAHEAD_PREFETCH_DEPTH_DEFAULT = 2;
+  public static final String  RADOS_READAHEAD_BUFFER_POOL_SIZE_KEY =
+                                                    "rados.readahead.buffer-pool-size";
+  public static final long    RADOS_READAHEAD_BUFFER_POOL_SIZE_DEFAULT = 64*1024*1024;
+  public static final String  RADOS_WRITE_CHUNK_SIZE_KEY = "rados.write.chunk-size";
+  public static final int     RADOS_WRITE_CHUNK_SIZE_DEFAULT = 4*1024*1024;
+  public static final String  RADOS_READ_PARALLELISM_KEY = "rados.read.parallelism";
+  public static final int     RADOS_READ_PARALLELISM_DEFAULT = 0;
+  public static final String  RADOS_READ_PARALLEL_MEMORY_KEY =
+                                                    "rados.read.parallel-memory";
+  public static final long    RADOS_READ_PARALLEL_MEMORY_DEFAULT = 256*1024*1024;
+  public static final String  RADOS_READ_PARALLEL_CHUNK_SIZE_KEY =
+                                                    "rados.read.parallel-chunk-size";
+  public static final int     RADOS_READ_PARALLEL_CHUNK_SIZE_DEFAULT = 8*1024*1024;
+  public static final String  RADOS_WRITE_MAX_INFLIGHT_BLOCKS_KEY =
+                                                    "rados.write.max-inflight-blocks";
+  public static final int     RADOS_WRITE_MAX_INFLIGHT_BLOCKS_DEFAULT = 4;
+  public static final String  RADOS_DELETE_THREADS_KEY = "rados.delete.threads";
+  public static final int     RADOS_DELETE_THREADS_DEFAULT = 32;
+  public static final String  RADOS_DELETE_BATCH_SIZE_KEY =
+                                                    "rados.delete.batch-size";
+  public static final int     RADOS_DELETE_BATCH_SIZE_DEFAULT = 100;
+  public static final String  RADOS_NAMESPACE_MIGRATE_KEY =
+                                                    "rados.namespace.migrate";
+  public static final boolean RADOS_NAMESPACE_MIGRATE_DEFAULT = false;
+  public static final String  RADOS_LIST_PARALLELISM_KEY =
+                                                    "rados.list.parallelism";
+  public static final int     RADOS_LIST_PARALLELISM_DEFAULT = 32;
+  public static final String  RADOS_LIST_PAGE_SIZE_KEY = "rados.list.page-size";
+  public static final int     RADOS_LIST_PAGE_SIZE_DEFAULT = 1000;
+  public static final String  RADOS_INLINE_THRESHOLD_KEY =
+                                                    "rados.inline.threshold";
+  public static final int     RADOS_INLINE_THRESHOLD_DEFAULT = 64*1024;
+  public static final String  RADOS_PACK_ENABLED_KEY = "rados.pack.enabled";
+  public static final boolean RADOS_PACK_ENABLED_DEFAULT = false;
+  public static final String  RADOS_PACK_MAX_BLOCK_SIZE_KEY =
+                                                    "rados.pack.max-block-size";
+  public static final long    RADOS_PACK_MAX_BLOCK_SIZE_DEFAULT = 2*1024*1024;
+  public static final String  RADOS_PACK_TARGET_SIZE_KEY =
+                                                    "rados.pack.target-size";
+  public static final long    RADOS_PACK_TARGET_SIZE_DEFAULT = 64*1024*1024;
+  public static final String  RADOS_PACK_COMPACT_THRESHOLD_KEY =
+                                                    "rados.pack.compact-threshold";
+  public static final float   RADOS_PACK_COMPACT_THRESHOLD_DEFAULT = 0.5f;
+  public static final String  RADOS_PACK_COMPACT_INTERVAL_KEY =
+                                                    "rados.pack.compact-interval";
+  public static final long    RADOS_PACK_COMPACT_INTERVAL_DEFAULT = 0;
+  public static final String  RADOS_COMPRESSION_CODEC_KEY =
+                                                    "rados.compression.codec";
+  public static final String  RADOS_COMPRESSION_CODEC_DEFAULT = "none";
+  public static final String  RADOS_COMPRESSION_DEFLATE_LEVEL_KEY =
+                                                    "rados.compression.deflate-level";
+  public static final int     RADOS_COMPRESSION_DEFLATE_LEVEL_DEFAULT = 6;
+  public static final String  RADOS_COMPRESSION_MAX_RATIO_KEY =
+                                                    "rados.compression.max-ratio";
+  public static final float   RADOS_COMPRESSION_MAX_RATIO_DEFAULT = 0.9f;
+  public static final String  RADOS_COMPRESSION_THREADS_KEY =
+                                                    "rados.compression.threads";
+  public static final int     RADOS_COMPRESSION_THREADS_DEFAULT = 0;
+  public static final String  RADOS_BYTES_PER_CHECKSUM_KEY =
+                                                    "rados.bytes-per-checksum";
+  public static final int     RADOS_BYTES_PER_CHECKSUM_DEFAULT = 512;
+  public static final String  RADOS_BLOCK_LOCATION_RESOLVER_KEY =
+                                                    "rados.block-location.resolver";
+  public static final String  RADOS_BLOCK_LOCATION_HOSTS_KEY =
+                                                    "rados.block-location.hosts";
+  public static final String  RADOS_BLOCK_LOCATION_HOSTS_DEFAULT = "localhost";
+  public static final String  RADOS_BLOCK_LOCATION_REPLICAS_KEY =
+                                                    "rados.block-location.replicas";
+  public static final int     RADOS_BLOCK_LOCATION_REPLICAS_DEFAULT = 3;
+  public static final String  RADOS_OBJECT_STORE_IMPL_KEY =
+                                                    "rados.object-store.impl";
+  public static final String  RADOS_OBJECT_STORE_ASYNC_THREADS_KEY =
+                                                    "rados.object-store.async-threads";
+  public static final int     RADOS_OBJECT_STORE_ASYNC_THREADS_DEFAULT = 16;
+  public static final String  RADOS_OBJECT_STORE_CONNECTIONS_KEY =
+                                                    "rados.object-store.connections";
+  public static final int     RADOS_OBJECT_STORE_CONNECTIONS_DEFAULT = 1;
+  public static final String  RADOS_OBJECT_STORE_ASSIGNMENT_KEY =
+                                                    "rados.object-store.connection-assignment";
+  public static final String  RADOS_OBJECT_STORE_ASSIGNMENT_DEFAULT = "thread";
+  public static final String  RADOS_SIMULATOR_LATENCY_KEY =
+                                                    "rados.simulator.latency";
+  public static final String  RADOS_SIMULATOR_LATENCY_DEFAULT = "none";
+  public static final String  RADOS_SIMULATOR_READ_BANDWIDTH_KEY =
+                                                    "rados.simulator.read-bandwidth";
+  public static final long    RADOS_SIMULATOR_READ_BANDWIDTH_DEFAULT = 0;
+  public static final String  RADOS_SIMULATOR_WRITE_BANDWIDTH_KEY =
+                                                    "rados.simulator.write-bandwidth";
+  public static final long    RADOS_SIMULATOR_WRITE_BANDWIDTH_DEFAULT = 0;
+  public static final String  RADOS_SIMULATOR_FAILURE_RATE_KEY =
+                                                    "rados.simulator.failure-rate";
+  public static final float   RADOS_SIMULATOR_FAILURE_RATE_DEFAULT = 0;
+  public static final String  RADOS_SIMULATOR_SEED_KEY = "rados.simulator.seed";
+  public static final long    RADOS_SIMULATOR_SEED_DEFAULT = 0;
 }
-  
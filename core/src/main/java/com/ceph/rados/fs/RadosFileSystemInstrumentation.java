@@ -0,0 +1,207 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.hadoop.metrics2.MetricsCollector;
+import org.apache.hadoop.metrics2.MetricsInfo;
+import org.apache.hadoop.metrics2.MetricsRecordBuilder;
+import org.apache.hadoop.metrics2.MetricsSource;
+import org.apache.hadoop.metrics2.impl.MetricsSystemImpl;
+import org.apache.hadoop.metrics2.lib.Interns;
+
+/**
+ * Counts the operations of a {@link RadosFileSystemStore}, the bytes they
+ * moved and their latencies, and publishes them through Hadoop metrics2,
+ * which also makes them visible over JMX.
+ * <p>
+ * Every registered store in the process adds a record, tagged with its
+ * pool and a number, to one source of a metrics system of its own with
+ * the prefix <code>rados-file-system</code>, so publishing neither
+ * depends on nor disturbs the metrics system of the hosting process.
+ */
+public class RadosFileSystemInstrumentation {
+
+    public enum Op {
+        STAT("Stat"), READ("Read"), WRITE("Write"), REMOVE("Remove"),
+        LIST("List"), INODE_FETCH("INodeFetch");
+
+        private final String name;
+
+        Op(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final String METRICS_PREFIX = "rados-file-system";
+    private static final String CONTEXT = "rados";
+    private static final Op[] OPS = Op.values();
+
+    private static final Set<RadosFileSystemInstrumentation> REGISTERED =
+        new CopyOnWriteArraySet<RadosFileSystemInstrumentation>();
+    private static MetricsSystemImpl metricsSystem;
+    private static int nextInstance = 0;
+
+    private final LatencyHistogram[] latencies = new LatencyHistogram[OPS.length];
+    private final AtomicLongArray errors = new AtomicLongArray(OPS.length);
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final String pool;
+    private String instance;
+
+    public RadosFileSystemInstrumentation(String pool) {
+        this.pool = pool;
+        for (int i = 0; i < OPS.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records an operation that started at <code>start</code>, a value of
+     * {@link System#nanoTime()}.
+     */
+    public void record(Op op, long start) {
+        latencies[op.ordinal()].record(System.nanoTime() - start);
+    }
+
+    /**
+     * Counts a failed operation. A missing object is an answer, not a
+     * failure, and is not counted.
+     */
+    public void failed(Op op, IOException e) {
+        if (!(e instanceof FileNotFoundException)) {
+            errors.incrementAndGet(op.ordinal());
+        }
+    }
+
+    public void bytesRead(long count) {
+        if (count > 0) {
+            bytesRead.addAndGet(count);
+        }
+    }
+
+    public void bytesWritten(long count) {
+        bytesWritten.addAndGet(count);
+    }
+
+    public LatencyHistogram getLatency(Op op) {
+        return latencies[op.ordinal()];
+    }
+
+    public long getErrors(Op op) {
+        return errors.get(op.ordinal());
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Starts publishing these metrics.
+     */
+    public void register() {
+        synchronized (RadosFileSystemInstrumentation.class) {
+            instance = Integer.toString(nextInstance++);
+            // the source describes itself from its first records
+            REGISTERED.add(this);
+            if (metricsSystem == null) {
+                metricsSystem = new MetricsSystemImpl();
+                metricsSystem.init(METRICS_PREFIX);
+                metricsSystem.register("RadosFileSystem",
+                    "Operations of the rados file systems", new MetricsSource() {
+                        public void getMetrics(MetricsCollector collector, boolean all) {
+                            for (RadosFileSystemInstrumentation metrics : REGISTERED) {
+                                metrics.addRecord(collector);
+                            }
+                        }
+                    });
+            }
+        }
+    }
+
+    /**
+     * Stops publishing these metrics.
+     */
+    public void unregister() {
+        REGISTERED.remove(this);
+    }
+
+    private void addRecord(MetricsCollector collector) {
+        MetricsRecordBuilder record = collector.addRecord("RadosFileSystem")
+            .setContext(CONTEXT)
+            .tag(info("Pool", "Pool of the file system"), pool)
+            .tag(info("Instance", "Number of the store in this process"), instance);
+        record.addCounter(info("BytesRead", "Bytes read from objects"),
+                          bytesRead.get());
+        record.addCounter(info("BytesWritten", "Bytes written to objects"),
+                          bytesWritten.get());
+        for (Op op : OPS) {
+            LatencyHistogram latency = latencies[op.ordinal()];
+            record.addCounter(info(op.name + "Ops", "Number of " + op.name + " operations"),
+                              latency.getCount());
+            record.addCounter(info(op.name + "Errors", "Failed " + op.name + " operations"),
+                              errors.get(op.ordinal()));
+            record.addGauge(info(op.name + "MeanMicros", "Mean " + op.name + " latency"),
+                            latency.getMean());
+            record.addGauge(info(op.name + "P50Micros", "Median " + op.name + " latency"),
+                            latency.getPercentile(0.5));
+            record.addGauge(info(op.name + "P99Micros", "99th percentile " + op.name + " latency"),
+                            latency.getPercentile(0.99));
+            record.addGauge(info(op.name + "P999Micros", "99.9th percentile " + op.name + " latency"),
+                            latency.getPercentile(0.999));
+            record.addGauge(info(op.name + "MaxMicros", "Longest " + op.name + " latency"),
+                            latency.getMax());
+        }
+    }
+
+    private static MetricsInfo info(String name, String description) {
+        return Interns.info(name, description);
+    }
+
+    /**
+     * Returns a table of the counters and latencies, in microseconds.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Rados operations on ").append(pool)
+            .append(": read ").append(bytesRead.get()).append(" bytes, wrote ")
+            .append(bytesWritten.get()).append(" bytes\n");
+        sb.append(String.format("%-12s%10s%8s%10s%10s%10s%10s%10s%n",
+            "op", "count", "errors", "mean", "p50", "p99", "p999", "max"));
+        for (Op op : OPS) {
+            LatencyHistogram latency = latencies[op.ordinal()];
+            sb.append(String.format("%-12s%10d%8d%10d%10d%10d%10d%10d%n",
+                op.name, latency.getCount(), errors.get(op.ordinal()),
+                latency.getMean(), latency.getPercentile(0.5),
+                latency.getPercentile(0.99), latency.getPercentile(0.999),
+                latency.getMax()));
+        }
+        return sb.toString();
+    }
+}
@@ -20,235 +20,813 @@ package com.ceph.rados.fs;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeSet;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.MD5MD5CRC32CastagnoliFileChecksum;
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.Progressable;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.ceph.rados.fs.INode.FileType;
-import com.ceph.rados.jna.RadosObjectInfo;
-import com.ceph.rados.IoCTX;
+import com.ceph.rados.fs.RadosFileSystemInstrumentation.Op;
 import com.ceph.rados.Rados;
 
 /**
  * A class of storing and retrieving {@link INode}s and {@link Block}s.
+ * <p>
+ * Every INode is stored under its inode id, and a directory's index maps
+ * the names of its children to their ids. A path is resolved one
+ * component at a time from the root, which has a fixed id, so renaming a
+ * directory only rewrites two index entries however much is under it.
  */
 public class RadosFileSystemStore {
     private static final String FILE_SYSTEM_VERSION_NAME = "fs-version";
-    private static final String FILE_SYSTEM_VERSION_VALUE = "1";
+    private static final String FILE_SYSTEM_VERSION_VALUE = "2";
+    private static final int FILE_SYSTEM_VERSION =
+        Integer.parseInt(FILE_SYSTEM_VERSION_VALUE);
 
     private static final String PATH_DELIMITER = Path.SEPARATOR;
     private static final String BLOCK_PREFIX = "block_";
+    private static final String INODE_PREFIX = "inode_";
+    private static final String MIGRATED_ID_XATTR = "inode";
+    private static final long ROOT_ID = 0;
+    // ids may be negative; this one is never handed out
+    private static final long NO_ID = -1;
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
 
-    private static String CONFIG_FILE;
-    private static String ID;
-    private static String POOL;
+    private String pool;
+    private ObjectStore objectStore;
+    private boolean ownsObjectStore = false;
 
-    private static Rados rados;
-    private static IoCTX ioctx = null;
+    private static final Log LOG =
+        LogFactory.getLog(RadosFileSystemStore.class.getName());
 
-    public void initialize(String conf, String id, String pool) throws IOException {    
-        CONFIG_FILE =  conf == null ? "/etc/ceph/ceph.conf" : conf;
-        ID = id == null ? "admin" : id;
-        POOL = pool == null ? "data" : pool;
-        // create rados and ioctx
-        rados = new Rados(ID);
-        try {
-            rados.confReadFile(new File(CONFIG_FILE));
-            rados.connect();
-            ioctx = rados.ioCtxCreate(POOL);
-        } catch (Exception e) {
-            throw new IOException("rados init failed");
+    private Configuration conf;
+    private DirectoryIndex index;
+    private INodeCache cache;
+    private ExecutorService ioExecutor;
+    private long instanceId = -1;
+    private BlockIdAllocator ids;
+    private PackStore packs;
+    private long maxPackedBlockSize = -1;
+    private ScheduledExecutorService compactor;
+    private BlockCodec codec;
+    private int bytesPerChecksum;
+    private BlockLocationResolver locations;
+    private ExecutorService codecExecutor;
+    private RadosFileSystemInstrumentation metrics;
+    private BufferPool buffers;
+    private int writeChunkSize;
+
+    public void initialize(String conf, String id, String pool) throws IOException {
+        initialize(conf, id, pool, new Configuration());
+    }
+
+    public void initialize(String conf, String id, String pool,
+                           Configuration hadoopConf) throws IOException {
+        this.pool = pool == null ? "data" : pool;
+        Class<? extends ObjectStore> impl = hadoopConf.getClass(
+            RadosFileSystemConfigKeys.RADOS_OBJECT_STORE_IMPL_KEY,
+            LibradosObjectStore.class, ObjectStore.class);
+        objectStore = ReflectionUtils.newInstance(impl, hadoopConf);
+        ownsObjectStore = true;
+        objectStore.initialize(conf == null ? "/etc/ceph/ceph.conf" : conf,
+                               id == null ? "admin" : id, this.pool);
+        instanceId = objectStore.getInstanceId();
+        setUp(hadoopConf);
+    }
+
+    /**
+     * Sets the store up on an initialized object store that the caller
+     * still owns.
+     */
+    public void initialize(ObjectStore objects, Configuration hadoopConf)
+        throws IOException {
+        objectStore = objects;
+        ownsObjectStore = false;
+        pool = objects.getPoolName();
+        instanceId = objects.getInstanceId();
+        setUp(hadoopConf);
+    }
+
+    private void setUp(Configuration hadoopConf) throws IOException {
+        conf = hadoopConf;
+        metrics = new RadosFileSystemInstrumentation(pool);
+        objectStore = new InstrumentedObjectStore(objectStore, metrics);
+        metrics.register();
+        ids = new BlockIdAllocator(instanceId);
+        ioExecutor = Executors.newFixedThreadPool(
+            hadoopConf.getInt(RadosFileSystemConfigKeys.RADOS_IO_THREADS_KEY,
+                              RadosFileSystemConfigKeys.RADOS_IO_THREADS_DEFAULT),
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("rados-io-%d").build());
+        index = new DirectoryIndex(objectStore,
+            hadoopConf.getInt(RadosFileSystemConfigKeys.RADOS_DIR_INDEX_SHARD_ENTRIES_KEY,
+                              RadosFileSystemConfigKeys.RADOS_DIR_INDEX_SHARD_ENTRIES_DEFAULT),
+            hadoopConf.getLong(RadosFileSystemConfigKeys.RADOS_SEAL_TIMEOUT_KEY,
+                               RadosFileSystemConfigKeys.RADOS_SEAL_TIMEOUT_DEFAULT));
+        cache = new INodeCache(
+            hadoopConf.getInt(RadosFileSystemConfigKeys.RADOS_INODE_CACHE_ENTRIES_KEY,
+                              RadosFileSystemConfigKeys.RADOS_INODE_CACHE_ENTRIES_DEFAULT),
+            hadoopConf.getLong(RadosFileSystemConfigKeys.RADOS_INODE_CACHE_TTL_KEY,
+                               RadosFileSystemConfigKeys.RADOS_INODE_CACHE_TTL_DEFAULT),
+            hadoopConf.getLong(RadosFileSystemConfigKeys.RADOS_INODE_CACHE_NEGATIVE_TTL_KEY,
+                               RadosFileSystemConfigKeys.RADOS_INODE_CACHE_NEGATIVE_TTL_DEFAULT));
+        packs = new PackStore(objectStore, ids,
+            hadoopConf.getLong(RadosFileSystemConfigKeys.RADOS_PACK_TARGET_SIZE_KEY,
+                               RadosFileSystemConfigKeys.RADOS_PACK_TARGET_SIZE_DEFAULT),
+            hadoopConf.getFloat(RadosFileSystemConfigKeys.RADOS_PACK_COMPACT_THRESHOLD_KEY,
+                                RadosFileSystemConfigKeys.RADOS_PACK_COMPACT_THRESHOLD_DEFAULT),
+            hadoopConf.getLong(RadosFileSystemConfigKeys.RADOS_SEAL_TIMEOUT_KEY,
+                               RadosFileSystemConfigKeys.RADOS_SEAL_TIMEOUT_DEFAULT));
+        if (hadoopConf.getBoolean(RadosFileSystemConfigKeys.RADOS_PACK_ENABLED_KEY,
+                                  RadosFileSystemConfigKeys.RADOS_PACK_ENABLED_DEFAULT)) {
+            maxPackedBlockSize = hadoopConf.getLong(
+                RadosFileSystemConfigKeys.RADOS_PACK_MAX_BLOCK_SIZE_KEY,
+                RadosFileSystemConfigKeys.RADOS_PACK_MAX_BLOCK_SIZE_DEFAULT);
+            long interval = hadoopConf.getLong(
+                RadosFileSystemConfigKeys.RADOS_PACK_COMPACT_INTERVAL_KEY,
+                RadosFileSystemConfigKeys.RADOS_PACK_COMPACT_INTERVAL_DEFAULT);
+            if (interval > 0) {
+                compactor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("rados-pack-compactor").build());
+                compactor.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        try {
+                            compactPacks();
+                        } catch (IOException e) {
+                            LOG.warn("Pack compaction failed", e);
+                        }
+                    }
+                }, interval, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+        int codecId = BlockCodec.forName(hadoopConf.get(
+            RadosFileSystemConfigKeys.RADOS_COMPRESSION_CODEC_KEY,
+            RadosFileSystemConfigKeys.RADOS_COMPRESSION_CODEC_DEFAULT));
+        if (codecId != BlockCodec.NONE) {
+            codec = new BlockCodec(codecId,
+                hadoopConf.getInt(RadosFileSystemConfigKeys.RADOS_COMPRESSION_DEFLATE_LEVEL_KEY,
+                                  RadosFileSystemConfigKeys.RADOS_COMPRESSION_DEFLATE_LEVEL_DEFAULT),
+                hadoopConf.getFloat(RadosFileSystemConfigKeys.RADOS_COMPRESSION_MAX_RATIO_KEY,
+                                    RadosFileSystemConfigKeys.RADOS_COMPRESSION_MAX_RATIO_DEFAULT));
+        }
+        buffers = new BufferPool(hadoopConf.getLong(
+            RadosFileSystemConfigKeys.RADOS_READAHEAD_BUFFER_POOL_SIZE_KEY,
+            RadosFileSystemConfigKeys.RADOS_READAHEAD_BUFFER_POOL_SIZE_DEFAULT));
+        writeChunkSize = Math.max(1, hadoopConf.getInt(
+            RadosFileSystemConfigKeys.RADOS_WRITE_CHUNK_SIZE_KEY,
+            RadosFileSystemConfigKeys.RADOS_WRITE_CHUNK_SIZE_DEFAULT));
+        bytesPerChecksum = hadoopConf.getInt(
+            RadosFileSystemConfigKeys.RADOS_BYTES_PER_CHECKSUM_KEY,
+            RadosFileSystemConfigKeys.RADOS_BYTES_PER_CHECKSUM_DEFAULT);
+        int codecThreads = hadoopConf.getInt(
+            RadosFileSystemConfigKeys.RADOS_COMPRESSION_THREADS_KEY,
+            RadosFileSystemConfigKeys.RADOS_COMPRESSION_THREADS_DEFAULT);
+        codecExecutor = Executors.newFixedThreadPool(
+            codecThreads > 0 ? codecThreads : Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("rados-codec-%d").build());
+        Class<? extends BlockLocationResolver> resolver = hadoopConf.getClass(
+            RadosFileSystemConfigKeys.RADOS_BLOCK_LOCATION_RESOLVER_KEY, null,
+            BlockLocationResolver.class);
+        if (resolver != null) {
+            locations = ReflectionUtils.newInstance(resolver, hadoopConf);
+            locations.initialize(this);
+        }
+        checkLayout();
+    }
+
+    /**
+     * Refuses a pool written with the path-keyed layout, unless it may be
+     * converted.
+     */
+    private void checkLayout() throws IOException {
+        if (exists(inodeKey(ROOT_ID)) || !exists(PATH_DELIMITER)) {
+            return;
+        }
+        if (!conf.getBoolean(RadosFileSystemConfigKeys.RADOS_NAMESPACE_MIGRATE_KEY,
+                             RadosFileSystemConfigKeys.RADOS_NAMESPACE_MIGRATE_DEFAULT)) {
+            throw new IOException("Pool " + pool + " uses the path-keyed layout; set "
+                + RadosFileSystemConfigKeys.RADOS_NAMESPACE_MIGRATE_KEY
+                + " to convert it");
         }
+        migrateNamespace();
     }
 
     public void tearDown() throws Exception {
         //FIXME: pending activities?
-        rados.shutDown();
-        rados.ioCtxDestroy(ioctx);
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        packs.close();
+        ioExecutor.shutdownNow();
+        codecExecutor.shutdownNow();
+        metrics.unregister();
+        if (ownsObjectStore) {
+            objectStore.close();
+        }
     }
 
     public String getVersion() throws IOException {
-        int[] version = rados.getVersion();
+        int[] version = Rados.getVersion();
         return Integer.toString(version[0]) + "." + Integer.toString(version[1]) + "." + Integer.toString(version[2]);
     }
 
-    public IoCTX getIoCTX() {
-        return ioctx;
+    /**
+     * Returns the object store, with its operations timed.
+     */
+    public ObjectStore getObjectStore() {
+        return objectStore;
+    }
+
+    /**
+     * Returns the counters and latencies of the operations of this store.
+     */
+    public RadosFileSystemInstrumentation getInstrumentation() {
+        return metrics;
+    }
+
+    public Configuration getConf() {
+        return conf;
+    }
+
+    /**
+     * Returns the pool the streams of this store read their windows into.
+     */
+    BufferPool getBufferPool() {
+        return buffers;
+    }
+
+    /**
+     * Returns the executor used for background I/O such as read-ahead.
+     */
+    public ExecutorService getIOExecutor() {
+        return ioExecutor;
+    }
+
+    /**
+     * Returns the INode cache, e.g. to read its hit/miss/eviction counters.
+     */
+    public INodeCache getINodeCache() {
+        return cache;
     }
 
     private void delete(String key) throws IOException {
-        try { 
-            ioctx.remove (key);
-        } catch (Exception e) {
-            throw new IOException("delete failed");
+        try {
+            objectStore.remove(key);
+        } catch (IOException e) {
+            throw new IOException("delete failed", e);
         }
     }
 
     public void deleteINode(Path path) throws IOException {
-        delete(pathToKey(path));
+        String key = pathToKey(path);
+        long id = resolve(path);
+        if (id == NO_ID) {
+            throw new IOException("delete failed");
+        }
+        // unlink first: a crash leaves an orphan, never a dangling entry
+        removeFromParentIndex(path);
+        deleteINode(path, id, null);
+        cache.invalidateTree(key);
+        cache.put(key, null);
     }
 
-    public void deleteBlock(Block block) throws IOException {
-        delete(blockToKey(block));
+    /**
+     * Deletes INode <code>id</code>, linked at <code>path</code>, with the
+     * index of a directory. Neither the path nor the parent's index is
+     * looked at, so a subtree can be removed by the ids of a listing
+     * without touching indexes that go away with it.
+     *
+     * @param inode the INode, or null if it may be a directory
+     */
+    void deleteINode(Path path, long id, INode inode) throws IOException {
+        delete(inodeKey(id));
+        cache.invalidate(pathToKey(path));
+        if (inode == null || inode.isDirectory()) {
+            index.destroy(indexKey(id));
+        }
     }
 
-    public boolean inodeExists(Path path) throws IOException {
-        String key = pathToKey(path);
-        try {
-            RadosObjectInfo info = get(key);
-            if (info == null) {
-                if (isRoot(key)) {
-                    storeINode(path, INode.DIRECTORY_INODE);
-                    return true;
-                } else {
-                    return false;
-                }
-            }
-        } catch (Exception e) {
-            throw new IOException("store inode failed");
+    void removeFromParentIndex(Path path) throws IOException {
+        if (isRoot(pathToKey(path))) {
+            return;
+        }
+        long parent = resolve(path.getParent());
+        if (parent != NO_ID) {
+            index.remove(indexKey(parent), path.getName());
         }
+    }
 
-        return true;
+    /**
+     * Moves <code>src</code>, and everything under it, to <code>dst</code>
+     * by linking its inode into the destination directory and unlinking it
+     * from the source directory. The parent of <code>dst</code> must exist
+     * and <code>dst</code> must not.
+     */
+    public void rename(Path src, Path dst) throws IOException {
+        String srcKey = pathToKey(src);
+        String dstKey = pathToKey(dst);
+        if (isRoot(srcKey) || isRoot(dstKey)) {
+            throw new IOException("Cannot rename the root directory");
+        }
+        long id = resolve(src);
+        if (id == NO_ID) {
+            throw new IOException("No such file or directory: " + src);
+        }
+        long dstParent = resolve(dst.getParent());
+        if (dstParent == NO_ID) {
+            throw new IOException("No such directory: " + dst.getParent());
+        }
+        // asks the index, not the cache: linking over an entry would
+        // orphan whatever it named
+        if (index.lookup(indexKey(dstParent), dst.getName()) != NO_ID) {
+            throw new IOException("Destination exists: " + dst);
+        }
+        // link before unlinking, so a crash cannot lose the subtree
+        index.add(indexKey(dstParent), dst.getName(), id);
+        removeFromParentIndex(src);
+        cache.invalidateTree(srcKey);
+        cache.invalidateTree(dstKey);
     }
-  
-    public boolean blockExists(long blockId) throws IOException {
+
+    /**
+     * Removes the object <code>key</code> if it exists.
+     */
+    void removeObject(String key) throws IOException {
         try {
-            RadosObjectInfo info = get(blockToKey(blockId));
-            if (info == null) {
-                return false;
-            }
-        } catch (Exception e) {
-            throw new IOException("block get failed");
+            objectStore.remove(key);
+        } catch (FileNotFoundException e) {
+            // already gone
+        } catch (IOException e) {
+            throw new IOException("delete failed", e);
         }
+    }
 
-        return true;
+    /**
+     * Deletes the directory <code>dir</code> and everything under it with
+     * a {@link ParallelDeleter}.
+     */
+    public void deleteSubtree(Path dir, Progressable progress) throws IOException {
+        newDeleter(progress).deleteTree(dir);
     }
 
-    private RadosObjectInfo get(String key)
-        throws Exception {
-        RadosObjectInfo info = null;
-        try {
-            info = ioctx.stat(key);
-            return info;
-        } catch (Exception e) {
-            return null;
+    private ParallelDeleter newDeleter(Progressable progress) {
+        return new ParallelDeleter(this,
+            conf.getInt(RadosFileSystemConfigKeys.RADOS_DELETE_THREADS_KEY,
+                        RadosFileSystemConfigKeys.RADOS_DELETE_THREADS_DEFAULT),
+            conf.getInt(RadosFileSystemConfigKeys.RADOS_DELETE_BATCH_SIZE_KEY,
+                        RadosFileSystemConfigKeys.RADOS_DELETE_BATCH_SIZE_DEFAULT),
+            progress);
+    }
+
+    public void deleteBlock(Block block) throws IOException {
+        if (block.isPacked()) {
+            packs.delete(block);
+        } else {
+            delete(blockToKey(block));
         }
     }
 
-    private RadosObjectInfo get(String key, long byteRangeStart) throws IOException {
-        RadosObjectInfo info = null;
+    public boolean inodeExists(Path path) throws IOException {
+        return retrieveINode(path) != null;
+    }
+  
+    public boolean blockExists(long blockId) throws IOException {
+        return exists(blockToKey(blockId));
+    }
+
+    /**
+     * Returns the size of the object <code>key</code>, or -1 if it cannot
+     * be stat'ed.
+     */
+    private long size(String key) {
         try {
-            info = ioctx.stat(key);
-            if (info.getSize() > byteRangeStart) {
-                return info;
-            }
-            return null;
-        } catch (Exception e) {
-            return null;
+            return objectStore.stat(key);
+        } catch (IOException e) {
+            return -1;
         }
     }
 
+    private boolean exists(String key) {
+        return size(key) >= 0;
+    }
+
+    /**
+     * Returns the INode stored for <code>path</code>, or null if there is none.
+     */
     public INode retrieveINode(Path path) throws IOException {
         String key = pathToKey(path);
+        INode inode = cache.get(key);
+        if (inode != null) {
+            return inode == INodeCache.MISSING ? null : inode;
+        }
+        long id;
         try {
-            RadosObjectInfo info = get(key);
+            id = isRoot(key) ? ROOT_ID : lookup(path);
+            byte[] data = id == NO_ID ? null : fetchINode(id);
 
-            if (info == null && isRoot(key)) {
-                storeINode(path, INode.DIRECTORY_INODE);
-                return INode.DIRECTORY_INODE;
+            if (data == null) {
+                if (id == ROOT_ID) {
+                    storeINode(path, INode.DIRECTORY_INODE);
+                    return INode.DIRECTORY_INODE;
+                }
+                // no entry, or an entry whose inode was just deleted
+                cache.put(key, null);
+                return null;
             }
-            return INode.deserialize(new RadosInputStream(ioctx, info.getOid()));
-        } catch (Exception e) {
-            throw new IOException("get inode failed");
+            inode = INode.deserialize(data);
+        } catch (IOException e) {
+            throw new IOException("get inode failed", e);
         }
+        cache.put(key, id, inode);
+        return inode;
     }
 
-    public byte[] retrieveBlock(Block block, long byteRangeStart)
-        throws IOException {
-        RadosObjectInfo info = null;
-        InputStream in = null;
-        OutputStream out = null;
+    /**
+     * Returns the INode with id <code>id</code>, known to be linked at
+     * <code>path</code>, or null if it no longer exists. Saves the index
+     * lookup when the id came from a directory listing.
+     */
+    INode retrieveINode(Path path, long id) throws IOException {
+        String key = pathToKey(path);
+        INode inode = cache.get(key);
+        if (inode != null && inode != INodeCache.MISSING && cache.getId(key) == id) {
+            return inode;
+        }
         try {
-            info = get(blockToKey(block), byteRangeStart);
-            if (null == info) {
-                throw new IOException("no such object");
+            byte[] data = fetchINode(id);
+            if (data == null) {
+                return null;
             }
-            in = new RadosInputStream(ioctx, info.getOid());
-            out = new RadosOutputStream(ioctx, info.getOid());
-            int bufferSize = in.available() - (int)byteRangeStart;
-            byte[] buf = new byte[bufferSize];
-            int numRead;
-            while ((numRead = in.read(buf)) > 0) {
-                out.write(buf, 0, numRead);
-            }
-            return buf;
+            inode = INode.deserialize(data);
         } catch (IOException e) {
-            // close output stream to file then delete file
-            closeQuietly(out);
-            out = null; // to prevent a second close
+            throw new IOException("get inode failed", e);
+        }
+        cache.put(key, id, inode);
+        return inode;
+    }
+
+    /**
+     * Reads the serialized INode <code>id</code>, or null if there is none.
+     */
+    private byte[] fetchINode(long id) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return readObject(objectStore, inodeKey(id));
+        } catch (IOException e) {
+            metrics.failed(Op.INODE_FETCH, e);
             throw e;
         } finally {
-            closeQuietly(out);
-            closeQuietly(in);
+            metrics.record(Op.INODE_FETCH, start);
         }
     }
-  
+
+    /**
+     * Returns the children of <code>dir</code> with their INodes. The INodes
+     * are fetched in parallel ahead of the caller, so the first entries
+     * arrive before the whole directory has been read.
+     */
+    public RemoteIterator<Map.Entry<Path, INode>> listINodes(Path dir)
+        throws IOException {
+        return listChildren(dir, resolve(dir));
+    }
+
+    /**
+     * Lists the children of directory <code>dir</code>, with inode id
+     * <code>id</code>, with their inode ids.
+     */
+    DirectoryLister listChildren(Path dir, long id) {
+        return new DirectoryLister(this, index, keyToPath(pathToKey(dir)),
+            id == NO_ID ? null : indexKey(id),
+            conf.getInt(RadosFileSystemConfigKeys.RADOS_LIST_PARALLELISM_KEY,
+                        RadosFileSystemConfigKeys.RADOS_LIST_PARALLELISM_DEFAULT));
+    }
+
+    /**
+     * Returns the inode id of <code>path</code>, or -1, which is never an
+     * inode id, if it does not exist.
+     */
+    long getId(Path path) throws IOException {
+        return resolve(path);
+    }
+
+    /**
+     * Returns the inode id of <code>path</code>, or NO_ID if it does not
+     * exist.
+     */
+    private long resolve(Path path) throws IOException {
+        String key = pathToKey(path);
+        if (isRoot(key)) {
+            return ROOT_ID;
+        }
+        long id = cache.getId(key);
+        if (id != NO_ID) {
+            return id;
+        }
+        id = lookup(path);
+        if (id == NO_ID) {
+            cache.put(key, null);
+        }
+        return id;
+    }
+
+    /**
+     * Looks <code>path</code> up in the index of its parent, bypassing the
+     * cache for the path itself.
+     */
+    private long lookup(Path path) throws IOException {
+        long parent = resolve(path.getParent());
+        if (parent == NO_ID) {
+            return NO_ID;
+        }
+        return index.lookup(indexKey(parent), path.getName());
+    }
+
+    /**
+     * Opens a stream over the data of <code>block</code> from
+     * <code>byteRangeStart</code> on, verifying its checksums. A plain
+     * block is fetched a window at a time as it is read; a packed or
+     * compressed block can only be fetched whole.
+     */
+    public FSInputStream retrieveBlock(Block block, long byteRangeStart)
+        throws IOException {
+        if (byteRangeStart < 0 || byteRangeStart > block.getLength()) {
+            throw new EOFException("Offset " + byteRangeStart + " is outside " + block);
+        }
+        FSInputStream in = openBlock(block);
+        in.seek(byteRangeStart);
+        return in;
+    }
+
+    /**
+     * Fills <code>buf</code> from <code>off</code> with the
+     * <code>len</code> bytes of the data of <code>block</code> at
+     * <code>position</code>, verifying their checksums. Of a plain block
+     * only the checksum chunks holding the range are read.
+     */
+    public void readBlock(Block block, long position, byte[] buf, int off, int len)
+        throws IOException {
+        if (position < 0 || position + len > block.getLength()) {
+            throw new EOFException("Range " + position + "+" + len + " is outside " + block);
+        }
+        FSInputStream in = openBlock(block);
+        try {
+            in.readFully(position, buf, off, len);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the immediate children of <code>path</code>, read from the
+     * directory index.
+     */
     public Set<Path> listSubPaths(Path path) throws IOException {
-        String prefix = pathToKey(path);
-        if (!prefix.endsWith(PATH_DELIMITER)) {
-            prefix += PATH_DELIMITER;
+        Path dir = keyToPath(pathToKey(path));
+        Set<Path> children = new TreeSet<Path>();
+        long id = resolve(path);
+        if (id == NO_ID) {
+            return children;
+        }
+        for (String name : index.list(indexKey(id)).keySet()) {
+            children.add(new Path(dir, name));
+        }
+        return children;
+    }
+
+    /**
+     * Returns every descendant of <code>path</code>, parents before children.
+     */
+    public Set<Path> listDeepSubPaths(Path path) throws IOException {
+        Set<Path> descendants = new TreeSet<Path>();
+        List<Path> pending = new ArrayList<Path>();
+        pending.add(path);
+        while (!pending.isEmpty()) {
+            for (Path child : listSubPaths(pending.remove(pending.size() - 1))) {
+                descendants.add(child);
+                pending.add(child);
+            }
         }
+        return descendants;
+    }
+
+    /**
+     * Converts a pool written with the path-keyed layout, with or without
+     * directory indexes, to the inode-id layout, one object at a time as
+     * the pool is listed. Every INode is copied under a new id, recorded on
+     * its path-keyed object, and added to its parent's index; the root
+     * INode is written last and marks the pool as converted, so an
+     * interrupted run can simply be started again and reuses the recorded
+     * ids. The path-keyed objects are removed afterwards. No other client
+     * may use the pool meanwhile.
+     */
+    public void migrateNamespace() throws IOException {
+        if (exists(inodeKey(ROOT_ID))) {
+            return;
+        }
+        long converted = 0;
+        String rootKey = null;
+        ObjectLister objects = newObjectLister();
         try {
-            String[] objects = ioctx.listObjects();
-            Set<Path> prefixes = new TreeSet<Path>();
-            for (int i = 0; i < objects.length; i++) {
-                if (objects[i].startsWith(prefix)) {
-                    prefixes.add(keyToPath(objects[i]));
+            while (objects.hasNext()) {
+                String key = objects.next();
+                if (!key.startsWith(PATH_DELIMITER)) {
+                    continue;
+                }
+                if (isRoot(key)) {
+                    rootKey = key;
+                    continue;
+                }
+                Path path = keyToPath(key);
+                try {
+                    long parent = migratedId(pathToKey(path.getParent()));
+                    long id = migratedId(key);
+                    byte[] data = readObject(objectStore, key);
+                    if (data == null) {
+                        continue;
+                    }
+                    writeObject(inodeKey(id), data);
+                    index.add(indexKey(parent), path.getName(), id);
+                    converted++;
+                } catch (FileNotFoundException e) {
+                    LOG.warn("Skipping " + path + ": its parent does not exist");
                 }
             }
-            prefixes.remove(path);
-            return prefixes;
-        } catch (Exception e) {
-            throw new IOException("list objects failed");
+        } finally {
+            objects.close();
         }
+        byte[] root = rootKey == null ? null : readObject(objectStore, rootKey);
+        writeObject(inodeKey(ROOT_ID), root != null ? root
+                    : INode.DIRECTORY_INODE.serialize(FILE_SYSTEM_VERSION));
+        cache.clear();
+
+        final ObjectLister stale = newObjectLister();
+        try {
+            newDeleter(null).removeObjects(new RemoteIterator<String>() {
+                private String next;
+
+                public boolean hasNext() throws IOException {
+                    while (next == null && stale.hasNext()) {
+                        String key = stale.next();
+                        if (key.startsWith(PATH_DELIMITER)
+                            || (DirectoryIndex.isIndexKey(key)
+                                && key.indexOf("_" + PATH_DELIMITER) >= 0)) {
+                            next = key;
+                        }
+                    }
+                    return next != null;
+                }
 
+                public String next() throws IOException {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException("No more objects");
+                    }
+                    String key = next;
+                    next = null;
+                    return key;
+                }
+            });
+        } finally {
+            stale.close();
+        }
+        LOG.info("Converted " + converted + " paths to the inode-id layout");
     }
-  
-    public Set<Path> listDeepSubPaths(Path path) throws IOException {
-        return listSubPaths(path);
+
+    /**
+     * Returns the inode id the path-keyed object <code>key</code> is
+     * converted to, assigning one the first time.
+     *
+     * @throws FileNotFoundException if the object does not exist
+     */
+    private long migratedId(String key) throws IOException {
+        if (isRoot(key)) {
+            return ROOT_ID;
+        }
+        String id = objectStore.getXAttr(key, MIGRATED_ID_XATTR);
+        if (id == null) {
+            id = Long.toString(newINodeId());
+            objectStore.setXAttr(key, MIGRATED_ID_XATTR, id);
+        }
+        return Long.parseLong(id);
     }
 
+    /**
+     * Writes the next <code>length</code> bytes of <code>in</code> to
+     * <code>key</code>, replacing its data, a chunk at a time through one
+     * buffer from the pool.
+     */
     private void put(String key, InputStream in, long length)
         throws IOException {
+        int size = (int) Math.max(0, Math.min(writeChunkSize, length));
+        byte[] chunk = buffers.take(size);
         try {
-            byte[] buf = new byte[(int)length];
-            int ret = in.read(buf, 0, (int)length);
-            RadosOutputStream out = new RadosOutputStream(ioctx, key);
-            if (ret > 0) {
-                out.write(buf, 0, ret);
-            }
-        } catch (Exception e) {
-            throw new IOException("Rados write failed");
+            long offset = 0;
+            do {
+                int n = (int) Math.min(size, length - offset);
+                int done = 0;
+                while (done < n) {
+                    int read = in.read(chunk, done, n - done);
+                    if (read < 0) {
+                        throw new EOFException("Block " + key + " ended at "
+                            + (offset + done) + " of " + length + " bytes");
+                    }
+                    done += read;
+                }
+                try {
+                    if (offset == 0) {
+                        objectStore.writeFull(key, chunk, 0, n);
+                    } else {
+                        objectStore.write(key, offset, chunk, 0, n);
+                    }
+                } catch (IOException e) {
+                    throw new IOException("Rados write failed", e);
+                }
+                offset += n;
+            } while (offset < length);
+        } finally {
+            buffers.put(chunk);
         }
     }
 
     
+    /**
+     * Stores <code>inode</code> for <code>path</code>, in place if the path
+     * exists and otherwise under a new id linked into the parent directory,
+     * which must exist.
+     */
     public void storeINode(Path path, INode inode) throws IOException {
-        put(pathToKey(path), inode.serialize(), inode.getSerializedLength());
+        String key = pathToKey(path);
+        long id = resolve(path);
+        byte[] data = inode.serialize(FILE_SYSTEM_VERSION);
+        if (id != NO_ID) {
+            writeObject(inodeKey(id), data);
+        } else {
+            long parent = resolve(path.getParent());
+            if (parent == NO_ID) {
+                throw new IOException("No such directory: " + path.getParent());
+            }
+            id = newINodeId();
+            // write before linking: a crash leaves an orphan, never a
+            // dangling entry
+            writeObject(inodeKey(id), data);
+            index.add(indexKey(parent), path.getName(), id);
+        }
+        cache.put(key, id, inode);
+    }
+
+    private void writeObject(String key, byte[] data) throws IOException {
+        try {
+            objectStore.writeFull(key, data, 0, data.length);
+        } catch (IOException e) {
+            throw new IOException("Rados write failed", e);
+        }
     }
 
+    /**
+     * Stores the next <code>len</code> bytes of <code>in</code> as the data
+     * of <code>block</code>, streamed in chunks of
+     * {@link RadosFileSystemConfigKeys#RADOS_WRITE_CHUNK_SIZE_KEY} bytes, so
+     * the block may be larger than the heap, or than 2 GB.
+     */
     public void storeBlock(Block block, InputStream in, long len) throws IOException {
         put(blockToKey(block), in, len);
     }
@@ -263,28 +841,341 @@ public class RadosFileSystemStore {
         }    
     }
 
-    public synchronized Block createAndStoreBlock(File file) throws Exception {
-        Random r = new Random();
-        long blockId = r.nextLong();
-        while (blockExists(blockId)) {
-            blockId = r.nextLong();
-        }
-        Block block = new Block(blockId, file.length());
+    public Block createAndStoreBlock(File file) throws Exception {
+        Block block = new Block(newBlockId(), file.length());
         storeBlock(block, file);
         return block;
     }
 
-    public synchronized Block createAndStoreBlock(InputStream in) throws Exception {
-        Random r = new Random();
-        long blockId = r.nextLong();
-        while (blockExists(blockId)) {
-            blockId = r.nextLong();
-        }
-        Block block = new Block(blockId, in.available());
+    public Block createAndStoreBlock(InputStream in) throws Exception {
+        Block block = new Block(newBlockId(), in.available());
         storeBlock(block, in, in.available());
         return block;
     }
 
+    /**
+     * Stores the first <code>length</code> bytes of <code>data</code> as a
+     * new block, compressed if compression is on and pays off, and in a
+     * pack if packing is on and the stored block is small enough. The
+     * checksums of the data, if enabled, are stored after it.
+     */
+    public Block createAndStoreBlock(final byte[] data, final int length)
+        throws IOException {
+        byte[] sums = bytesPerChecksum > 0
+            ? BlockChecksums.calculate(data, length, bytesPerChecksum) : null;
+        byte[] compressed = null;
+        if (codec != null) {
+            compressed = runCodec(new Callable<byte[]>() {
+                public byte[] call() {
+                    return codec.compress(data, length);
+                }
+            });
+        }
+        byte[] stored = compressed == null ? data : compressed;
+        int dataLength = compressed == null ? length : compressed.length;
+        int storedLength = dataLength + (sums == null ? 0 : sums.length);
+        long id = newBlockId();
+        Block block;
+        if (storedLength <= maxPackedBlockSize) {
+            if (sums != null) {
+                stored = Arrays.copyOf(stored, storedLength);
+                System.arraycopy(sums, 0, stored, dataLength, sums.length);
+            }
+            Block packed = packs.write(id, stored, storedLength);
+            block = new Block(id, length, packed.getPackId(), packed.getPackOffset());
+        } else {
+            block = new Block(id, length);
+            try {
+                objectStore.writeFull(blockToKey(block), stored, 0, dataLength);
+                if (sums != null) {
+                    objectStore.write(blockToKey(block), dataLength, sums, 0, sums.length);
+                }
+            } catch (IOException e) {
+                throw new IOException("Rados write failed", e);
+            }
+        }
+        block.setEncoding(compressed == null ? BlockCodec.NONE : codec.getCodec(),
+                          compressed == null ? 0 : compressed.length,
+                          sums == null ? 0 : bytesPerChecksum);
+        return block;
+    }
+
+    /**
+     * Opens a stream over the data of <code>block</code>, verifying its
+     * checksums.
+     */
+    public FSInputStream openBlock(Block block) {
+        return openBlock(block, true);
+    }
+
+    /**
+     * Opens a stream over the data of <code>block</code>.
+     *
+     * @param verifyChecksum whether to check the data against the block's
+     *        checksums, if it has any
+     */
+    public FSInputStream openBlock(Block block, boolean verifyChecksum) {
+        if (block.isPacked() || block.isCompressed()) {
+            return new BufferedBlockInputStream(block, fetchBlock(block, verifyChecksum));
+        }
+        return new RadosInputStream(this, blockToKey(block), block.getLength(),
+                                    verifyChecksum ? block.getBytesPerChecksum() : 0);
+    }
+
+    /**
+     * Reads, decompresses and verifies the whole of <code>block</code> in
+     * the background. The first {@link Block#getLength()} bytes of the
+     * result are the data.
+     */
+    public Future<byte[]> fetchBlock(final Block block, final boolean verifyChecksum) {
+        return ioExecutor.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return readBlock(block, verifyChecksum);
+            }
+        });
+    }
+
+    /**
+     * Reads the whole of <code>block</code>, decompressing and verifying
+     * it on the codec pool.
+     */
+    byte[] readBlock(final Block block, final boolean verifyChecksum)
+        throws IOException {
+        final byte[] stored = readStoredBlock(block);
+        if (!block.isCompressed()
+            && (!verifyChecksum || block.getBytesPerChecksum() == 0)) {
+            return stored;
+        }
+        return runCodec(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                int dataLength = (int) block.getDataLength();
+                byte[] data = BlockCodec.decompress(block.getCodec(), stored,
+                                                    dataLength, (int) block.getLength());
+                if (verifyChecksum && block.getBytesPerChecksum() > 0) {
+                    BlockChecksums.verify(data, (int) block.getLength(), 0, stored,
+                                          dataLength, block.getBytesPerChecksum(),
+                                          block.toString());
+                }
+                return data;
+            }
+        });
+    }
+
+    /**
+     * Reads everything stored for <code>block</code>: its data, compressed
+     * or not, followed by its checksums.
+     */
+    private byte[] readStoredBlock(Block block) throws IOException {
+        if (block.isPacked()) {
+            return packs.read(block);
+        }
+        byte[] stored = readObject(objectStore, blockToKey(block));
+        if (stored == null) {
+            throw new IOException("no such object");
+        }
+        if (stored.length != block.getStoredLength()) {
+            throw new IOException(block + " has " + stored.length + " bytes stored");
+        }
+        return stored;
+    }
+
+    /**
+     * Reads the checksums stored after the data of <code>block</code>.
+     */
+    byte[] readChecksums(Block block) throws IOException {
+        if (block.isPacked()) {
+            return Arrays.copyOfRange(packs.read(block), (int) block.getDataLength(),
+                                      (int) block.getStoredLength());
+        }
+        byte[] sums = new byte[(int) block.getChecksumLength()];
+        readFully(blockToKey(block), block.getDataLength(), sums);
+        return sums;
+    }
+
+    /**
+     * Fills <code>buf</code> from <code>key</code> at <code>offset</code>.
+     */
+    void readFully(String key, long offset, byte[] buf) throws IOException {
+        int done = 0;
+        while (done < buf.length) {
+            int read = objectStore.read(key, offset + done, buf, done, buf.length - done);
+            if (read <= 0) {
+                throw new EOFException(key + " ended at " + (offset + done));
+            }
+            done += read;
+        }
+    }
+
+    /**
+     * Returns the checksum HDFS would report for the file of
+     * <code>inode</code> with the same blocks: the MD5 of the MD5s of each
+     * block's CRC32Cs. Only the checksums are read, not the data. Returns
+     * null for a directory, or a file that has blocks without checksums.
+     */
+    public MD5MD5CRC32FileChecksum getFileChecksum(INode inode) throws IOException {
+        if (inode.isDirectory()) {
+            return null;
+        }
+        int bytesPerCrc = bytesPerChecksum;
+        List<byte[]> sums = new ArrayList<byte[]>();
+        Block[] blocks = inode.getBlocks() == null ? new Block[0] : inode.getBlocks();
+        if (inode.getInlineData() != null) {
+            if (bytesPerCrc == 0) {
+                return null;
+            }
+            byte[] data = inode.getInlineData();
+            sums.add(BlockChecksums.calculate(data, data.length, bytesPerCrc));
+        } else if (blocks.length > 0) {
+            bytesPerCrc = blocks[0].getBytesPerChecksum();
+            for (Block block : blocks) {
+                if (block.getBytesPerChecksum() == 0
+                    || block.getBytesPerChecksum() != bytesPerCrc) {
+                    return null;
+                }
+            }
+            List<Future<byte[]>> reads = new ArrayList<Future<byte[]>>();
+            for (final Block block : blocks) {
+                reads.add(ioExecutor.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException {
+                        return readChecksums(block);
+                    }
+                }));
+            }
+            try {
+                for (Future<byte[]> read : reads) {
+                    sums.add(await(read));
+                }
+            } finally {
+                for (Future<byte[]> read : reads) {
+                    read.cancel(true);
+                }
+            }
+        } else if (bytesPerCrc == 0) {
+            return null;
+        }
+        DataOutputBuffer md5s = new DataOutputBuffer();
+        for (byte[] blockSums : sums) {
+            MD5Hash.digest(blockSums).write(md5s);
+        }
+        long crcsPerBlock = blocks.length > 1 ? inode.getBlockSize() / bytesPerCrc : 0;
+        return new MD5MD5CRC32CastagnoliFileChecksum(bytesPerCrc, crcsPerBlock,
+            MD5Hash.digest(md5s.getData(), 0, md5s.getLength()));
+    }
+
+    /**
+     * Runs a compression or checksum task on the codec pool, which is
+     * sized to the processors rather than to the number of requests in
+     * flight.
+     */
+    private <T> T runCodec(Callable<T> task) throws IOException {
+        try {
+            return await(codecExecutor.submit(task));
+        } catch (RejectedExecutionException e) {
+            throw new IOException("compression rejected", e);
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a block");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("block task failed", e.getCause());
+        }
+    }
+
+    /**
+     * Returns the hosts storing each of <code>blocks</code>, primary first,
+     * as reported by the configured {@link BlockLocationResolver}. Each
+     * object is resolved once, in parallel, so blocks sharing a pack cost
+     * one lookup; an entry is empty if its hosts are not known, and all
+     * are if no resolver is configured.
+     */
+    public String[][] getBlockHosts(Block[] blocks) throws IOException {
+        String[][] hosts = new String[blocks.length][];
+        if (locations == null) {
+            Arrays.fill(hosts, new String[0]);
+            return hosts;
+        }
+        String[] objects = new String[blocks.length];
+        Map<String, Future<String[]>> lookups = new HashMap<String, Future<String[]>>();
+        for (int i = 0; i < blocks.length; i++) {
+            final String object = blocks[i].isPacked()
+                ? PackStore.PACK_PREFIX + blocks[i].getPackId() : blockToKey(blocks[i]);
+            objects[i] = object;
+            if (!lookups.containsKey(object)) {
+                lookups.put(object, ioExecutor.submit(new Callable<String[]>() {
+                    public String[] call() throws IOException {
+                        return locations.getHosts(object);
+                    }
+                }));
+            }
+        }
+        try {
+            for (int i = 0; i < hosts.length; i++) {
+                hosts[i] = await(lookups.get(objects[i]));
+            }
+        } finally {
+            for (Future<String[]> lookup : lookups.values()) {
+                lookup.cancel(true);
+            }
+        }
+        return hosts;
+    }
+
+    /**
+     * Rewrites the pack objects whose deleted fraction reached the
+     * configured threshold, and removes the empty ones. This scans the
+     * whole pool, so it is best run from one process, such as an admin
+     * command, rather than from every client; a pack another client is
+     * compacting is skipped.
+     */
+    public int compactPacks() throws IOException {
+        ObjectLister objects = newObjectLister();
+        try {
+            return packs.compact(objects);
+        } finally {
+            objects.close();
+        }
+    }
+
+    private long newBlockId() {
+        return ids.nextId();
+    }
+
+    private long newINodeId() {
+        long id;
+        do {
+            id = ids.nextId();
+        } while (id == ROOT_ID || id == NO_ID);
+        return id;
+    }
+
+    /**
+     * Reads a whole object, or returns null if it does not exist.
+     */
+    static byte[] readObject(ObjectStore objects, String key) throws IOException {
+        try {
+            byte[] buf = new byte[READ_CHUNK_SIZE];
+            int read = objects.read(key, 0, buf, 0, buf.length);
+            if (read < buf.length) {
+                return Arrays.copyOf(buf, read);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(2 * buf.length);
+            while (read > 0) {
+                out.write(buf, 0, read);
+                read = objects.read(key, out.size(), buf, 0, buf.length);
+            }
+            return out.toByteArray();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
     private void closeQuietly(Closeable closeable) {
         if (closeable != null) {
             try {
@@ -314,44 +1205,85 @@ public class RadosFileSystemStore {
         return blockToKey(block.getId());
     }
 
+    private String inodeKey(long id) {
+        return INODE_PREFIX + id;
+    }
+
+    private String indexKey(long id) {
+        return Long.toString(id);
+    }
+
     private boolean isRoot(String key) {
         return key.isEmpty() || key.equals("/");
     }
 
     public void purge() throws IOException {
+        cache.clear();
+        ObjectLister objects = newObjectLister();
         try {
-            String[] objects = ioctx.listObjects();
-            for (int i = 0; i < objects.length; i++) {
-                ioctx.remove(objects[i]);
-            }
-        } catch (Exception e) {
-            throw new IOException(e);
+            newDeleter(null).removeObjects(objects);
+        } finally {
+            objects.close();
         }
+        cache.clear();
+    }
+
+    /**
+     * Returns a lister over every object in the pool, reading the
+     * configured number of names at a time.
+     */
+    public ObjectLister newObjectLister() {
+        return new ObjectLister(objectStore,
+            conf.getInt(RadosFileSystemConfigKeys.RADOS_LIST_PAGE_SIZE_KEY,
+                        RadosFileSystemConfigKeys.RADOS_LIST_PAGE_SIZE_DEFAULT));
     }
 
+    /**
+     * Prints every INode of the file system, depth first, as the
+     * directories are listed.
+     */
     public void dump() throws IOException {
-        StringBuilder sb = new StringBuilder("Rados Filesystem:\n");
-        try {
-            String[] objects = ioctx.listObjects();
-            for (int i = 0; i < objects.length; i++) {
-                if (objects[i].startsWith(BLOCK_PREFIX)) {
-                    continue;
-                }
-                Path path = keyToPath(objects[i]);
-                sb.append(path).append(":");
-                INode m = retrieveINode(path);
-                sb.append("\t").append(m.getFileType()).append("\n");
-                if (m.getFileType() == FileType.DIRECTORY) {
-                    continue;
+        System.out.println("Rados Filesystem:");
+        List<DirectoryLister> listers = new ArrayList<DirectoryLister>();
+        listers.add(listChildren(keyToPath(PATH_DELIMITER), ROOT_ID));
+        while (!listers.isEmpty()) {
+            DirectoryLister lister = listers.get(listers.size() - 1);
+            if (!lister.hasNext()) {
+                listers.remove(listers.size() - 1);
+                continue;
+            }
+            DirectoryLister.Child child = lister.nextChild();
+            INode m = child.getValue();
+            StringBuilder sb = new StringBuilder();
+            sb.append(child.getKey()).append(":");
+            sb.append("\t").append(m.getFileType()).append("\n");
+            if (m.getFileType() == FileType.DIRECTORY) {
+                listers.add(listChildren(child.getKey(), child.id));
+            } else {
+                if (m.getInlineData() != null) {
+                    sb.append("\tInline: ").append(m.getInlineData().length).append(" bytes\n");
                 }
                 for (int j = 0; j < m.getBlocks().length; j++) {
-                    sb.append("\tBlockId: ").append(m.getBlocks()[j].getId()).append(" Length: ").append(m.getBlocks()[j].getLength()).append("\n");
+                    Block block = m.getBlocks()[j];
+                    sb.append("\tBlockId: ").append(block.getId()).append(" Length: ").append(block.getLength());
+                    if (block.isCompressed()) {
+                        sb.append(" Stored: ").append(block.getStoredLength())
+                          .append(" (").append(BlockCodec.getName(block.getCodec())).append(")");
+                    }
+                    sb.append("\n");
                 }
             }
-        } catch (Exception e) {
-            throw new IOException(e);
+            System.out.print(sb);
         }
-        System.out.println(sb);
+        System.out.println(cache);
+    }
+
+    /**
+     * Prints the counters and latency percentiles of the operations of
+     * this store.
+     */
+    public void dumpMetrics() {
+        System.out.println(metrics);
     }
 
 }
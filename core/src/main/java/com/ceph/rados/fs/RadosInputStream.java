@@ -18,55 +18,264 @@
 
 package com.ceph.rados.fs;
 
-import java.io.InputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.FSInputStream;
 
-import com.ceph.rados.fs.INode.FileType;
-import com.ceph.rados.jna.RadosObjectInfo;
-import com.ceph.rados.IoCTX;
-import com.ceph.rados.Rados;
 
-public class RadosInputStream extends InputStream {
+/**
+ * Reads an object through a read-ahead window.
+ * <p>
+ * The window starts at the configured minimum, doubles up to the maximum
+ * while the object is read sequentially, and drops back to the minimum on
+ * a non-sequential read. While reading sequentially, the following windows
+ * are fetched in the background when the stream was given an executor.
+ * <p>
+ * Positional reads go straight to the object and do not take the stream
+ * lock, so many threads can read one stream concurrently.
+ * <p>
+ * A stream over a block knows the length of its data, and may be given
+ * the block's bytes per checksum; the checksums stored after the data are
+ * then loaded on the first read, windows are widened to whole chunks, and
+ * each window is verified by the thread that fetched it.
+ * <p>
+ * The arrays of windows that have been read go back to a
+ * {@link BufferPool}, the store's when the stream was opened on a store,
+ * and later windows are read into them, so reading does not allocate once
+ * the pool holds arrays of the sizes in use; so do the windows of
+ * prefetches that are given up, once they complete. A read
+ * into a direct {@link ByteBuffer} of at least a window, on a stream that
+ * does not verify checksums, goes straight from the object into the
+ * buffer.
+ */
+public class RadosInputStream extends FSInputStream implements ByteBufferReadable {
 
-    private static IoCTX ioctx;
-    private boolean closed;
+    private final ObjectStore objects;
+    private volatile boolean closed;
     private long size = -1;
     private long pos = 0;
     private String oid;
 
-    private static final Log LOG = 
+    private final int minWindow;
+    private final int maxWindow;
+    private final int prefetchDepth;
+    private final ExecutorService executor;
+    private final long dataLength;
+    private final int bytesPerChecksum;
+    private final Object checksumLock = new Object();
+    private byte[] checksums;
+
+    private int window;
+    private byte[] buffer;
+    private long bufferStart = 0;
+    private int bufferLength = 0;
+    private final LinkedList<Prefetch> prefetches = new LinkedList<Prefetch>();
+    private long prefetchEnd = -1;
+    private final BufferPool buffers;
+
+    private static final Log LOG =
         LogFactory.getLog(RadosInputStream.class.getName());
-    
-    
-    public RadosInputStream(IoCTX io, String id) {
-        ioctx = io;
-        oid = id;
-        closed = false;
+
+    private static class Window {
+        final long offset;
+        final byte[] data;
+        final int requested;
+        final int length;
+
+        Window(long offset, byte[] data, int requested, int length) {
+            this.offset = offset;
+            this.data = data;
+            this.requested = requested;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A window fetched in the background. One that is given up before it
+     * is awaited puts its array back into the pool once it has it.
+     */
+    private class Prefetch implements Callable<Window> {
+        final long offset;
+        final int length;
+        Future<Window> future;
+        private boolean abandoned;
+        private Window fetched;
+
+        Prefetch(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public Window call() throws IOException {
+            Window w = fetch(offset, length);
+            synchronized (this) {
+                if (!abandoned) {
+                    fetched = w;
+                    return w;
+                }
+            }
+            buffers.put(w.data);
+            return null;
+        }
+
+        void abandon() {
+            future.cancel(false);
+            synchronized (this) {
+                abandoned = true;
+                if (fetched != null) {
+                    buffers.put(fetched.data);
+                    fetched = null;
+                }
+            }
+        }
+    }
+
+    public RadosInputStream(ObjectStore objects, String id) {
+        this(objects, id, RadosFileSystemConfigKeys.RADOS_READAHEAD_MIN_DEFAULT,
+             RadosFileSystemConfigKeys.RADOS_READAHEAD_MAX_DEFAULT, 0, null);
     }
 
     public RadosInputStream(RadosFileSystemStore store, String id) {
-        ioctx = store.getIoCTX();
+        this(store, id, -1, 0);
+    }
+
+    /**
+     * Opens a stream over the first <code>length</code> bytes of a block
+     * object.
+     *
+     * @param bytesPerChecksum bytes covered by each checksum stored after
+     *        the data, or 0 not to verify
+     */
+    public RadosInputStream(RadosFileSystemStore store, String id, long length,
+                            int bytesPerChecksum) {
+        this(store.getObjectStore(), id,
+             store.getConf().getInt(RadosFileSystemConfigKeys.RADOS_READAHEAD_MIN_KEY,
+                                    RadosFileSystemConfigKeys.RADOS_READAHEAD_MIN_DEFAULT),
+             store.getConf().getInt(RadosFileSystemConfigKeys.RADOS_READAHEAD_MAX_KEY,
+                                    RadosFileSystemConfigKeys.RADOS_READAHEAD_MAX_DEFAULT),
+             store.getConf().getInt(RadosFileSystemConfigKeys.RADOS_READAHEAD_PREFETCH_DEPTH_KEY,
+                                    RadosFileSystemConfigKeys.RADOS_READAHEAD_PREFETCH_DEPTH_DEFAULT),
+             store.getIOExecutor(), store.getBufferPool(), length, bytesPerChecksum);
+    }
+
+    /**
+     * @param minWindow smallest read-ahead window in bytes
+     * @param maxWindow largest read-ahead window in bytes
+     * @param prefetchDepth number of windows fetched ahead in the background
+     * @param executor runs the background fetches, or null to disable them
+     */
+    public RadosInputStream(ObjectStore objects, String id, int minWindow,
+                            int maxWindow, int prefetchDepth,
+                            ExecutorService executor) {
+        this(objects, id, minWindow, maxWindow, prefetchDepth, executor, null, -1, 0);
+    }
+
+    private RadosInputStream(ObjectStore objects, String id, int minWindow,
+                             int maxWindow, int prefetchDepth,
+                             ExecutorService executor, BufferPool buffers,
+                             long dataLength, int bytesPerChecksum) {
+        this.objects = objects;
         oid = id;
         closed = false;
+        this.minWindow = Math.max(1, minWindow);
+        this.maxWindow = Math.max(this.minWindow, maxWindow);
+        this.prefetchDepth = executor == null ? 0 : prefetchDepth;
+        this.executor = executor;
+        this.window = this.minWindow;
+        this.buffers = buffers != null ? buffers
+            : new BufferPool((long) (this.prefetchDepth + 2) * this.maxWindow);
+        this.dataLength = dataLength;
+        this.bytesPerChecksum = bytesPerChecksum;
+        if (dataLength >= 0) {
+            size = dataLength;
+        }
     }
 
-    private synchronized long getPos() throws IOException {
+    @Override
+    public synchronized long getPos() throws IOException {
         return pos;
     }
 
     @Override
-    public synchronized int available() throws IOException {
-        try {
-            if (size < 0 ) {
-                size = ioctx.stat(oid).getSize();
+    public synchronized void seek(long targetPos) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (targetPos < 0) {
+            throw new EOFException("Cannot seek to negative offset " + targetPos);
+        }
+        pos = targetPos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+        return false;
+    }
+
+    /**
+     * Reads from <code>position</code> without moving the stream position
+     * or taking the stream lock.
+     */
+    @Override
+    public int read(long position, byte[] buf, int off, int len)
+        throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (dataLength >= 0) {
+            if (position >= dataLength) {
+                return -1;
+            }
+            len = (int) Math.min(len, dataLength - position);
+        }
+        if (bytesPerChecksum > 0) {
+            Window w = fetch(position, len);
+            int skip = (int) (position - w.offset);
+            if (w.length <= skip) {
+                return -1;
+            }
+            int n = Math.min(len, w.length - skip);
+            System.arraycopy(w.data, skip, buf, off, n);
+            buffers.put(w.data);
+            return n;
+        }
+        int read = objects.read(oid, position, buf, off, len);
+        return read <= 0 ? -1 : read;
+    }
+
+    @Override
+    public void readFully(long position, byte[] buf, int off, int len)
+        throws IOException {
+        int done = 0;
+        while (done < len) {
+            int read = read(position + done, buf, off + done, len - done);
+            if (read < 0) {
+                throw new EOFException("End of object reached before reading fully.");
             }
-            return (int) (size - pos);
-        } catch (Exception e) {
-            throw new IOException("stat failed");
+            done += read;
+        }
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (size < 0) {
+            size = objects.stat(oid);
         }
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, size - pos));
     }
 
     @Override
@@ -74,40 +283,229 @@ public class RadosInputStream extends InputStream {
         if (closed) {
             throw new IOException("Stream closed");
         }
-        try {
-            if (size < 0 ) {
-                size = ioctx.stat(oid).getSize();
-            }
-        } catch (Exception e) {
-            throw new IOException("stat failed");
+        if (!fill()) {
+            return -1;
+        }
+        return buffer[(int) (pos++ - bufferStart)] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte buf[], int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, (int) (bufferStart + bufferLength - pos));
+        System.arraycopy(buffer, (int) (pos - bufferStart), buf, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Reads into <code>buf</code> from the current position.
+     */
+    public synchronized int read(ByteBuffer buf) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
         }
-        byte[] buf = new byte[1];
+        if (!buf.hasRemaining()) {
+            return 0;
+        }
+        boolean buffered = pos >= bufferStart && pos < bufferStart + bufferLength;
+        if (!buffered && buf.isDirect() && bytesPerChecksum == 0
+            && buf.remaining() >= window) {
+            return readDirect(buf);
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(buf.remaining(), (int) (bufferStart + bufferLength - pos));
+        buf.put(buffer, (int) (pos - bufferStart), n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Reads from the object into <code>buf</code>, bypassing the windows.
+     */
+    private int readDirect(ByteBuffer buf) throws IOException {
+        if (size >= 0 && pos >= size) {
+            return -1;
+        }
+        cancelPrefetches();
+        int limit = buf.limit();
+        if (dataLength >= 0 && dataLength - pos < buf.remaining()) {
+            buf.limit(buf.position() + (int) (dataLength - pos));
+        }
+        int read;
         try {
-            int read = ioctx.read(oid, 1, pos, buf);
-            if (read > 0)
-                pos ++;
-            return buf[0];
-        } catch (Exception e) {
-            throw new IOException("read failed");
+            read = objects.read(oid, pos, buf);
+        } finally {
+            buf.limit(limit);
         }
+        if (read <= 0) {
+            return -1;
+        }
+        pos += read;
+        return read;
     }
 
     @Override
-    public synchronized int read(byte buf[], int off, int len) throws IOException {
+    public synchronized long skip(long n) throws IOException {
         if (closed) {
             throw new IOException("Stream closed");
         }
+        if (n <= 0) {
+            return 0;
+        }
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Makes sure the byte at <code>pos</code> is buffered.
+     *
+     * @return false at the end of the object
+     */
+    private boolean fill() throws IOException {
+        if (pos >= bufferStart && pos < bufferStart + bufferLength) {
+            return true;
+        }
+        if (size >= 0 && pos >= size) {
+            return false;
+        }
+        boolean sequential = bufferLength > 0 && pos == bufferStart + bufferLength;
+        if (sequential) {
+            window = Math.min(2 * window, maxWindow);
+        } else {
+            window = minWindow;
+            cancelPrefetches();
+        }
+        Window next = null;
+        while (next == null && !prefetches.isEmpty()) {
+            Window w = await(prefetches.removeFirst());
+            if (pos == w.offset || (pos > w.offset && pos < w.offset + w.length)) {
+                next = w;
+            } else {
+                buffers.put(w.data);
+                if (w.offset > pos) {
+                    cancelPrefetches();
+                }
+            }
+        }
+        if (next == null) {
+            next = fetch(pos, window);
+            prefetchEnd = next.offset + next.length;
+        }
+        if (buffer != null) {
+            buffers.put(buffer);
+        }
+        buffer = next.data;
+        bufferStart = next.offset;
+        bufferLength = next.length;
+        if (next.length < next.requested && size < 0) {
+            // a short read means we reached the end of the object
+            size = next.offset + next.length;
+        } else if (sequential) {
+            prefetch();
+        }
+        if (bufferLength == 0) {
+            return false;
+        }
+        return pos < bufferStart + bufferLength;
+    }
+
+    /**
+     * Keeps up to <code>prefetchDepth</code> windows in flight past the
+     * current buffer.
+     */
+    private void prefetch() {
+        if (prefetchEnd < bufferStart + bufferLength) {
+            prefetchEnd = bufferStart + bufferLength;
+        }
+        while (prefetches.size() < prefetchDepth
+               && (size < 0 || prefetchEnd < size)) {
+            Prefetch p = new Prefetch(prefetchEnd, window);
+            p.future = executor.submit(p);
+            prefetches.addLast(p);
+            prefetchEnd += window;
+        }
+    }
+
+    private Window fetch(long offset, int length) throws IOException {
+        if (bytesPerChecksum > 0) {
+            long start = offset - offset % bytesPerChecksum;
+            long end = offset + length;
+            end = (end + bytesPerChecksum - 1) / bytesPerChecksum * bytesPerChecksum;
+            offset = start;
+            length = (int) (end - start);
+        }
+        if (dataLength >= 0) {
+            length = (int) Math.max(0, Math.min(length, dataLength - offset));
+        }
+        byte[] data = buffers.take(length);
+        int read = objects.read(oid, offset, data, 0, length);
+        if (bytesPerChecksum > 0 && read > 0) {
+            if (offset + read < dataLength) {
+                // only whole chunks can be verified
+                read -= read % bytesPerChecksum;
+            }
+            BlockChecksums.verify(data, read, offset, checksums(), 0,
+                                  bytesPerChecksum, oid);
+        }
+        return new Window(offset, data, length, read);
+    }
+
+    /**
+     * Loads the checksums stored after the data on first use. Prefetches
+     * call this too, so it does not take the stream lock.
+     */
+    private byte[] checksums() throws IOException {
+        synchronized (checksumLock) {
+            if (checksums == null) {
+                byte[] sums = new byte[(int) BlockChecksums.length(dataLength,
+                                                                   bytesPerChecksum)];
+                int done = 0;
+                while (done < sums.length) {
+                    int read = objects.read(oid, dataLength + done, sums, done,
+                                            sums.length - done);
+                    if (read <= 0) {
+                        throw new EOFException("Checksums of " + oid + " are truncated");
+                    }
+                    done += read;
+                }
+                checksums = sums;
+            }
+            return checksums;
+        }
+    }
+
+    private Window await(Prefetch prefetch) throws IOException {
         try {
-            byte[] b = new byte[len];
-            int read = ioctx.read(oid, len, pos, b);
-            if (read > 0) {
-                pos += read;
+            return prefetch.future.get();
+        } catch (InterruptedException e) {
+            prefetch.abandon();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("read interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
-            System.arraycopy(b, 0, buf, off, read);
-            return read;
-        } catch (Exception e) {
-            throw new IOException("read failed");
+            throw new IOException("read failed", e.getCause());
+        }
+    }
+
+    private void cancelPrefetches() {
+        for (Prefetch prefetch : prefetches) {
+            prefetch.abandon();
         }
+        prefetches.clear();
+        prefetchEnd = -1;
     }
 
     @Override
@@ -116,6 +514,14 @@ public class RadosInputStream extends InputStream {
             return;
         }
         super.close();
+        synchronized (this) {
+            cancelPrefetches();
+            if (buffer != null) {
+                buffers.put(buffer);
+            }
+            buffer = null;
+            bufferLength = 0;
+        }
         closed = true;
     }
 
@@ -24,14 +24,9 @@ import java.io.IOException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import com.ceph.rados.fs.INode.FileType;
-import com.ceph.rados.jna.RadosObjectInfo;
-import com.ceph.rados.IoCTX;
-import com.ceph.rados.Rados;
-
 public class RadosOutputStream extends OutputStream {
 
-    private static IoCTX ioctx;
+    private final ObjectStore objects;
     private boolean closed;
     private String oid;
     private long pos = 0;
@@ -40,14 +35,14 @@ public class RadosOutputStream extends OutputStream {
         LogFactory.getLog(RadosOutputStream.class.getName());
     
     
-    public RadosOutputStream(IoCTX io, String id) {
-        ioctx = io;
+    public RadosOutputStream(ObjectStore objects, String id) {
+        this.objects = objects;
         oid = id;
         closed = false;
     }
 
     public RadosOutputStream(RadosFileSystemStore store, String id) {
-        ioctx = store.getIoCTX();
+        objects = store.getObjectStore();
         oid = id;
         closed = false;
     }
@@ -58,13 +53,8 @@ public class RadosOutputStream extends OutputStream {
         if (closed) {
             throw new IOException("Stream closed");
         }
-        byte[] buf = new byte[4];
-        try {
-            ioctx.write(oid, buf, pos);
-            pos ++;
-        } catch (Exception e) {
-            throw new IOException("write failed");
-        }
+        objects.write(oid, pos, new byte[] { (byte) b }, 0, 1);
+        pos++;
     }
 
     @Override
@@ -72,12 +62,11 @@ public class RadosOutputStream extends OutputStream {
         if (closed) {
             throw new IOException("Stream closed");
         }
-        try {
-            ioctx.write(oid, buf, off);
-            pos += buf.length;
-        } catch (Exception e) {
-            throw new IOException("write failed");
+        if (len == 0) {
+            return;
         }
+        objects.write(oid, pos, buf, off, len);
+        pos += len;
     }
 
     @Override
@@ -0,0 +1,481 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.ceph.rados.fs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Keeps objects in memory and makes them behave like a remote pool, so
+ * client-side changes can be measured, and production tail latencies
+ * reproduced, without a cluster.
+ * <p>
+ * Every operation first waits for a latency drawn from the
+ * {@link LatencyDistribution} configured for its kind, then for its data
+ * to pass a link of the configured read or write bandwidth, which
+ * transfers one operation at a time. Operations may fail at random with a
+ * configured rate, before they have any effect. Waits are taken outside of
+ * any lock, and objects are locked one at a time, so concurrent
+ * operations overlap as they would on a cluster.
+ */
+public class SimulatedObjectStore extends AbstractObjectStore {
+
+    /** The kinds of operation, which name the per-kind settings. */
+    public enum Op { STAT, READ, WRITE, REMOVE, XATTR, LIST }
+
+    private static final AtomicLong INSTANCE_IDS = new AtomicLong();
+
+    private final ConcurrentNavigableMap<String, SimulatedObject> objects =
+        new ConcurrentSkipListMap<String, SimulatedObject>();
+    private final LatencyDistribution[] latencies =
+        new LatencyDistribution[Op.values().length];
+    private final float[] failureRates = new float[Op.values().length];
+    private Random random = new Random();
+    private Link readLink;
+    private Link writeLink;
+    private String pool;
+    // like a librados client, a simulator has an id of its own
+    private final long instanceId = INSTANCE_IDS.incrementAndGet();
+
+    private static class SimulatedObject {
+        byte[] data = new byte[0];
+        int length;
+        long mtime = System.currentTimeMillis();
+        Map<String, String> xattrs;
+
+        boolean xattrEquals(String name, String expected) {
+            String value = xattrs == null ? null : xattrs.get(name);
+            return expected.equals(value == null ? "" : value);
+        }
+
+        void setXAttr(String name, String value) {
+            if (xattrs == null) {
+                xattrs = new HashMap<String, String>();
+            }
+            xattrs.put(name, value);
+            mtime = System.currentTimeMillis();
+        }
+
+        void replace(byte[] buf, int off, int len) {
+            data = Arrays.copyOfRange(buf, off, off + len);
+            length = len;
+            mtime = System.currentTimeMillis();
+        }
+
+        void write(long offset, byte[] buf, int off, int len) {
+            int end = (int) offset + len;
+            if (end > data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE,
+                                                          Math.max(end, 2L * data.length)));
+            }
+            if (offset > length) {
+                Arrays.fill(data, length, (int) offset, (byte) 0);
+            }
+            System.arraycopy(buf, off, data, (int) offset, len);
+            length = Math.max(length, end);
+            mtime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A link that carries one transfer at a time at a fixed bandwidth.
+     */
+    private static class Link {
+        private final double nanosPerByte;
+        private long free;
+
+        Link(long bytesPerSecond) {
+            this.nanosPerByte = 1e9 / bytesPerSecond;
+            this.free = System.nanoTime();
+        }
+
+        /**
+         * Books the link for <code>bytes</code> and returns when the
+         * transfer completes, in {@link System#nanoTime()} terms.
+         */
+        synchronized long reserve(int bytes) {
+            free = Math.max(free, System.nanoTime()) + (long) (bytes * nanosPerByte);
+            return free;
+        }
+    }
+
+    public SimulatedObjectStore() {
+        Arrays.fill(latencies, LatencyDistribution.NONE);
+    }
+
+    public SimulatedObjectStore(Configuration conf) {
+        this();
+        setConf(conf);
+    }
+
+    /**
+     * Reads the simulation settings from the configuration. Nothing is
+     * connected to; <code>pool</code> only names the store.
+     */
+    public void initialize(String configFile, String id, String pool)
+        throws IOException {
+        this.pool = pool == null ? "simulated" : pool;
+        Configuration conf = getConf() == null ? new Configuration() : getConf();
+        String latency = conf.get(RadosFileSystemConfigKeys.RADOS_SIMULATOR_LATENCY_KEY,
+                                  RadosFileSystemConfigKeys.RADOS_SIMULATOR_LATENCY_DEFAULT);
+        float failureRate = conf.getFloat(
+            RadosFileSystemConfigKeys.RADOS_SIMULATOR_FAILURE_RATE_KEY,
+            RadosFileSystemConfigKeys.RADOS_SIMULATOR_FAILURE_RATE_DEFAULT);
+        try {
+            for (Op op : Op.values()) {
+                String suffix = "." + op.name().toLowerCase();
+                latencies[op.ordinal()] = LatencyDistribution.parse(conf.get(
+                    RadosFileSystemConfigKeys.RADOS_SIMULATOR_LATENCY_KEY + suffix, latency));
+                failureRates[op.ordinal()] = conf.getFloat(
+                    RadosFileSystemConfigKeys.RADOS_SIMULATOR_FAILURE_RATE_KEY + suffix,
+                    failureRate);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("simulator init failed", e);
+        }
+        long readBandwidth = conf.getLong(
+            RadosFileSystemConfigKeys.RADOS_SIMULATOR_READ_BANDWIDTH_KEY,
+            RadosFileSystemConfigKeys.RADOS_SIMULATOR_READ_BANDWIDTH_DEFAULT);
+        long writeBandwidth = conf.getLong(
+            RadosFileSystemConfigKeys.RADOS_SIMULATOR_WRITE_BANDWIDTH_KEY,
+            RadosFileSystemConfigKeys.RADOS_SIMULATOR_WRITE_BANDWIDTH_DEFAULT);
+        readLink = readBandwidth > 0 ? new Link(readBandwidth) : null;
+        writeLink = writeBandwidth > 0 ? new Link(writeBandwidth) : null;
+        long seed = conf.getLong(RadosFileSystemConfigKeys.RADOS_SIMULATOR_SEED_KEY,
+                                 RadosFileSystemConfigKeys.RADOS_SIMULATOR_SEED_DEFAULT);
+        random = seed == 0 ? new Random() : new Random(seed);
+    }
+
+    /**
+     * Replaces the latency distribution of every kind of operation, e.g.
+     * to set a namespace up at full speed before it is measured.
+     */
+    public void setLatency(String spec) {
+        LatencyDistribution latency = LatencyDistribution.parse(spec);
+        Arrays.fill(latencies, latency);
+    }
+
+    public void setLatency(Op op, String spec) {
+        latencies[op.ordinal()] = LatencyDistribution.parse(spec);
+    }
+
+    public void setFailureRate(Op op, float rate) {
+        failureRates[op.ordinal()] = rate;
+    }
+
+    /**
+     * Returns the number of objects held.
+     */
+    public int size() {
+        return objects.size();
+    }
+
+    /**
+     * Returns the bytes held by all objects.
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (SimulatedObject object : objects.values()) {
+            synchronized (object) {
+                bytes += object.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes every object.
+     */
+    public void clear() {
+        objects.clear();
+    }
+
+    public String getPoolName() {
+        return pool;
+    }
+
+    public long getInstanceId() {
+        return instanceId;
+    }
+
+    public long stat(String oid) throws IOException {
+        simulate(Op.STAT, oid);
+        SimulatedObject object = get(oid);
+        synchronized (object) {
+            return object.length;
+        }
+    }
+
+    public long getModificationTime(String oid) throws IOException {
+        simulate(Op.STAT, oid);
+        SimulatedObject object = get(oid);
+        synchronized (object) {
+            return object.mtime;
+        }
+    }
+
+    public int read(String oid, long offset, byte[] buf, int off, int len)
+        throws IOException {
+        checkOffset(oid, offset, 0);
+        simulate(Op.READ, oid);
+        SimulatedObject object = get(oid);
+        int n;
+        synchronized (object) {
+            n = (int) Math.max(0, Math.min(len, object.length - offset));
+            if (n > 0) {
+                System.arraycopy(object.data, (int) offset, buf, off, n);
+            }
+        }
+        transfer(readLink, n);
+        return n;
+    }
+
+    @Override
+    public int read(String oid, long offset, ByteBuffer buf) throws IOException {
+        checkOffset(oid, offset, 0);
+        simulate(Op.READ, oid);
+        SimulatedObject object = get(oid);
+        int n;
+        synchronized (object) {
+            n = (int) Math.max(0, Math.min(buf.remaining(), object.length - offset));
+            if (n > 0) {
+                buf.put(object.data, (int) offset, n);
+            }
+        }
+        transfer(readLink, n);
+        return n;
+    }
+
+    public void write(String oid, long offset, byte[] buf, int off, int len)
+        throws IOException {
+        checkOffset(oid, offset, len);
+        simulate(Op.WRITE, oid);
+        transfer(writeLink, len);
+        SimulatedObject object = getOrCreate(oid);
+        synchronized (object) {
+            object.write(offset, buf, off, len);
+        }
+    }
+
+    public void writeFull(String oid, byte[] buf, int off, int len)
+        throws IOException {
+        simulate(Op.WRITE, oid);
+        transfer(writeLink, len);
+        SimulatedObject object = getOrCreate(oid);
+        synchronized (object) {
+            object.replace(buf, off, len);
+        }
+    }
+
+    public void append(String oid, byte[] buf, int off, int len)
+        throws IOException {
+        simulate(Op.WRITE, oid);
+        transfer(writeLink, len);
+        SimulatedObject object = getOrCreate(oid);
+        synchronized (object) {
+            checkOffset(oid, object.length, len);
+            object.write(object.length, buf, off, len);
+        }
+    }
+
+    public void remove(String oid) throws IOException {
+        simulate(Op.REMOVE, oid);
+        if (objects.remove(oid) == null) {
+            throw new FileNotFoundException("No such object " + oid);
+        }
+    }
+
+    public String getXAttr(String oid, String name) throws IOException {
+        simulate(Op.XATTR, oid);
+        SimulatedObject object = get(oid);
+        synchronized (object) {
+            return object.xattrs == null ? null : object.xattrs.get(name);
+        }
+    }
+
+    public void setXAttr(String oid, String name, String value)
+        throws IOException {
+        simulate(Op.XATTR, oid);
+        SimulatedObject object = getOrCreate(oid);
+        synchronized (object) {
+            object.setXAttr(name, value);
+        }
+    }
+
+    public boolean appendIf(String oid, String name, String expected,
+                            byte[] buf, int off, int len) throws IOException {
+        simulate(Op.WRITE, oid);
+        transfer(writeLink, len);
+        SimulatedObject object = getOrCreate(oid);
+        synchronized (object) {
+            if (!object.xattrEquals(name, expected)) {
+                return false;
+            }
+            checkOffset(oid, object.length, len);
+            object.write(object.length, buf, off, len);
+            return true;
+        }
+    }
+
+    public boolean writeIf(String oid, long offset, String name, String expected,
+                           byte[] buf, int off, int len) throws IOException {
+        checkOffset(oid, offset, len);
+        simulate(Op.WRITE, oid);
+        transfer(writeLink, len);
+        SimulatedObject object = getOrCreate(oid);
+        synchronized (object) {
+            if (!object.xattrEquals(name, expected)) {
+                return false;
+            }
+            object.write(offset, buf, off, len);
+            return true;
+        }
+    }
+
+    public boolean writeFullIf(String oid, String name, String expected,
+                               String value, byte[] buf, int off, int len)
+        throws IOException {
+        simulate(Op.WRITE, oid);
+        transfer(writeLink, len);
+        SimulatedObject object = get(oid);
+        synchronized (object) {
+            if (!object.xattrEquals(name, expected)) {
+                return false;
+            }
+            object.replace(buf, off, len);
+            object.setXAttr(name, value);
+            return true;
+        }
+    }
+
+    public boolean setXAttrIf(String oid, String name, String expected,
+                              String value) throws IOException {
+        simulate(Op.XATTR, oid);
+        SimulatedObject object = get(oid);
+        synchronized (object) {
+            if (!object.xattrEquals(name, expected)) {
+                return false;
+            }
+            object.setXAttr(name, value);
+            return true;
+        }
+    }
+
+    /**
+     * Lists the objects present when the listing starts, in name order.
+     */
+    public Listing list() throws IOException {
+        simulate(Op.LIST, null);
+        final Iterator<String> names =
+            Arrays.asList(objects.keySet().toArray(new String[0])).iterator();
+        return new Listing() {
+            public void skip(long count) {
+                for (long i = 0; i < count && names.hasNext(); i++) {
+                    names.next();
+                }
+            }
+
+            public String next() {
+                return names.hasNext() ? names.next() : null;
+            }
+
+            public void close() {
+                // nothing held
+            }
+        };
+    }
+
+    /**
+     * Objects are held in arrays, so they end before 2 GB.
+     */
+    private static void checkOffset(String oid, long offset, int len)
+        throws IOException {
+        if (offset < 0 || offset + len > Integer.MAX_VALUE) {
+            throw new IOException("Offset " + offset + " of " + oid
+                                  + " is out of the range of a simulated object");
+        }
+    }
+
+    private SimulatedObject get(String oid) throws FileNotFoundException {
+        SimulatedObject object = objects.get(oid);
+        if (object == null) {
+            throw new FileNotFoundException("No such object " + oid);
+        }
+        return object;
+    }
+
+    private SimulatedObject getOrCreate(String oid) {
+        SimulatedObject object = objects.get(oid);
+        if (object == null) {
+            SimulatedObject created = new SimulatedObject();
+            object = objects.putIfAbsent(oid, created);
+            if (object == null) {
+                object = created;
+            }
+        }
+        return object;
+    }
+
+    /**
+     * Waits for the latency of <code>op</code>, and fails it if it draws
+     * a failure.
+     */
+    private void simulate(Op op, String oid) throws IOException {
+        LatencyDistribution latency = latencies[op.ordinal()];
+        if (!latency.isNone()) {
+            sleepUntil(System.nanoTime() + latency.sample(random));
+        }
+        float rate = failureRates[op.ordinal()];
+        if (rate > 0 && random.nextFloat() < rate) {
+            throw new IOException("Simulated " + op.name().toLowerCase() + " failure"
+                                  + (oid == null ? "" : " on " + oid));
+        }
+    }
+
+    private static void transfer(Link link, int bytes) throws IOException {
+        if (link != null && bytes > 0) {
+            sleepUntil(link.reserve(bytes));
+        }
+    }
+
+    private static void sleepUntil(long deadline) throws IOException {
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("simulated operation interrupted");
+            }
+        }
+    }
+}
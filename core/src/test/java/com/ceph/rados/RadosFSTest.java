@@ -25,6 +25,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.io.File;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -36,6 +38,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 import com.ceph.rados.fs.INode.FileType;
 public final class RadosFSTest {
 
@@ -58,9 +61,9 @@ public final class RadosFSTest {
     @AfterClass
     public static void tearDown() throws Exception {
         // clean up
-        Set<Path> p = store.listSubPaths(new Path("/"));
+        Set<Path> p = store.listDeepSubPaths(new Path("/"));
         Path[] s = p.toArray(new Path[0]);
-        for (int i = 0; i < s.length; i++) {
+        for (int i = s.length - 1; i >= 0; i--) {
             store.deleteINode(s[i]);
         }
         store.tearDown();
@@ -108,6 +111,23 @@ public final class RadosFSTest {
         Dump();
     }
 
+    @Test
+    public void testListSubPaths() throws IOException {
+        Mkdirs("/");
+        Mkdirs("/test");
+        Mkdirs("/test/list_test");
+        Mkdirs("/test/list_test/a");
+        Mkdirs("/test/list_test/a/b");
+        Mkdirs("/test/list_test/c");
+        Set<Path> p = store.listSubPaths(new Path("/test/list_test"));
+        assertEquals(2, p.size());
+        assertTrue(p.contains(new Path("/test/list_test/a")));
+        assertTrue(p.contains(new Path("/test/list_test/c")));
+        assertEquals(3, store.listDeepSubPaths(new Path("/test/list_test")).size());
+        store.deleteINode(new Path("/test/list_test/c"));
+        assertEquals(1, store.listSubPaths(new Path("/test/list_test")).size());
+    }
+
     @Test
     public void testFileExists() throws IOException {
         final String f = "/test/file_test/fileio";
@@ -190,7 +210,10 @@ public final class RadosFSTest {
         int read = 0;
         INode inode2 = store.retrieveINode(p);
         for (int j = 0; j < inode2.getBlocks().length; j++) {
-            byte[] b = store.retrieveBlock(inode2.getBlocks()[j], 0);
+            InputStream bin = store.retrieveBlock(inode2.getBlocks()[j], 0);
+            ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            IOUtils.copyBytes(bin, bout, 4096, true);
+            byte[] b = bout.toByteArray();
             if (read + b.length > data.length()){
                 System.out.println("Wrong size");
             }else {
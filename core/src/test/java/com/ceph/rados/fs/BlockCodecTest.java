@@ -0,0 +1,241 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class BlockCodecTest {
+
+    private static final int[] CODECS = { BlockCodec.LZ4, BlockCodec.DEFLATE };
+
+    // around the shortest block LZ4 looks for matches in, and the
+    // smallest one that is sampled first
+    private static final int SAMPLED = 4 * 8 * 4 * 1024;
+    private static final int[] LENGTHS = {
+        0, 1, 2, 4, 5, 11, 12, 13, 14, 17, 255, 256, 4096, 65535, 65536, 65537,
+        SAMPLED - 1, SAMPLED, SAMPLED + 1, SAMPLED + 7
+    };
+
+    // keeps every block compressed, however much it grows
+    private static final double ANY_RATIO = 100;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testRoundTripRandom() throws Exception {
+        for (int length : LENGTHS) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            roundTrip(data);
+        }
+    }
+
+    @Test
+    public void testRoundTripZeros() throws Exception {
+        for (int length : LENGTHS) {
+            roundTrip(new byte[length]);
+        }
+    }
+
+    @Test
+    public void testRoundTripRepetitive() throws Exception {
+        byte[] text = "the quick brown fox jumps over the lazy dog; ".getBytes("US-ASCII");
+        for (int length : LENGTHS) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = text[i % text.length];
+            }
+            // a few changes, so matches end and start again
+            for (int i = 0; i < length / 1000; i++) {
+                data[random.nextInt(length)] = (byte) random.nextInt();
+            }
+            roundTrip(data);
+        }
+    }
+
+    /**
+     * Runs shorter than the match they repeat make matches that overlap
+     * the bytes they produce.
+     */
+    @Test
+    public void testOverlappingMatches() throws Exception {
+        for (int period = 1; period <= 9; period++) {
+            byte[] data = new byte[10000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i % period);
+            }
+            byte[] compressed = roundTrip(BlockCodec.LZ4, data);
+            assertTrue("period " + period + ": " + compressed.length,
+                       compressed.length < 100);
+        }
+    }
+
+    @Test
+    public void testMatchesAtMaximumDistance() throws Exception {
+        for (int distance : new int[] { 65534, 65535, 65536 }) {
+            byte[] data = new byte[distance + 4096];
+            random.nextBytes(data);
+            System.arraycopy(data, 0, data, distance, 4096);
+            roundTrip(BlockCodec.LZ4, data);
+        }
+    }
+
+    /**
+     * Only the first <code>length</code> bytes count, on both sides.
+     */
+    @Test
+    public void testLengthsWithinLargerArrays() throws Exception {
+        byte[] data = new byte[1000];
+        Arrays.fill(data, 0, 500, (byte) 'x');
+        for (int i = 500; i < data.length; i++) {
+            data[i] = (byte) random.nextInt();
+        }
+        for (int codec : CODECS) {
+            BlockCodec blockCodec = new BlockCodec(codec, 6, ANY_RATIO);
+            byte[] compressed = blockCodec.compress(data, 300);
+            byte[] padded = Arrays.copyOf(compressed, compressed.length + 64);
+            Arrays.fill(padded, compressed.length, padded.length, (byte) 7);
+            assertArrayEquals(Arrays.copyOf(data, 300),
+                              BlockCodec.decompress(codec, padded, compressed.length, 300));
+        }
+    }
+
+    @Test
+    public void testIncompressibleBlocksAreSkipped() throws Exception {
+        byte[] noise = new byte[SAMPLED];
+        random.nextBytes(noise);
+        byte[] zeros = new byte[SAMPLED];
+        for (int codec : CODECS) {
+            BlockCodec blockCodec = new BlockCodec(codec, 6, 0.9);
+            assertNull(blockCodec.compress(noise, noise.length));
+            assertNull(blockCodec.compress(noise, 1000));
+            assertNotNull(blockCodec.compress(zeros, zeros.length));
+        }
+    }
+
+    @Test
+    public void testTruncatedInputFails() throws Exception {
+        byte[] data = new byte[5000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7 == 0 ? random.nextInt() : i % 13);
+        }
+        for (int codec : CODECS) {
+            byte[] compressed = new BlockCodec(codec, 6, ANY_RATIO).compress(data, data.length);
+            for (int cut = 0; cut < compressed.length; cut++) {
+                try {
+                    // the rest of the array is there, but must not be read
+                    BlockCodec.decompress(codec, compressed, cut, data.length);
+                    fail(BlockCodec.getName(codec) + " cut at " + cut + " of "
+                         + compressed.length);
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+            try {
+                BlockCodec.decompress(codec, compressed, compressed.length, data.length + 1);
+                fail(BlockCodec.getName(codec) + " decompressed too short a block");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptLz4Fails() throws Exception {
+        byte[][] corrupt = {
+            // a match with offset 0
+            { 0x10, 'a', 0, 0, 0 },
+            // a match reaching before the start of the block
+            { 0x10, 'a', 2, 0, 0 },
+            // a match running past the end of the block
+            { 0x1f, 'a', 1, 0, (byte) 255, 100, 0 },
+            // more literals than there are bytes
+            { (byte) 0xf0, (byte) 255, (byte) 255, 1 },
+            // a literal length that never ends
+            { (byte) 0xf0, (byte) 255 },
+        };
+        for (byte[] block : corrupt) {
+            try {
+                BlockCodec.decompress(BlockCodec.LZ4, block, block.length, 64);
+                fail("decompressed " + Arrays.toString(block));
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Whatever the input, decompressing either succeeds or throws an
+     * IOException.
+     */
+    @Test
+    public void testGarbageOnlyRaisesIOException() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            byte[] block = new byte[random.nextInt(64)];
+            random.nextBytes(block);
+            for (int codec : CODECS) {
+                try {
+                    BlockCodec.decompress(codec, block, block.length, random.nextInt(256));
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownCodecFails() throws Exception {
+        BlockCodec.decompress(7, new byte[1], 1, 1);
+    }
+
+    private void roundTrip(byte[] data) throws IOException {
+        for (int codec : CODECS) {
+            roundTrip(codec, data);
+        }
+    }
+
+    private byte[] roundTrip(int codec, byte[] data) throws IOException {
+        if (data.length == 0) {
+            // never worth storing compressed, but LZ4 still encodes it
+            assertNull(new BlockCodec(codec, 6, ANY_RATIO).compress(data, 0));
+            if (codec == BlockCodec.LZ4) {
+                byte[] compressed = new byte[BlockCodec.lz4MaxCompressedLength(0)];
+                int n = BlockCodec.lz4Compress(data, 0, compressed);
+                assertArrayEquals(data, BlockCodec.decompress(codec, compressed, n, 0));
+            }
+            return null;
+        }
+        // incompressible blocks are kept too, to check the codec on them
+        byte[] compressed = new BlockCodec(codec, 6, ANY_RATIO).compress(data, data.length);
+        assertNotNull(BlockCodec.getName(codec) + " " + data.length, compressed);
+        assertArrayEquals(BlockCodec.getName(codec) + " " + data.length, data,
+            BlockCodec.decompress(codec, compressed, compressed.length, data.length));
+        return compressed;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public final class BlockIdAllocatorTest {
+
+    @Test
+    public void testIdsFromOneAllocatorAreConsecutive() {
+        BlockIdAllocator allocator = new BlockIdAllocator(42);
+        long first = allocator.nextId();
+        for (int i = 1; i < 1000; i++) {
+            assertEquals(first + i, allocator.nextId());
+        }
+    }
+
+    @Test
+    public void testAllocatorsOfOneClientDoNotOverlap() {
+        Set<Long> ids = new HashSet<Long>();
+        for (long instanceId : new long[] { 7, 7, -1, -1 }) {
+            BlockIdAllocator allocator = new BlockIdAllocator(instanceId);
+            for (int i = 0; i < 1000; i++) {
+                assertTrue(ids.add(allocator.nextId()));
+            }
+        }
+    }
+}
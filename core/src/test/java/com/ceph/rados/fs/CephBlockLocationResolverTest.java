@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.base.Charsets;
+
+public final class CephBlockLocationResolverTest {
+
+    /**
+     * Hashes as computed by ceph_str_hash_rjenkins, covering every tail
+     * length and more than one round.
+     */
+    @Test
+    public void testHashMatchesCeph() {
+        assertEquals(-1119235827, hash(""));
+        assertEquals(703514648, hash("a"));
+        assertEquals(2143417350, hash("foo"));
+        assertEquals(201292654, hash("block_123456789"));
+        assertEquals(-120770413, hash("pack_-5166737186984296447"));
+        assertEquals(186334885, hash("abcdefghijkl"));
+        assertEquals(1045830351, hash("abcdefghijklmnopqrstuvwxyz0123"));
+        assertEquals(-1739983597, hash("\u00e9t\u00e9"));
+    }
+
+    @Test
+    public void testStableMod() {
+        // 12 placement groups: the mask is 15, and 12..15 fold onto 4..7
+        for (int x = 0; x < 12; x++) {
+            assertEquals(x, CephBlockLocationResolver.stableMod(x, 12, 15));
+        }
+        for (int x = 12; x < 16; x++) {
+            assertEquals(x - 8, CephBlockLocationResolver.stableMod(x, 12, 15));
+        }
+        assertEquals(5, CephBlockLocationResolver.stableMod(0x7fffffe5, 12, 15));
+        assertEquals(3, CephBlockLocationResolver.stableMod(-1, 4, 3));
+    }
+
+    private static int hash(String key) {
+        return CephBlockLocationResolver.hash(key.getBytes(Charsets.UTF_8));
+    }
+}
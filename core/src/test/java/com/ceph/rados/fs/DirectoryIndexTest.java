@@ -0,0 +1,159 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public final class DirectoryIndexTest {
+
+    private static final String DIR = "dir";
+
+    private SimulatedObjectStore objects;
+
+    @Before
+    public void setUp() throws Exception {
+        objects = new SimulatedObjectStore();
+        objects.initialize(null, null, null);
+    }
+
+    @Test
+    public void testAddLookupRemove() throws Exception {
+        DirectoryIndex index = new DirectoryIndex(objects, 8192, 60000);
+        assertEquals(-1, index.lookup(DIR, "a"));
+        index.add(DIR, "a", 1);
+        index.add(DIR, "b", 2);
+        index.remove(DIR, "a");
+        assertEquals(-1, index.lookup(DIR, "a"));
+        assertEquals(2, index.lookup(DIR, "b"));
+        assertEquals(1, index.list(DIR).size());
+        index.destroy(DIR);
+        assertEquals(0, index.list(DIR).size());
+        assertEquals(0, objects.size());
+    }
+
+    @Test
+    public void testGenerationsAddedAsDirectoryGrows() throws Exception {
+        DirectoryIndex index = new DirectoryIndex(objects, 16, 60000);
+        for (int i = 0; i < 500; i++) {
+            index.add(DIR, "f" + i, i);
+        }
+        for (int i = 0; i < 500; i += 2) {
+            index.remove(DIR, "f" + i);
+        }
+        assertTrue(index.getShardCount(DIR) > 1);
+        SortedMap<String, Long> entries = index.list(DIR);
+        assertEquals(250, entries.size());
+        for (int i = 0; i < 500; i++) {
+            assertEquals("f" + i, i % 2 == 0 ? -1 : i, index.lookup(DIR, "f" + i));
+        }
+        int listed = 0;
+        for (int shard = 0; shard < index.getShardCount(DIR); shard++) {
+            listed += index.listShard(DIR, shard).size();
+        }
+        assertEquals(250, listed);
+    }
+
+    @Test
+    public void testListDoesNotRewrite() throws Exception {
+        DirectoryIndex index = new DirectoryIndex(objects, 1000, 60000);
+        for (int i = 0; i < 100; i++) {
+            index.add(DIR, "f", i);
+        }
+        long bytes = objects.bytes();
+        assertEquals(1, index.list(DIR).size());
+        assertEquals(bytes, objects.bytes());
+    }
+
+    /**
+     * Several clients append to one directory, each compacting the shards
+     * it wrote to; none of their records may be lost.
+     */
+    @Test
+    public void testConcurrentClientsLoseNoEntries() throws Exception {
+        objects.setLatency("uniform:0,300");
+        final int clients = 6;
+        final int files = 300;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            List<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (int c = 0; c < clients; c++) {
+                final int client = c;
+                final DirectoryIndex index = new DirectoryIndex(objects, 32, 60000);
+                done.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = 0; i < files; i++) {
+                            index.add(DIR, client + "-" + i, i);
+                            if (i % 3 == 0) {
+                                index.remove(DIR, client + "-" + i);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : done) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        objects.setLatency("none");
+        DirectoryIndex index = new DirectoryIndex(objects, 32, 60000);
+        assertEquals(clients * (files - files / 3), index.list(DIR).size());
+        for (int c = 0; c < clients; c++) {
+            for (int i = 0; i < files; i++) {
+                assertEquals(i % 3 == 0 ? -1 : i, index.lookup(DIR, c + "-" + i));
+            }
+        }
+    }
+
+    /**
+     * A seal left by a client that died is broken after the timeout, and
+     * the compaction that held it can no longer replace the shard.
+     */
+    @Test
+    public void testAbandonedSealIsBroken() throws Exception {
+        DirectoryIndex index = new DirectoryIndex(objects, 8192, 50);
+        index.add(DIR, "a", 1);
+        ObjectSeals seals = new ObjectSeals(objects, 50);
+        String token = seals.seal("index_0_" + DIR);
+        assertNotNull(token);
+
+        long start = System.currentTimeMillis();
+        index.add(DIR, "b", 2);
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertFalse(seals.replace("index_0_" + DIR, token, new byte[0]));
+        assertEquals(1, index.lookup(DIR, "a"));
+        assertEquals(2, index.lookup(DIR, "b"));
+    }
+}
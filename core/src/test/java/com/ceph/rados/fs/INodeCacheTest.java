@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class INodeCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        INodeCache cache = new INodeCache(2, 60000, 60000);
+        cache.put("/a", INode.DIRECTORY_INODE);
+        cache.put("/b", INode.DIRECTORY_INODE);
+        cache.get("/a");
+        cache.put("/c", null);
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertSame(INode.DIRECTORY_INODE, cache.get("/a"));
+        assertNull(cache.get("/b"));
+        assertSame(INodeCache.MISSING, cache.get("/c"));
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        INodeCache cache = new INodeCache(10, 60000, 1);
+        cache.put("/a", INode.DIRECTORY_INODE);
+        cache.put("/b", null);
+        Thread.sleep(10);
+        assertSame(INode.DIRECTORY_INODE, cache.get("/a"));
+        assertNull(cache.get("/b"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidateTree() {
+        INodeCache cache = new INodeCache(100, 60000, 60000);
+        String[] kept = { "/a", "/ab", "/a.b", "/a-b/c", "/b/a/c" };
+        String[] dropped = { "/a/b", "/a/b/c", "/a/b/c/d" };
+        for (String key : kept) {
+            cache.put(key, 1, INode.DIRECTORY_INODE);
+        }
+        for (String key : dropped) {
+            cache.put(key, 2, INode.DIRECTORY_INODE);
+        }
+        cache.put("/a/bc", null);
+        cache.invalidateTree("/a/b");
+        for (String key : kept) {
+            assertSame(key, INode.DIRECTORY_INODE, cache.get(key));
+        }
+        for (String key : dropped) {
+            assertNull(key, cache.get(key));
+        }
+        assertSame(INodeCache.MISSING, cache.get("/a/bc"));
+        cache.invalidateTree("/");
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictedPathsAreForgotten() {
+        INodeCache cache = new INodeCache(2, 60000, 60000);
+        cache.put("/a/x", 1, INode.DIRECTORY_INODE);
+        cache.put("/a/y", 2, INode.DIRECTORY_INODE);
+        cache.get("/a/x");
+        cache.put("/a/z", 3, INode.DIRECTORY_INODE);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(-1, cache.getId("/a/y"));
+        cache.invalidateTree("/a");
+        assertEquals(0, cache.size());
+        // an evicted path left behind in the order would be dropped again
+        cache.put("/a/y", 4, INode.DIRECTORY_INODE);
+        assertEquals(4, cache.getId("/a/y"));
+    }
+}
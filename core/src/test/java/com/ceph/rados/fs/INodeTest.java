@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class INodeTest {
+
+    @Test
+    public void testVersion1RoundTrip() throws Exception {
+        INode file = new INode(INode.FileType.FILE,
+                               new Block[] { new Block(-5, 100), new Block(7, 30) });
+        INode read = INode.deserialize(file.serialize(1));
+        assertEquals(INode.FileType.FILE, read.getFileType());
+        assertEquals(130, read.getLength());
+        assertEquals(2, read.getBlocks().length);
+        assertEquals(-5, read.getBlocks()[0].getId());
+        assertEquals(30, read.getBlocks()[1].getLength());
+
+        assertTrue(INode.deserialize(INode.DIRECTORY_INODE.serialize(1)).isDirectory());
+    }
+
+    @Test
+    public void testVersion2RoundTrip() throws Exception {
+        Block plain = new Block(Long.MIN_VALUE, 1 << 20);
+        Block packed = new Block(12, 300, 99, 4096);
+        Block compressed = new Block(13, 70000);
+        compressed.setEncoding(BlockCodec.LZ4, 1234, 512);
+        INode file = new INode(INode.FileType.FILE,
+                               new Block[] { plain, packed, compressed },
+                               (1 << 20) + 70300, 1234567890L, 1 << 20);
+        byte[] data = file.serialize(2);
+        assertEquals(0x82, data[0] & 0xff);
+        INode read = INode.deserialize(data);
+        assertEquals((1 << 20) + 70300, read.getLength());
+        assertEquals(1234567890L, read.getModificationTime());
+        assertEquals(1 << 20, read.getBlockSize());
+        assertNull(read.getInlineData());
+
+        Block[] blocks = read.getBlocks();
+        assertEquals(Long.MIN_VALUE, blocks[0].getId());
+        assertTrue(!blocks[0].isPacked() && !blocks[0].isCompressed());
+        assertTrue(blocks[1].isPacked());
+        assertEquals(99, blocks[1].getPackId());
+        assertEquals(4096, blocks[1].getPackOffset());
+        assertEquals(BlockCodec.LZ4, blocks[2].getCodec());
+        assertEquals(1234, blocks[2].getDataLength());
+        assertEquals(512, blocks[2].getBytesPerChecksum());
+        assertEquals(0, blocks[0].getBytesPerChecksum());
+
+        INode dir = INode.deserialize(INode.DIRECTORY_INODE.serialize(2));
+        assertTrue(dir.isDirectory());
+    }
+
+    @Test
+    public void testInlineData() throws Exception {
+        byte[] data = "small file".getBytes("UTF-8");
+        INode file = new INode(data, 42, 4096);
+        INode read = INode.deserialize(file.serialize(2));
+        assertTrue(read.isFile());
+        assertEquals(data.length, read.getLength());
+        assertEquals(42, read.getModificationTime());
+        assertArrayEquals(data, read.getInlineData());
+        assertEquals(0, read.getBlocks().length);
+
+        INode empty = INode.deserialize(new INode(new byte[0], 0, 4096).serialize(2));
+        assertArrayEquals(new byte[0], empty.getInlineData());
+    }
+
+    /**
+     * Version 1 has no room for the newer fields, so it refuses them
+     * rather than dropping them.
+     */
+    @Test
+    public void testVersion1RejectsNewerFields() throws Exception {
+        Block compressed = new Block(1, 100);
+        compressed.setEncoding(BlockCodec.DEFLATE, 10, 0);
+        INode[] inodes = {
+            new INode(new byte[1], 0, 0),
+            new INode(INode.FileType.FILE, new Block[] { new Block(1, 1, 2, 3) }),
+            new INode(INode.FileType.FILE, new Block[] { compressed }),
+        };
+        for (INode inode : inodes) {
+            try {
+                inode.serialize(1);
+                fail("serialized " + inode + " as version 1");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testCorruptDataFails() throws Exception {
+        byte[] v2 = new INode(INode.FileType.FILE, new Block[] { new Block(1, 1) }).serialize(2);
+        v2[1] = (byte) INode.FILE_TYPES.length;
+        int file = Arrays.asList(INode.FILE_TYPES).indexOf(INode.FileType.FILE);
+        byte[][] corrupt = {
+            { (byte) INode.FILE_TYPES.length },
+            { (byte) file, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff },
+            v2,
+        };
+        for (byte[] data : corrupt) {
+            try {
+                INode.deserialize(data);
+                fail("deserialized corrupt data");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
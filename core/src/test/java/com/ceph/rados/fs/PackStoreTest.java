@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public final class PackStoreTest {
+
+    private static final int BLOCKS = 400;
+
+    private SimulatedObjectStore objects;
+    private PackStore packs;
+    private List<Block> blocks;
+
+    @Before
+    public void setUp() throws Exception {
+        objects = new SimulatedObjectStore();
+        objects.initialize(null, null, null);
+        BlockIdAllocator ids = new BlockIdAllocator(1);
+        packs = new PackStore(objects, ids, 1024 * 1024, 0.1, 60000);
+        blocks = new ArrayList<Block>();
+        for (int i = 0; i < BLOCKS; i++) {
+            byte[] data = new byte[100 + i];
+            data[0] = (byte) i;
+            blocks.add(packs.write(ids.nextId(), data, data.length));
+        }
+        packs.close();
+    }
+
+    @Test
+    public void testCompactKeepsLiveBlocks() throws Exception {
+        for (int i = 0; i < BLOCKS; i += 2) {
+            packs.delete(blocks.get(i));
+        }
+        assertEquals(1, packs.compact(new ObjectLister(objects, 100)));
+        for (int i = 1; i < BLOCKS; i += 2) {
+            byte[] data = packs.read(blocks.get(i));
+            assertEquals(100 + i, data.length);
+            assertEquals((byte) i, data[0]);
+        }
+        for (int i = 1; i < BLOCKS; i += 2) {
+            packs.delete(blocks.get(i));
+        }
+        assertEquals(1, packs.compact(new ObjectLister(objects, 100)));
+        assertEquals(0, objects.size());
+    }
+
+    /**
+     * Deletes made while other clients compact the pack must all count:
+     * once every block is deleted the pack goes away.
+     */
+    @Test
+    public void testDeletesDuringCompactionAreKept() throws Exception {
+        objects.setLatency("uniform:0,50");
+        final AtomicBoolean deleting = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Void>> done = new ArrayList<Future<Void>>();
+            for (int c = 0; c < 2; c++) {
+                final PackStore compactor = new PackStore(objects, new BlockIdAllocator(-1),
+                                                          1024 * 1024, 0.01, 60000);
+                done.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        while (deleting.get()) {
+                            compactor.compact(new ObjectLister(objects, 100));
+                            Thread.sleep(10);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int d = 0; d < 2; d++) {
+                final int first = d;
+                done.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = first; i < BLOCKS; i += 2) {
+                            packs.delete(blocks.get(i));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            done.get(2).get();
+            done.get(3).get();
+            deleting.set(false);
+            for (Future<Void> future : done) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        objects.setLatency("none");
+        packs.compact(new ObjectLister(objects, 100));
+        assertEquals(0, objects.size());
+    }
+
+    @Test
+    public void testSealedPackIsSkipped() throws Exception {
+        packs.delete(blocks.get(0));
+        String dead = PackStore.PACK_PREFIX + blocks.get(0).getPackId()
+            + PackStore.DEAD_SUFFIX;
+        ObjectSeals seals = new ObjectSeals(objects, 60000);
+        String token = seals.seal(dead);
+        assertNotNull(token);
+        PackStore other = new PackStore(objects, new BlockIdAllocator(-1), 1024 * 1024, 0, 60000);
+        assertEquals(0, other.compact(new ObjectLister(objects, 100)));
+        seals.unseal(dead, token);
+        assertEquals(1, other.compact(new ObjectLister(objects, 100)));
+        assertArrayEquals(new byte[0], RadosFileSystemStore.readObject(objects, dead));
+        assertEquals((byte) 1, packs.read(blocks.get(1))[0]);
+    }
+
+    /**
+     * A pack its writer never sealed is taken over once it has been left
+     * alone for the seal timeout; a writer that comes back to it carries
+     * on in a new pack.
+     */
+    @Test
+    public void testAbandonedPackIsAdopted() throws Exception {
+        objects.clear();
+        BlockIdAllocator ids = new BlockIdAllocator(2);
+        PackStore writer = new PackStore(objects, ids, 1024 * 1024, 0.1, 50);
+        List<Block> written = new ArrayList<Block>();
+        for (int i = 0; i < 10; i++) {
+            written.add(writer.write(ids.nextId(), new byte[] { (byte) i }, 1));
+        }
+        PackStore compactor = new PackStore(objects, new BlockIdAllocator(3), 1024 * 1024, 0.1, 50);
+        for (int i = 0; i < 5; i++) {
+            compactor.delete(written.get(i));
+        }
+        assertEquals(0, compactor.compact(new ObjectLister(objects, 100)));
+        Thread.sleep(100);
+        assertEquals(1, compactor.compact(new ObjectLister(objects, 100)));
+        for (int i = 5; i < 10; i++) {
+            assertArrayEquals(new byte[] { (byte) i }, compactor.read(written.get(i)));
+        }
+
+        Block late = writer.write(ids.nextId(), new byte[] { 42 }, 1);
+        assertTrue(late.getPackId() != written.get(0).getPackId());
+        assertArrayEquals(new byte[] { 42 }, compactor.read(late));
+        assertArrayEquals(new byte[] { 9 }, writer.read(written.get(9)));
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class ParallelDeleterTest {
+
+    /**
+     * Counts the reads made of it.
+     */
+    private static final class CountingObjectStore extends SimulatedObjectStore {
+        final AtomicInteger reads = new AtomicInteger();
+
+        CountingObjectStore(Configuration conf) {
+            super(conf);
+        }
+
+        @Override
+        public int read(String oid, long offset, byte[] buf, int off, int len)
+            throws IOException {
+            reads.incrementAndGet();
+            return super.read(oid, offset, buf, off, len);
+        }
+    }
+
+    private static final int DIRS = 3;
+    private static final int FILES = 200;
+
+    private CountingObjectStore objects;
+    private RadosFileSystemStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        Configuration conf = new Configuration(false);
+        // every lookup goes to the index, as for a tree larger than the cache
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_INODE_CACHE_ENTRIES_KEY, 0);
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_DELETE_THREADS_KEY, 4);
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_DELETE_BATCH_SIZE_KEY, 16);
+        objects = new CountingObjectStore(conf);
+        objects.initialize(null, null, null);
+        store = new RadosFileSystemStore();
+        store.initialize(objects, conf);
+        store.storeINode(new Path("/out"), INode.DIRECTORY_INODE);
+        for (int d = 0; d < DIRS; d++) {
+            Path dir = new Path("/out/part" + d);
+            store.storeINode(dir, INode.DIRECTORY_INODE);
+            for (int f = 0; f < FILES; f++) {
+                byte[] data = new byte[] { (byte) d, (byte) f };
+                Block block = store.createAndStoreBlock(data, data.length);
+                store.storeINode(new Path(dir, "f" + f),
+                                 new INode(INode.FileType.FILE, new Block[] { block }));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.tearDown();
+    }
+
+    @Test
+    public void testDeleteTree() throws Exception {
+        store.deleteSubtree(new Path("/out"), null);
+        assertNull(store.retrieveINode(new Path("/out")));
+        assertNull(store.retrieveINode(new Path("/out/part0/f0")));
+        assertNotNull(store.retrieveINode(new Path("/")));
+        // every INode, block and index but the root's is gone
+        assertEquals(2, objects.size());
+    }
+
+    /**
+     * Entries are deleted by the ids the listing returned: the only reads
+     * are one per INode and one per directory shard.
+     */
+    @Test
+    public void testDeleteDoesNotResolvePaths() throws Exception {
+        objects.reads.set(0);
+        store.deleteSubtree(new Path("/out"), null);
+        int entries = 1 + DIRS + DIRS * FILES;
+        assertTrue("reads " + objects.reads.get(),
+                   objects.reads.get() <= entries + 2 * (1 + DIRS) + 8);
+    }
+
+    @Test
+    public void testFailedDeleteKeepsIndexesConsistent() throws Exception {
+        objects.setFailureRate(SimulatedObjectStore.Op.REMOVE, 0.05f);
+        try {
+            store.deleteSubtree(new Path("/out"), null);
+            fail("delete should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        objects.setFailureRate(SimulatedObjectStore.Op.REMOVE, 0);
+        assertNotNull(store.retrieveINode(new Path("/out")));
+        RemoteIterator<Map.Entry<Path, INode>> dirs = store.listINodes(new Path("/out"));
+        while (dirs.hasNext()) {
+            Path dir = dirs.next().getKey();
+            for (Path child : store.listSubPaths(dir)) {
+                assertNotNull("dangling entry " + child, store.retrieveINode(child));
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads a file of uneven blocks, some of them empty, through every path
+ * of the stream: sequential and parallel, plain, compressed and packed.
+ */
+public final class RadosFileInputStreamTest {
+
+    private static final int[] BLOCK_LENGTHS = { 5000, 0, 70000, 1, 0, 65536, 12345 };
+
+    private final Random random = new Random(42);
+
+    private RadosFileSystemStore store;
+    private byte[] data;
+    private INode inode;
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null) {
+            store.tearDown();
+        }
+    }
+
+    /**
+     * Stores the file under each configuration in turn and runs
+     * <code>check</code> on it.
+     */
+    private void forEachLayout(Check check) throws Exception {
+        String[] codecs = { "none", "lz4" };
+        for (int parallelism : new int[] { 0, 4 }) {
+            for (String codec : codecs) {
+                for (boolean packed : new boolean[] { false, true }) {
+                    Configuration conf = new Configuration(false);
+                    conf.setInt(RadosFileSystemConfigKeys.RADOS_READ_PARALLELISM_KEY, parallelism);
+                    // several chunks per block, and fewer buffers than chunks
+                    conf.setInt(RadosFileSystemConfigKeys.RADOS_READ_PARALLEL_CHUNK_SIZE_KEY,
+                                16 * 1024);
+                    conf.setLong(RadosFileSystemConfigKeys.RADOS_READ_PARALLEL_MEMORY_KEY,
+                                 64 * 1024);
+                    conf.set(RadosFileSystemConfigKeys.RADOS_COMPRESSION_CODEC_KEY, codec);
+                    conf.setBoolean(RadosFileSystemConfigKeys.RADOS_PACK_ENABLED_KEY, packed);
+                    open(conf);
+                    try {
+                        Block large = inode.getBlocks()[2];
+                        assertEquals(packed, large.isPacked());
+                        assertEquals(!codec.equals("none"), large.isCompressed());
+                        check.run();
+                    } catch (AssertionError e) {
+                        throw new AssertionError("parallelism " + parallelism + ", codec "
+                            + codec + ", packed " + packed + ": " + e.getMessage());
+                    } finally {
+                        store.tearDown();
+                        store = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    private void open(Configuration conf) throws IOException {
+        SimulatedObjectStore objects = new SimulatedObjectStore(conf);
+        objects.initialize(null, null, null);
+        store = new RadosFileSystemStore();
+        store.initialize(objects, conf);
+        List<Block> blocks = new ArrayList<Block>();
+        int total = 0;
+        for (int length : BLOCK_LENGTHS) {
+            total += length;
+        }
+        data = new byte[total];
+        int off = 0;
+        for (int length : BLOCK_LENGTHS) {
+            // half noise, half runs, so some blocks compress and some do not
+            for (int i = off; i < off + length; i++) {
+                data[i] = (byte) (i % 2 == 0 ? random.nextInt() : i / 1000);
+            }
+            if (length > 60000) {
+                Arrays.fill(data, off, off + length / 2, (byte) 'x');
+            }
+            byte[] block = Arrays.copyOfRange(data, off, off + length);
+            try {
+                blocks.add(store.createAndStoreBlock(block, length));
+            } catch (Exception e) {
+                throw new IOException("store failed", e);
+            }
+            off += length;
+        }
+        inode = new INode(INode.FileType.FILE, blocks.toArray(new Block[blocks.size()]),
+                          total, 0, 128 * 1024);
+    }
+
+    private RadosFileInputStream openStream() {
+        return new RadosFileInputStream(store, inode);
+    }
+
+    @Test
+    public void testSequentialRead() throws Exception {
+        forEachLayout(new Check() {
+            public void run() throws Exception {
+                RadosFileInputStream in = openStream();
+                try {
+                    byte[] read = new byte[data.length];
+                    int off = 0;
+                    read[off++] = (byte) in.read();
+                    while (off < read.length) {
+                        int n = in.read(read, off, Math.min(read.length - off, 7777));
+                        assertTrue(n > 0);
+                        off += n;
+                        assertEquals(off, in.getPos());
+                    }
+                    assertArrayEquals(data, read);
+                    assertEquals(-1, in.read());
+                    assertEquals(-1, in.read(read, 0, 1));
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testSeek() throws Exception {
+        forEachLayout(new Check() {
+            public void run() throws Exception {
+                RadosFileInputStream in = openStream();
+                try {
+                    long[] targets = { 0, 4999, 5000, 75000, 75001, 140000, data.length - 1,
+                                       3, 140537, 75000 };
+                    for (long target : targets) {
+                        in.seek(target);
+                        assertEquals(target, in.getPos());
+                        assertEquals("at " + target, data[(int) target] & 0xff, in.read());
+                        byte[] buf = new byte[(int) Math.min(3000, data.length - target - 1)];
+                        readFully(in, buf);
+                        assertArrayEquals("at " + target, Arrays.copyOfRange(data,
+                            (int) target + 1, (int) target + 1 + buf.length), buf);
+                    }
+                    in.seek(data.length);
+                    assertEquals(-1, in.read());
+                    try {
+                        in.seek(data.length + 1);
+                        fail("seeked past the end");
+                    } catch (EOFException e) {
+                        // expected
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testPositionalRead() throws Exception {
+        forEachLayout(new Check() {
+            public void run() throws Exception {
+                RadosFileInputStream in = openStream();
+                try {
+                    in.seek(17);
+                    for (int i = 0; i < 20; i++) {
+                        int position = random.nextInt(data.length);
+                        byte[] buf = new byte[Math.min(random.nextInt(80000),
+                                                       data.length - position)];
+                        in.readFully(position, buf, 0, buf.length);
+                        assertArrayEquals("at " + position, Arrays.copyOfRange(data,
+                            position, position + buf.length), buf);
+                    }
+                    assertEquals(17, in.getPos());
+                    try {
+                        in.readFully(data.length - 10, new byte[11], 0, 11);
+                        fail("read past the end");
+                    } catch (EOFException e) {
+                        // expected
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Threads read one stream at random positions while another seeks and
+     * reads it; neither may see the other move its position.
+     */
+    @Test
+    public void testConcurrentPositionalReads() throws Exception {
+        forEachLayout(new Check() {
+            public void run() throws Exception {
+                final RadosFileInputStream in = openStream();
+                ExecutorService executor = Executors.newFixedThreadPool(4);
+                try {
+                    List<Future<Void>> done = new ArrayList<Future<Void>>();
+                    for (int t = 0; t < 3; t++) {
+                        final Random random = new Random(t);
+                        done.add(executor.submit(new Callable<Void>() {
+                            public Void call() throws Exception {
+                                for (int i = 0; i < 30; i++) {
+                                    int position = random.nextInt(data.length);
+                                    byte[] buf = new byte[Math.min(random.nextInt(20000),
+                                                                   data.length - position)];
+                                    in.readFully(position, buf);
+                                    assertArrayEquals("at " + position, Arrays.copyOfRange(
+                                        data, position, position + buf.length), buf);
+                                }
+                                return null;
+                            }
+                        }));
+                    }
+                    done.add(executor.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            Random random = new Random(3);
+                            for (int i = 0; i < 30; i++) {
+                                int target = random.nextInt(data.length);
+                                in.seek(target);
+                                assertEquals(target, in.getPos());
+                                byte[] buf = new byte[Math.min(3000, data.length - target)];
+                                readFully(in, buf);
+                                assertEquals(target + buf.length, in.getPos());
+                                assertArrayEquals("at " + target, Arrays.copyOfRange(
+                                    data, target, target + buf.length), buf);
+                            }
+                            return null;
+                        }
+                    }));
+                    for (Future<Void> future : done) {
+                        future.get();
+                    }
+                } finally {
+                    executor.shutdownNow();
+                    in.close();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testByteBufferRead() throws Exception {
+        forEachLayout(new Check() {
+            public void run() throws Exception {
+                for (boolean direct : new boolean[] { false, true }) {
+                    RadosFileInputStream in = openStream();
+                    try {
+                        ByteBuffer buf = direct ? ByteBuffer.allocateDirect(data.length + 10)
+                            : ByteBuffer.allocate(data.length + 10);
+                        buf.position(10);
+                        in.seek(3);
+                        while (buf.position() < buf.capacity()) {
+                            // uneven slices, some across block boundaries
+                            buf.limit(Math.min(buf.capacity(), buf.position() + 9999));
+                            if (in.read(buf) < 0) {
+                                break;
+                            }
+                        }
+                        assertEquals(data.length + 7, buf.position());
+                        byte[] read = new byte[data.length - 3];
+                        buf.position(10);
+                        buf.get(read);
+                        assertArrayEquals(Arrays.copyOfRange(data, 3, data.length), read);
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private static void readFully(RadosFileInputStream in, byte[] buf) throws IOException {
+        int off = 0;
+        while (off < buf.length) {
+            int n = in.read(buf, off, buf.length - off);
+            if (n < 0) {
+                throw new EOFException("at " + off);
+            }
+            off += n;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.MD5MD5CRC32CastagnoliFileChecksum;
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.util.DataChecksum;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class RadosFileSystemStoreTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private final Random random = new Random(42);
+
+    private Configuration conf;
+    private SimulatedObjectStore objects;
+    private RadosFileSystemStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        conf = new Configuration(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null) {
+            store.tearDown();
+        }
+    }
+
+    private void open() throws IOException {
+        objects = new SimulatedObjectStore(conf);
+        objects.initialize(null, null, null);
+        store = new RadosFileSystemStore();
+        store.initialize(objects, conf);
+        store.storeINode(new Path("/d"), INode.DIRECTORY_INODE);
+    }
+
+    @Test
+    public void testSmallFilesAreInline() throws Exception {
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_INLINE_THRESHOLD_KEY, 1000);
+        open();
+        write(new Path("/d/first"), randomBytes(10));
+        long before = objects.size();
+        byte[] data = randomBytes(1000);
+        INode inode = write(new Path("/d/small"), data);
+        assertArrayEquals(data, inode.getInlineData());
+        assertEquals(0, inode.getBlocks().length);
+        // the inode only; the directory index already exists
+        assertEquals(before + 1, objects.size());
+        assertArrayEquals(data, read(inode, true));
+
+        // an empty file needs neither data nor blocks
+        INode empty = write(new Path("/d/empty"), new byte[0]);
+        assertNull(empty.getInlineData());
+        assertEquals(0, empty.getBlocks().length);
+        assertArrayEquals(new byte[0], read(empty, true));
+
+        INode large = write(new Path("/d/large"), randomBytes(1001));
+        assertNull(large.getInlineData());
+        assertEquals(1, large.getBlocks().length);
+    }
+
+    @Test
+    public void testPackedBlocksSurviveCompaction() throws Exception {
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_INLINE_THRESHOLD_KEY, 0);
+        conf.setBoolean(RadosFileSystemConfigKeys.RADOS_PACK_ENABLED_KEY, true);
+        conf.setLong(RadosFileSystemConfigKeys.RADOS_PACK_TARGET_SIZE_KEY, 20000);
+        open();
+        byte[][] data = new byte[50][];
+        INode[] inodes = new INode[data.length];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = randomBytes(1000 + i);
+            inodes[i] = write(new Path("/d/f" + i), data[i]);
+            assertTrue(inodes[i].getBlocks()[0].isPacked());
+            assertFalse(store.blockExists(inodes[i].getBlocks()[0].getId()));
+        }
+        for (int i = 0; i < data.length; i++) {
+            assertArrayEquals(data[i], read(inodes[i], true));
+        }
+        // most of the full, sealed packs dies; the open one is left alone
+        for (int i = 0; i < 40; i++) {
+            store.deleteBlock(inodes[i].getBlocks()[0]);
+            store.deleteINode(new Path("/d/f" + i));
+        }
+        assertTrue(store.compactPacks() > 0);
+        for (int i = 40; i < data.length; i++) {
+            INode inode = store.retrieveINode(new Path("/d/f" + i));
+            assertArrayEquals(data[i], read(inode, true));
+        }
+    }
+
+    @Test
+    public void testCorruptBlockFailsChecksum() throws Exception {
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_INLINE_THRESHOLD_KEY, 0);
+        open();
+        byte[] data = randomBytes(3 * BLOCK_SIZE);
+        INode inode = write(new Path("/d/f"), data);
+        assertEquals(3, inode.getBlocks().length);
+        Block block = inode.getBlocks()[1];
+        assertEquals(512, block.getBytesPerChecksum());
+        byte[] flipped = { (byte) ~data[BLOCK_SIZE + 100] };
+        objects.write("block_" + block.getId(), 100, flipped, 0, 1);
+        try {
+            read(inode, true);
+            fail("read a corrupt block");
+        } catch (IOException e) {
+            // expected
+        }
+        byte[] unchecked = read(inode, false);
+        assertEquals(flipped[0], unchecked[BLOCK_SIZE + 100]);
+    }
+
+    @Test
+    public void testFileChecksum() throws Exception {
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_INLINE_THRESHOLD_KEY, 100);
+        open();
+        for (int length : new int[] { 1, 100, 101, BLOCK_SIZE, 2 * BLOCK_SIZE + 7 }) {
+            byte[] data = randomBytes(length);
+            MD5MD5CRC32FileChecksum expected = expectedChecksum(data);
+            MD5MD5CRC32FileChecksum a = store.getFileChecksum(write(new Path("/d/a"), data));
+            MD5MD5CRC32FileChecksum b = store.getFileChecksum(write(new Path("/d/b"), data));
+            assertEquals("length " + length, expected, a);
+            assertEquals("length " + length, expected, b);
+            store.deleteINode(new Path("/d/a"));
+            store.deleteINode(new Path("/d/b"));
+        }
+        assertNull(store.getFileChecksum(INode.DIRECTORY_INODE));
+    }
+
+    @Test
+    public void testNoFileChecksumWithoutBlockChecksums() throws Exception {
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_BYTES_PER_CHECKSUM_KEY, 0);
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_INLINE_THRESHOLD_KEY, 100);
+        open();
+        INode inline = write(new Path("/d/inline"), randomBytes(100));
+        INode blocks = write(new Path("/d/blocks"), randomBytes(BLOCK_SIZE + 1));
+        assertEquals(0, blocks.getBlocks()[0].getBytesPerChecksum());
+        assertNull(store.getFileChecksum(inline));
+        assertNull(store.getFileChecksum(blocks));
+        assertEquals(BLOCK_SIZE + 1, read(blocks, true).length);
+    }
+
+    @Test
+    public void testRename() throws Exception {
+        open();
+        byte[] data = randomBytes(100);
+        write(new Path("/d/f"), data);
+        store.rename(new Path("/d/f"), new Path("/g"));
+        assertNull(store.retrieveINode(new Path("/d/f")));
+        assertArrayEquals(data, read(store.retrieveINode(new Path("/g")), true));
+
+        store.storeINode(new Path("/d/sub"), INode.DIRECTORY_INODE);
+        write(new Path("/d/sub/f"), data);
+        store.rename(new Path("/d"), new Path("/e"));
+        assertNull(store.retrieveINode(new Path("/d")));
+        assertNull(store.retrieveINode(new Path("/d/sub/f")));
+        assertTrue(store.retrieveINode(new Path("/e/sub")).isDirectory());
+        assertArrayEquals(data, read(store.retrieveINode(new Path("/e/sub/f")), true));
+        assertEquals(1, store.listSubPaths(new Path("/e")).size());
+    }
+
+    @Test
+    public void testRenameFailures() throws Exception {
+        open();
+        write(new Path("/d/f"), randomBytes(10));
+        write(new Path("/d/g"), randomBytes(10));
+        Path[][] renames = {
+            { new Path("/d/missing"), new Path("/d/h") },
+            { new Path("/d/f"), new Path("/d/g") },
+            { new Path("/d/f"), new Path("/d") },
+            { new Path("/d/f"), new Path("/missing/g") },
+            { new Path("/"), new Path("/d/root") },
+            { new Path("/d/f"), new Path("/") },
+        };
+        for (Path[] rename : renames) {
+            try {
+                store.rename(rename[0], rename[1]);
+                fail("renamed " + rename[0] + " to " + rename[1]);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertNotNull(store.retrieveINode(new Path("/d/f")));
+        assertEquals(2, store.listSubPaths(new Path("/d")).size());
+    }
+
+    /**
+     * Stores sharing one connection, and so one instance id, must still
+     * hand out different block ids.
+     */
+    @Test
+    public void testStoresSharingAnObjectStoreAllocateDistinctIds() throws Exception {
+        conf.setInt(RadosFileSystemConfigKeys.RADOS_INLINE_THRESHOLD_KEY, 0);
+        open();
+        RadosFileSystemStore other = new RadosFileSystemStore();
+        other.initialize(objects, conf);
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            byte[][] data = new byte[20][];
+            Block[] blocks = new Block[data.length];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = randomBytes(100);
+                blocks[i] = (i % 2 == 0 ? store : other).createAndStoreBlock(data[i], 100);
+                assertTrue("id " + blocks[i].getId() + " handed out twice",
+                           ids.add(blocks[i].getId()));
+            }
+            for (int i = 0; i < data.length; i++) {
+                byte[] read = new byte[100];
+                FSInputStream in = store.openBlock(blocks[i]);
+                try {
+                    in.readFully(0, read);
+                } finally {
+                    in.close();
+                }
+                assertArrayEquals(data[i], read);
+            }
+        } finally {
+            other.tearDown();
+        }
+    }
+
+    private INode write(Path path, byte[] data) throws IOException {
+        RadosFileOutputStream out = new RadosFileOutputStream(store, path, BLOCK_SIZE);
+        out.write(data, 0, data.length);
+        out.close();
+        return store.retrieveINode(path);
+    }
+
+    private byte[] read(INode inode, boolean verifyChecksum) throws IOException {
+        byte[] data = new byte[(int) inode.getLength()];
+        RadosFileInputStream in = new RadosFileInputStream(store, inode, verifyChecksum);
+        try {
+            in.readFully(0, data, 0, data.length);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    /**
+     * The checksum HDFS gives a file of <code>data</code>: the MD5 of the
+     * MD5s of the CRC32C chunk sums of each block.
+     */
+    private static MD5MD5CRC32FileChecksum expectedChecksum(byte[] data) throws IOException {
+        DataChecksum crc = DataChecksum.newDataChecksum(DataChecksum.Type.CRC32C, 512);
+        DataOutputBuffer md5s = new DataOutputBuffer();
+        int blocks = 0;
+        for (int start = 0; start < data.length; start += BLOCK_SIZE) {
+            int end = Math.min(data.length, start + BLOCK_SIZE);
+            DataOutputBuffer sums = new DataOutputBuffer();
+            for (int chunk = start; chunk < end; chunk += 512) {
+                crc.reset();
+                crc.update(data, chunk, Math.min(512, end - chunk));
+                sums.writeInt((int) crc.getValue());
+            }
+            MD5Hash.digest(sums.getData(), 0, sums.getLength()).write(md5s);
+            blocks++;
+        }
+        return new MD5MD5CRC32CastagnoliFileChecksum(512, blocks > 1 ? BLOCK_SIZE / 512 : 0,
+            MD5Hash.digest(md5s.getData(), 0, md5s.getLength()));
+    }
+}
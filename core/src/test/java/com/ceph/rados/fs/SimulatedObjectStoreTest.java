@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ceph.rados.fs;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class SimulatedObjectStoreTest {
+
+    private SimulatedObjectStore objects;
+
+    @Before
+    public void setUp() throws Exception {
+        objects = new SimulatedObjectStore();
+        objects.initialize(null, null, "pool");
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        objects.write("o", 4, new byte[] { 1, 2, 3 }, 0, 3);
+        objects.append("o", new byte[] { 4 }, 0, 1);
+        assertEquals(8, objects.stat("o"));
+        byte[] buf = new byte[10];
+        assertEquals(8, objects.read("o", 0, buf, 1, 9));
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 1, 2, 3, 4, 0 }, buf);
+        assertEquals(0, objects.read("o", 8, buf, 0, 10));
+        assertEquals(0, objects.read("o", 1L << 20, buf, 0, 10));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        assertEquals(3, objects.read("o", 5, direct));
+        assertEquals(0, direct.remaining());
+
+        objects.writeFull("o", new byte[] { 9, 9 }, 1, 1);
+        assertEquals(1, objects.stat("o"));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingObject() throws Exception {
+        objects.read("missing", 0, new byte[1], 0, 1);
+    }
+
+    /**
+     * Objects are arrays; offsets they cannot hold are refused rather
+     * than cut to an int.
+     */
+    @Test
+    public void testOffsetsOutOfRangeAreRejected() throws Exception {
+        objects.write("o", 0, new byte[1], 0, 1);
+        long[] offsets = { -1, Integer.MAX_VALUE + 1L, 1L << 32, (1L << 32) + 1 };
+        for (long offset : offsets) {
+            try {
+                objects.write("o", offset, new byte[1], 0, 1);
+                fail("wrote at " + offset);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        try {
+            objects.write("o", Integer.MAX_VALUE - 1L, new byte[2], 0, 2);
+            fail("wrote past 2 GB");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            objects.read("o", -1, new byte[1], 0, 1);
+            fail("read at -1");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            objects.read("o", 1L << 32, ByteBuffer.allocate(1));
+            fail("read at 4 GB");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, objects.stat("o"));
+    }
+
+    @Test
+    public void testConditionalUpdates() throws Exception {
+        assertTrue(objects.appendIf("o", "x", "", new byte[] { 1 }, 0, 1));
+        objects.setXAttr("o", "x", "a");
+        assertFalse(objects.appendIf("o", "x", "", new byte[] { 2 }, 0, 1));
+        assertTrue(objects.appendIf("o", "x", "a", new byte[] { 2 }, 0, 1));
+        assertFalse(objects.setXAttrIf("o", "x", "b", "c"));
+        assertTrue(objects.writeFullIf("o", "x", "a", "", new byte[] { 3 }, 0, 1));
+        assertEquals("", objects.getXAttr("o", "x"));
+        assertEquals(1, objects.stat("o"));
+        try {
+            objects.setXAttrIf("missing", "x", "", "a");
+            fail("set an attribute of a missing object");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+}
@@ -22,24 +22,35 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.io.retry.RetryPolicies;
 import org.apache.hadoop.io.retry.RetryPolicy;
 import org.apache.hadoop.io.retry.RetryProxy;
 import org.apache.hadoop.util.Progressable;
 
+import com.ceph.rados.fs.RadosFileInputStream;
+import com.ceph.rados.fs.RadosFileOutputStream;
+import com.ceph.rados.fs.RadosFileSystemConfigKeys;
 import com.ceph.rados.fs.RadosFileSystemStore;
 import com.ceph.rados.fs.RadosInputStream;
 import com.ceph.rados.fs.RadosOutputStream;
@@ -53,12 +64,23 @@ import com.ceph.rados.fs.Block;
  */
 public class RadosFileSystem extends FileSystem {
 
+  private static final String[] LOCAL_NAMES = { "localhost:50010" };
+  private static final String[] LOCAL_HOSTS = { "localhost" };
+  private static final Comparator<FileStatus> PATH_ORDER =
+    new Comparator<FileStatus>() {
+      public int compare(FileStatus a, FileStatus b) {
+        return a.getPath().compareTo(b.getPath());
+      }
+    };
+
   private URI uri;
 
   private RadosFileSystemStore store;
 
   private Path workingDir;
 
+  private boolean verifyChecksum = true;
+
   public RadosFileSystem() {
     // set store in initialize()
   }
@@ -92,7 +114,7 @@ public class RadosFileSystem extends FileSystem {
         String pool = conf.get("ceph_pool");
 
         store = createDefaultStore();
-        store.initialize(conf_file, id, pool);
+        store.initialize(conf_file, id, pool, conf);
     }
 
     setConf(conf);
@@ -127,6 +149,7 @@ public class RadosFileSystem extends FileSystem {
    */
   @Override
   public boolean mkdirs(Path path, FsPermission permission) throws IOException {
+    statistics.incrementWriteOps(1);
     Path absolutePath = makeAbsolute(path);
     List<Path> paths = new ArrayList<Path>();
     do {
@@ -176,6 +199,7 @@ public class RadosFileSystem extends FileSystem {
 
   @Override
   public FileStatus[] listStatus(Path f) throws IOException {
+    statistics.incrementReadOps(1);
     Path absolutePath = makeAbsolute(f);
     INode inode = store.retrieveINode(absolutePath);
     if (inode == null) {
@@ -187,12 +211,96 @@ public class RadosFileSystem extends FileSystem {
       };
     }
     ArrayList<FileStatus> ret = new ArrayList<FileStatus>();
-    for (Path p : store.listSubPaths(absolutePath)) {
-      ret.add(getFileStatus(p.makeQualified(this)));
+    RemoteIterator<FileStatus> children = listChildren(absolutePath);
+    while (children.hasNext()) {
+      ret.add(children.next());
     }
+    Collections.sort(ret, PATH_ORDER);
     return ret.toArray(new FileStatus[0]);
   }
 
+  /**
+   * Lists <code>f</code> like {@link #listStatus(Path)}, but returns the
+   * first entries before the whole directory has been read, and does not
+   * sort them.
+   */
+  public RemoteIterator<FileStatus> listStatusIterator(Path f)
+    throws IOException {
+    statistics.incrementReadOps(1);
+    Path absolutePath = makeAbsolute(f);
+    INode inode = store.retrieveINode(absolutePath);
+    if (inode == null) {
+      throw new FileNotFoundException("File " + f + " does not exist.");
+    }
+    if (inode.isFile()) {
+      final FileStatus status = new RadosFileStatus(f.makeQualified(this), inode);
+      return new RemoteIterator<FileStatus>() {
+        private boolean done = false;
+
+        public boolean hasNext() {
+          return !done;
+        }
+
+        public FileStatus next() {
+          if (done) {
+            throw new NoSuchElementException();
+          }
+          done = true;
+          return status;
+        }
+      };
+    }
+    return listChildren(absolutePath);
+  }
+
+  private RemoteIterator<FileStatus> listChildren(Path dir)
+    throws IOException {
+    final RemoteIterator<Map.Entry<Path, INode>> children = store.listINodes(dir);
+    return new RemoteIterator<FileStatus>() {
+      public boolean hasNext() throws IOException {
+        return children.hasNext();
+      }
+
+      public FileStatus next() throws IOException {
+        Map.Entry<Path, INode> child = children.next();
+        return new RadosFileStatus(child.getKey().makeQualified(RadosFileSystem.this),
+                                   child.getValue());
+      }
+    };
+  }
+
+  @Override
+  protected RemoteIterator<LocatedFileStatus> listLocatedStatus(final Path f,
+      final PathFilter filter) throws IOException {
+    final RemoteIterator<FileStatus> statuses = listStatusIterator(f);
+    return new RemoteIterator<LocatedFileStatus>() {
+      private LocatedFileStatus next;
+
+      public boolean hasNext() throws IOException {
+        while (next == null && statuses.hasNext()) {
+          FileStatus status = statuses.next();
+          if (filter.accept(status.getPath())) {
+            // every status listed here is a RadosFileStatus, with its INode
+            BlockLocation[] locations = status.isFile() ?
+              getFileBlockLocations(status, ((RadosFileStatus) status).inode,
+                                    0, status.getLen()) : null;
+            next = new LocatedFileStatus(status, locations);
+          }
+        }
+        return next != null;
+      }
+
+      public LocatedFileStatus next() throws IOException {
+        if (!hasNext()) {
+          throw new NoSuchElementException("No more entries in " + f);
+        }
+        LocatedFileStatus status = next;
+        next = null;
+        return status;
+      }
+    };
+  }
+
   /** This optional operation is not yet supported. */
   @Override
   public FSDataOutputStream append(Path f, int bufferSize,
@@ -209,6 +317,7 @@ public class RadosFileSystem extends FileSystem {
       short replication, long blockSize, Progressable progress)
     throws IOException {
 
+    statistics.incrementWriteOps(1);
     INode inode = store.retrieveINode(makeAbsolute(file));
     if (inode != null) {
       if (overwrite) {
@@ -224,17 +333,108 @@ public class RadosFileSystem extends FileSystem {
         }
       }      
     }
+    if (blockSize <= 0) {
+      blockSize = getDefaultBlockSize();
+    }
     return new FSDataOutputStream
-        (new RadosOutputStream(store, makeAbsolute(file).toString()));
+        (new RadosFileOutputStream(store, makeAbsolute(file), blockSize),
+         statistics);
   }
 
   @Override
   public FSDataInputStream open(Path path, int bufferSize) throws IOException {
-      return new FSDataInputStream(new RadosInputStream(store, path.toString()));
+    statistics.incrementReadOps(1);
+    INode inode = checkFile(path);
+    return new FSDataInputStream(
+        new RadosFileInputStream(store, inode, verifyChecksum, statistics));
+  }
+
+  /**
+   * Returns one location per block overlapping the range, with the hosts
+   * the configured resolver reports for the block's object. A file stored
+   * inline, and a block with unknown hosts, is reported on localhost as
+   * {@link FileSystem} does.
+   */
+  @Override
+  public BlockLocation[] getFileBlockLocations(FileStatus file, long start,
+      long len) throws IOException {
+    if (file == null) {
+      return null;
+    }
+    if (start < 0 || len < 0) {
+      throw new IllegalArgumentException("Invalid start or len parameter");
+    }
+    if (file.getLen() <= start) {
+      return new BlockLocation[0];
+    }
+    statistics.incrementReadOps(1);
+    return getFileBlockLocations(file, checkFile(file.getPath()), start, len);
+  }
+
+  private BlockLocation[] getFileBlockLocations(FileStatus file, INode inode,
+      long start, long len) throws IOException {
+    if (file.getLen() <= start) {
+      return new BlockLocation[0];
+    }
+    Block[] blocks = inode.getBlocks();
+    if (blocks == null || blocks.length == 0) {
+      return new BlockLocation[] {
+        new BlockLocation(LOCAL_NAMES, LOCAL_HOSTS, 0, file.getLen()) };
+    }
+    // the blocks overlapping [start, end), at least the one holding start
+    long end = start + Math.max(len, 1);
+    List<Block> selected = new ArrayList<Block>();
+    List<Long> offsets = new ArrayList<Long>();
+    long offset = 0;
+    for (Block block : blocks) {
+      if (offset >= end) {
+        break;
+      }
+      if (offset + block.getLength() > start) {
+        selected.add(block);
+        offsets.add(offset);
+      }
+      offset += block.getLength();
+    }
+    String[][] hosts = store.getBlockHosts(
+        selected.toArray(new Block[selected.size()]));
+    BlockLocation[] locations = new BlockLocation[selected.size()];
+    for (int i = 0; i < locations.length; i++) {
+      long length = selected.get(i).getLength();
+      if (hosts[i].length == 0) {
+        locations[i] = new BlockLocation(LOCAL_NAMES, LOCAL_HOSTS,
+                                         offsets.get(i), length);
+      } else {
+        locations[i] = new BlockLocation(hosts[i], hosts[i],
+                                         offsets.get(i), length);
+      }
+    }
+    return locations;
+  }
+
+  @Override
+  public void setVerifyChecksum(boolean verifyChecksum) {
+    this.verifyChecksum = verifyChecksum;
+  }
+
+  /**
+   * Returns a checksum comparable with HDFS's for files with the same
+   * block size and bytes per checksum, so <code>distcp -update</code> can
+   * skip unchanged files.
+   */
+  @Override
+  public FileChecksum getFileChecksum(Path f) throws IOException {
+    statistics.incrementReadOps(1);
+    INode inode = store.retrieveINode(makeAbsolute(f));
+    if (inode == null) {
+      throw new FileNotFoundException(f + ": No such file or directory.");
+    }
+    return store.getFileChecksum(inode);
   }
 
   @Override
   public boolean rename(Path src, Path dst) throws IOException {
+    statistics.incrementWriteOps(1);
     Path absoluteSrc = makeAbsolute(src);
     final String debugPreamble = "Renaming '" + src + "' to '" + dst + "' - ";
     INode srcINode = store.retrieveINode(absoluteSrc);
@@ -352,32 +552,13 @@ public class RadosFileSystem extends FileSystem {
       }
     }
     //here the dest path is set up -so rename
-    return renameRecursive(absoluteSrc, absoluteDst);
-  }
-
-  private boolean renameRecursive(Path src, Path dst) throws IOException {
-    INode srcINode = store.retrieveINode(src);
-    store.storeINode(dst, srcINode);
-    store.deleteINode(src);
-    if (srcINode.isDirectory()) {
-      for (Path oldSrc : store.listDeepSubPaths(src)) {
-        INode inode = store.retrieveINode(oldSrc);
-        if (inode == null) {
-          return false;
-        }
-        String oldSrcPath = oldSrc.toUri().getPath();
-        String srcPath = src.toUri().getPath();
-        String dstPath = dst.toUri().getPath();
-        Path newDst = new Path(oldSrcPath.replaceFirst(srcPath, dstPath));
-        store.storeINode(newDst, inode);
-        store.deleteINode(oldSrc);
-      }
-    }
+    store.rename(absoluteSrc, absoluteDst);
     return true;
   }
 
   @Override
   public boolean delete(Path path, boolean recursive) throws IOException {
+   statistics.incrementWriteOps(1);
    Path absolutePath = makeAbsolute(path);
    INode inode = store.retrieveINode(absolutePath);
    if (inode == null) {
@@ -389,23 +570,11 @@ public class RadosFileSystem extends FileSystem {
        store.deleteBlock(block);
      }
    } else {
-     FileStatus[] contents = null; 
-     try {
-       contents = listStatus(absolutePath);
-     } catch(FileNotFoundException fnfe) {
-       return false;
-     }
-
-     if ((contents.length !=0) && (!recursive)) {
+     if (!recursive && !store.listSubPaths(absolutePath).isEmpty()) {
        throw new IOException("Directory " + path.toString() 
            + " is not empty.");
      }
-     for (FileStatus p:contents) {
-       if (!delete(p.getPath(), recursive)) {
-         return false;
-       }
-     }
-     store.deleteINode(absolutePath);
+     store.deleteSubtree(absolutePath, null);
    }
    return true;
   }
@@ -415,6 +584,7 @@ public class RadosFileSystem extends FileSystem {
    */
   @Override
   public FileStatus getFileStatus(Path f)  throws IOException {
+    statistics.incrementReadOps(1);
     INode inode = store.retrieveINode(makeAbsolute(f));
     if (inode == null) {
       throw new FileNotFoundException(f + ": No such file or directory.");
@@ -424,7 +594,8 @@ public class RadosFileSystem extends FileSystem {
   
   @Override
   public long getDefaultBlockSize() {
-    return getConf().getLong("fs.s3.block.size", 64 * 1024 * 1024);
+    return getConf().getLong(RadosFileSystemConfigKeys.S3_BLOCK_SIZE_KEY,
+                             RadosFileSystemConfigKeys.S3_BLOCK_SIZE_DEFAULT);
   }
 
   @Override
@@ -439,31 +610,26 @@ public class RadosFileSystem extends FileSystem {
     store.dump();
   }
 
+  void dumpMetrics() {
+    store.dumpMetrics();
+  }
+
   void purge() throws IOException {
     store.purge();
   }
 
-  private static class RadosFileStatus extends FileStatus {
+  void migrateNamespace() throws IOException {
+    store.migrateNamespace();
+  }
 
-    RadosFileStatus(Path f, INode inode) throws IOException {
-      super(findLength(inode), inode.isDirectory(), 1,
-            findBlocksize(inode), 0, f);
-    }
+  private static class RadosFileStatus extends FileStatus {
 
-    private static long findLength(INode inode) {
-      if (!inode.isDirectory()) {
-        long length = 0L;
-        for (Block block : inode.getBlocks()) {
-          length += block.getLength();
-        }
-        return length;
-      }
-      return 0;
-    }
+    final INode inode;
 
-    private static long findBlocksize(INode inode) {
-      final Block[] ret = inode.getBlocks();
-      return ret == null ? 0L : ret[0].getLength();
+    RadosFileStatus(Path f, INode inode) throws IOException {
+      super(inode.getLength(), inode.isDirectory(), 1,
+            inode.getBlockSize(), inode.getModificationTime(), f);
+      this.inode = inode;
     }
   }
 }